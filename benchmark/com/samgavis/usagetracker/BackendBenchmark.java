@@ -0,0 +1,244 @@
+/**
+ * BackendBenchmark.java
+ * Standalone harness for the upload and query paths against an
+ * InMemoryBackend behind a RequestExecutor, with injected latency and
+ * throttling. Data rows are pushed in concurrent batches the way PushData
+ * uploads them, then read back with paged range selects, sharded range
+ * selects and a count(*), using the same select expressions and item
+ * encoding as ListSDB. Every read is checked against the pushed rows.
+ *
+ * ListSDB itself needs a Context, so it cannot run off the device. This
+ * exercises everything below it: the request shapes, RequestExecutor's
+ * rate limit and retries, InMemoryBackend's select subset and paging, and
+ * the ListSDBUtils encoding.
+ *
+ * This is not part of the library. Compile it together with src/ and run it
+ * on a desktop JVM with android.jar and the AWS SDK on the classpath:
+ *
+ *   java -cp <classes>:android.jar:aws-android-sdk.jar \
+ *     com.samgavis.usagetracker.BackendBenchmark [rows] [latency ms] [throttle rate]
+ */
+
+package com.samgavis.usagetracker;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+public class BackendBenchmark {
+
+	private static final int DEFAULT_ROWS = 5000;
+	private static final long DEFAULT_LATENCY = 5; // ms
+	private static final double DEFAULT_THROTTLE_RATE = 0.05;
+
+	/**
+	 * Same concurrency as PushData and the default scan parallelism.
+	 */
+	private static final int BATCHES_IN_FLIGHT = 3;
+	private static final int SHARDS = 4;
+
+	private static final String DEVICE_ID = "benchmark";
+	private static final String DOMAIN_NAME = "benchmark" + ListSDB.MOBILE_DOMAIN_NAME_SUFFIX;
+	private static final long START_TIME = 1400000000000L;
+	private static final long INTERVAL = 1000L * 60;
+
+	public static void main(String[] args) throws Exception {
+		int rowCount = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+		long latency = (args.length > 1) ? Long.parseLong(args[1]) : DEFAULT_LATENCY;
+		double throttleRate = (args.length > 2) ? Double.parseDouble(args[2]) : DEFAULT_THROTTLE_RATE;
+
+		InMemoryBackend backend = new InMemoryBackend();
+		backend.setLatency(latency);
+		backend.setThrottleRate(throttleRate);
+		RequestExecutor executor = new RequestExecutor(backend);
+		executor.setRetries(10, 10, 1000);
+
+		// One row per minute, so every row has its own timestamp and the order is known.
+		Random random = new Random(42);
+		List<Data> rows = new ArrayList<Data>(rowCount);
+		for (int i = 0; i < rowCount; i++) {
+			long time = START_TIME + i * INTERVAL;
+			rows.add(new Data(new Timestamp(time), new Timestamp(time - INTERVAL),
+					random.nextInt(Integer.MAX_VALUE), random.nextInt(Integer.MAX_VALUE),
+					roundCoordinate(random.nextDouble() * 180 - 90),
+					roundCoordinate(random.nextDouble() * 360 - 180)));
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(BATCHES_IN_FLIGHT, SHARDS));
+		try {
+			executor.createDomain(new CreateDomainRequest(DOMAIN_NAME));
+
+			long start = System.nanoTime();
+			push(executor, pool, rows);
+			report("Push", start, executor);
+			check(backend.getItemCount(DOMAIN_NAME) == rowCount,
+					"Domain holds " + backend.getItemCount(DOMAIN_NAME) + " items, expected " + rowCount);
+
+			Timestamp earliest = rows.get(0).getTimestamp();
+			Timestamp latest = rows.get(rowCount - 1).getTimestamp();
+
+			executor.resetCounters();
+			start = System.nanoTime();
+			verify(rows, selectAll(executor, generateRangeSelect(earliest, latest)));
+			report("Paged select", start, executor);
+
+			executor.resetCounters();
+			start = System.nanoTime();
+			verify(rows, selectSharded(executor, pool, earliest, latest));
+			report("Sharded select", start, executor);
+
+			executor.resetCounters();
+			start = System.nanoTime();
+			long count = count(executor, earliest, latest);
+			report("Count", start, executor);
+			check(count == rowCount, "Counted " + count + " items, expected " + rowCount);
+		} finally {
+			pool.shutdown();
+		}
+		System.out.println("Verified " + rowCount + " rows. Backend received "
+				+ backend.getRequestCount() + " requests.");
+	}
+
+	/**
+	 * Upload rows in batches of ListSDB.MAX_BATCH_SIZE, BATCHES_IN_FLIGHT at a time.
+	 */
+	private static void push(final RequestExecutor executor, ExecutorService pool, List<Data> rows)
+			throws Exception {
+		List<Future<Void>> batches = new ArrayList<Future<Void>>();
+		for (int from = 0; from < rows.size(); from += ListSDB.MAX_BATCH_SIZE) {
+			final List<ReplaceableItem> items = new ArrayList<ReplaceableItem>(ListSDB.MAX_BATCH_SIZE);
+			for (int i = from; i < Math.min(rows.size(), from + ListSDB.MAX_BATCH_SIZE); i++) {
+				PutAttributesRequest par = ListSDBUtils.generateDataPutAttributesRequest(rows.get(i), DOMAIN_NAME,
+						ListSDBUtils.generateItemName(DEVICE_ID, ListSDB.MOBILE_DOMAIN_NAME_SUFFIX, i, null));
+				items.add(new ReplaceableItem(par.getItemName(), par.getAttributes()));
+			}
+			batches.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					executor.batchPutAttributes(new BatchPutAttributesRequest(DOMAIN_NAME, items));
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> batch : batches) {
+			batch.get();
+		}
+	}
+
+	/**
+	 * The range select ListSDB generates for all fields.
+	 */
+	private static SelectRequest generateRangeSelect(Timestamp earliest, Timestamp latest) {
+		return new SelectRequest("select * from `" + DOMAIN_NAME + "` where "
+				+ ListSDB.TIMESTAMP_ATTRIBUTE + " >= '" + ListSDBUtils.padTimestamp(earliest) + "' and "
+				+ ListSDB.TIMESTAMP_ATTRIBUTE + " <= '" + ListSDBUtils.padTimestamp(latest) + "' order by "
+				+ ListSDB.TIMESTAMP_ATTRIBUTE);
+	}
+
+	/**
+	 * Fetch every page of a select.
+	 */
+	private static List<Data> selectAll(RequestExecutor executor, SelectRequest selectRequest) {
+		List<Data> rows = new ArrayList<Data>();
+		String nextToken = null;
+		do {
+			selectRequest.setNextToken(nextToken);
+			SelectResult result = executor.select(selectRequest);
+			rows.addAll(ListSDBUtils.convertResultToDataList(result));
+			nextToken = result.getNextToken();
+		} while (nextToken != null);
+		return rows;
+	}
+
+	/**
+	 * Split the range into SHARDS consecutive shards, fetch them concurrently and
+	 * concatenate them in order, like ListSDB.selectSharded().
+	 */
+	private static List<Data> selectSharded(final RequestExecutor executor, ExecutorService pool,
+			Timestamp earliest, Timestamp latest) throws Exception {
+		long step = (latest.getTime() - earliest.getTime() + 1) / SHARDS;
+		List<Future<List<Data>>> shards = new ArrayList<Future<List<Data>>>(SHARDS);
+		for (int i = 0; i < SHARDS; i++) {
+			Timestamp shardEarliest = new Timestamp(earliest.getTime() + i * step);
+			Timestamp shardLatest = (i == SHARDS - 1) ? latest
+					: new Timestamp(earliest.getTime() + (i + 1) * step - 1);
+			final SelectRequest shard = generateRangeSelect(shardEarliest, shardLatest);
+			shards.add(pool.submit(new Callable<List<Data>>() {
+				@Override
+				public List<Data> call() {
+					return selectAll(executor, shard);
+				}
+			}));
+		}
+		List<Data> rows = new ArrayList<Data>();
+		for (Future<List<Data>> shard : shards) {
+			rows.addAll(shard.get());
+		}
+		return rows;
+	}
+
+	/**
+	 * Count the range with count(*), summing partial counts across pages.
+	 */
+	private static long count(RequestExecutor executor, Timestamp earliest, Timestamp latest) {
+		SelectRequest selectRequest = new SelectRequest("select count(*) from `" + DOMAIN_NAME + "` where "
+				+ ListSDB.TIMESTAMP_ATTRIBUTE + " >= '" + ListSDBUtils.padTimestamp(earliest) + "' and "
+				+ ListSDB.TIMESTAMP_ATTRIBUTE + " <= '" + ListSDBUtils.padTimestamp(latest) + "'");
+		long count = 0;
+		String nextToken = null;
+		do {
+			selectRequest.setNextToken(nextToken);
+			SelectResult result = executor.select(selectRequest);
+			count += Long.parseLong(result.getItems().get(0).getAttributes().get(0).getValue());
+			nextToken = result.getNextToken();
+		} while (nextToken != null);
+		return count;
+	}
+
+	/**
+	 * Check that rows were read back in order with every field intact.
+	 * @throws AssertionError on the first mismatch.
+	 */
+	private static void verify(List<Data> expected, List<Data> actual) {
+		check(expected.size() == actual.size(), "Read " + actual.size() + " rows, expected " + expected.size());
+		for (int i = 0; i < expected.size(); i++) {
+			Data e = expected.get(i);
+			Data a = actual.get(i);
+			check(e.getTimestamp().equals(a.getTimestamp())
+					&& e.getTimeframe().equals(a.getTimeframe())
+					&& e.getUpData() == a.getUpData()
+					&& e.getDownData() == a.getDownData()
+					&& e.getLatitude() == a.getLatitude()
+					&& e.getLongitude() == a.getLongitude(), "Row " + i + " does not match");
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) throw new AssertionError(message);
+	}
+
+	private static void report(String phase, long start, RequestExecutor executor) {
+		System.out.printf("%s: %.1f ms, %d requests, %d retries, %d throttled, %d ms rate limited%n",
+				phase, (System.nanoTime() - start) / 1e6, executor.getRequestCount(),
+				executor.getRetryCount(), executor.getThrottledCount(), executor.getRateLimitedMillis());
+	}
+
+	/**
+	 * Coordinates are uploaded as floats, so that is the precision they decode to.
+	 */
+	private static double roundCoordinate(double coordinate) {
+		return Double.parseDouble(Float.toString((float) coordinate));
+	}
+}
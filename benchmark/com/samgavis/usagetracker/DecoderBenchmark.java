@@ -0,0 +1,294 @@
+/**
+ * DecoderBenchmark.java
+ * Standalone benchmark of the SimpleDB item decoder. Times the original
+ * decoder, which scanned an item's attributes once per field, against
+ * ListSDBUtils.convertItemToCall and convertItemToData on synthetic items,
+ * and checks that both produce the same Calls and Data.
+ *
+ * The original decoder cannot parse negative coordinates, because SimpleDB
+ * zero padding puts the zeros in front of the sign. Items it rejects are
+ * checked against the values they were generated from instead.
+ *
+ * This is not part of the library. Compile it together with src/ and run it
+ * on a desktop JVM with android.jar and the AWS SDK on the classpath:
+ *
+ *   java -cp <classes>:android.jar:aws-android-sdk.jar \
+ *     com.samgavis.usagetracker.DecoderBenchmark [items] [rounds]
+ */
+
+package com.samgavis.usagetracker;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+
+public class DecoderBenchmark {
+
+	private static final int DEFAULT_ITEMS = 100000;
+	private static final int DEFAULT_ROUNDS = 10;
+	private static final String DEVICE_ID = "benchmark";
+
+	/**
+	 * Keeps decoded results reachable so the JIT cannot drop the work.
+	 */
+	private static long sSink;
+
+	public static void main(String[] args) {
+		int itemCount = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ITEMS;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+		Random random = new Random(42);
+		List<Call> calls = new ArrayList<Call>(itemCount);
+		List<Data> data = new ArrayList<Data>(itemCount);
+		for (int i = 0; i < itemCount; i++) {
+			long time = 1400000000000L + random.nextInt(Integer.MAX_VALUE);
+			calls.add(new Call(new Timestamp(time), String.valueOf(5550000000L + random.nextInt(9999999)),
+					1 + random.nextInt(3), random.nextInt(7200), randomLatitude(random), randomLongitude(random)));
+			data.add(new Data(new Timestamp(time), new Timestamp(time - random.nextInt(900000)),
+					random.nextInt(Integer.MAX_VALUE), random.nextInt(Integer.MAX_VALUE),
+					randomLatitude(random), randomLongitude(random)));
+		}
+
+		List<Item> callItems = new ArrayList<Item>(itemCount);
+		List<Item> dataItems = new ArrayList<Item>(itemCount);
+		for (int i = 0; i < itemCount; i++) {
+			callItems.add(toItem(ListSDBUtils.generateCallPutAttributesRequest(calls.get(i), "calls",
+					ListSDBUtils.generateItemName(DEVICE_ID, ListSDB.CALL_DOMAIN_NAME_SUFFIX, i, null))));
+			dataItems.add(toItem(ListSDBUtils.generateDataPutAttributesRequest(data.get(i), "data",
+					ListSDBUtils.generateItemName(DEVICE_ID, ListSDB.MOBILE_DOMAIN_NAME_SUFFIX, i, null))));
+		}
+
+		int rejected = verify(calls, callItems, data, dataItems);
+		System.out.println("Verified " + (2 * itemCount) + " items. " + rejected
+				+ " were rejected by the old decoder and checked against their source values.");
+
+		// Only items the old decoder can parse are timed, so both decoders do the same work.
+		List<Item> timedCallItems = new ArrayList<Item>(itemCount);
+		List<Item> timedDataItems = new ArrayList<Item>(itemCount);
+		for (int i = 0; i < itemCount; i++) {
+			if (calls.get(i).getLatitude() >= 0 && calls.get(i).getLongitude() >= 0) {
+				timedCallItems.add(callItems.get(i));
+			}
+			if (data.get(i).getLatitude() >= 0 && data.get(i).getLongitude() >= 0) {
+				timedDataItems.add(dataItems.get(i));
+			}
+		}
+
+		// Warm up both decoders before timing.
+		for (int round = 0; round < 3; round++) {
+			timeOld(timedCallItems, timedDataItems);
+			timeNew(timedCallItems, timedDataItems);
+		}
+		long oldNanos = 0;
+		long newNanos = 0;
+		for (int round = 0; round < rounds; round++) {
+			oldNanos += timeOld(timedCallItems, timedDataItems);
+			newNanos += timeNew(timedCallItems, timedDataItems);
+		}
+		int decoded = rounds * (timedCallItems.size() + timedDataItems.size());
+		System.out.println("Timed " + decoded + " decodes per decoder.");
+		System.out.printf("Old decoder: %.1f ns/item%n", (double) oldNanos / decoded);
+		System.out.printf("New decoder: %.1f ns/item%n", (double) newNanos / decoded);
+		System.out.printf("Speedup: %.2fx%n", (double) oldNanos / newNanos);
+		System.out.println("(checksum " + sSink + ")");
+	}
+
+	/**
+	 * Check that both decoders agree on every item, and that the new decoder
+	 * returns the source values of items the old one rejects.
+	 * @return Number of items the old decoder rejected.
+	 * @throws AssertionError on the first mismatch.
+	 */
+	private static int verify(List<Call> calls, List<Item> callItems, List<Data> data, List<Item> dataItems) {
+		int rejected = 0;
+		for (int i = 0; i < callItems.size(); i++) {
+			Call decoded = ListSDBUtils.convertItemToCall(callItems.get(i));
+			Call expected;
+			try {
+				expected = OldDecoder.convertItemToCall(callItems.get(i));
+			} catch (NumberFormatException e) {
+				expected = roundCoordinates(calls.get(i));
+				rejected++;
+			}
+			check(callItems.get(i), expected.getTimestamp().equals(decoded.getTimestamp())
+					&& expected.getPhoneNumber().equals(decoded.getPhoneNumber())
+					&& expected.getType() == decoded.getType()
+					&& expected.getDuration() == decoded.getDuration()
+					&& expected.getLatitude() == decoded.getLatitude()
+					&& expected.getLongitude() == decoded.getLongitude());
+		}
+		for (int i = 0; i < dataItems.size(); i++) {
+			Data decoded = ListSDBUtils.convertItemToData(dataItems.get(i));
+			Data expected;
+			try {
+				expected = OldDecoder.convertItemToData(dataItems.get(i));
+			} catch (NumberFormatException e) {
+				expected = roundCoordinates(data.get(i));
+				rejected++;
+			}
+			check(dataItems.get(i), expected.getTimestamp().equals(decoded.getTimestamp())
+					&& expected.getTimeframe().equals(decoded.getTimeframe())
+					&& expected.getUpData() == decoded.getUpData()
+					&& expected.getDownData() == decoded.getDownData()
+					&& expected.getLatitude() == decoded.getLatitude()
+					&& expected.getLongitude() == decoded.getLongitude());
+		}
+		return rejected;
+	}
+
+	private static void check(Item item, boolean match) {
+		if (!match) {
+			throw new AssertionError("Decoders disagree on item " + item.getName() + ": " + item.getAttributes());
+		}
+	}
+
+	private static long timeOld(List<Item> callItems, List<Item> dataItems) {
+		long start = System.nanoTime();
+		for (Item item : callItems) {
+			sSink += OldDecoder.convertItemToCall(item).getDuration();
+		}
+		for (Item item : dataItems) {
+			sSink += OldDecoder.convertItemToData(item).getUpData();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long timeNew(List<Item> callItems, List<Item> dataItems) {
+		long start = System.nanoTime();
+		for (Item item : callItems) {
+			sSink += ListSDBUtils.convertItemToCall(item).getDuration();
+		}
+		for (Item item : dataItems) {
+			sSink += ListSDBUtils.convertItemToData(item).getUpData();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Coordinates are uploaded as floats, so that is the precision they decode to.
+	 */
+	private static Call roundCoordinates(Call call) {
+		return new Call(call.getTimestamp(), call.getPhoneNumber(), call.getType(), call.getDuration(),
+				Double.parseDouble(Float.toString((float) call.getLatitude())),
+				Double.parseDouble(Float.toString((float) call.getLongitude())));
+	}
+
+	private static Data roundCoordinates(Data data) {
+		return new Data(data.getTimestamp(), data.getTimeframe(), data.getUpData(), data.getDownData(),
+				Double.parseDouble(Float.toString((float) data.getLatitude())),
+				Double.parseDouble(Float.toString((float) data.getLongitude())));
+	}
+
+	private static double randomLatitude(Random random) {
+		return random.nextDouble() * 180 - 90;
+	}
+
+	private static double randomLongitude(Random random) {
+		return random.nextDouble() * 360 - 180;
+	}
+
+	/**
+	 * Convert a PutAttributesRequest into the Item a select would return for it.
+	 */
+	private static Item toItem(PutAttributesRequest par) {
+		List<Attribute> attributes = new ArrayList<Attribute>(par.getAttributes().size());
+		for (ReplaceableAttribute attribute : par.getAttributes()) {
+			attributes.add(new Attribute(attribute.getName(), attribute.getValue()));
+		}
+		return new Item(par.getItemName(), attributes);
+	}
+
+	/**
+	 * The decoder before user-006, which scanned the attributes once per field.
+	 */
+	private static class OldDecoder {
+
+		private static Call convertItemToCall(Item item) {
+			return new Call(getTimestampFromItem(item), getPhoneNumberFromItem(item), getTypeFromItem(item),
+					getDurationFromItem(item), getLatFromItem(item), getLongFromItem(item));
+		}
+
+		private static Data convertItemToData(Item item) {
+			return new Data(getTimestampFromItem(item), getTimeframeFromItem(item), getUpDataFromItem(item),
+					getDownDataFromItem(item), getLatFromItem(item), getLongFromItem(item));
+		}
+
+		private static Timestamp getTimestampFromItem(Item item) {
+			return new Timestamp(getLongValue(ListSDB.TIMESTAMP_ATTRIBUTE, item.getAttributes()));
+		}
+
+		private static double getLatFromItem(Item item) {
+			return getDoubleValue(ListSDB.LAT_ATTRIBUTE, item.getAttributes());
+		}
+
+		private static double getLongFromItem(Item item) {
+			return getDoubleValue(ListSDB.LONG_ATTRIBUTE, item.getAttributes());
+		}
+
+		private static String getPhoneNumberFromItem(Item item) {
+			return getStringValue(ListSDB.PHONE_NUMBER_ATTRIBUTE, item.getAttributes());
+		}
+
+		private static int getTypeFromItem(Item item) {
+			return getIntValue(ListSDB.TYPE_ATTRIBUTE, item.getAttributes());
+		}
+
+		private static long getDurationFromItem(Item item) {
+			return getLongValue(ListSDB.DURATION_ATTRIBUTE, item.getAttributes());
+		}
+
+		private static Timestamp getTimeframeFromItem(Item item) {
+			return new Timestamp(getLongValue(ListSDB.TIMEFRAME_ATTRIBUTE, item.getAttributes()));
+		}
+
+		private static long getUpDataFromItem(Item item) {
+			return getLongValue(ListSDB.UP_DATA_ATTRIBUTE, item.getAttributes());
+		}
+
+		private static long getDownDataFromItem(Item item) {
+			return getLongValue(ListSDB.DOWN_DATA_ATTRIBUTE, item.getAttributes());
+		}
+
+		private static String getStringValue(String attributeName, List<Attribute> attributes) {
+			for (Attribute attribute : attributes) {
+				if (attribute.getName().equals(attributeName)) {
+					return attribute.getValue();
+				}
+			}
+			return "";
+		}
+
+		private static int getIntValue(String attributeName, List<Attribute> attributes) {
+			for (Attribute attribute : attributes) {
+				if (attribute.getName().equals(attributeName)) {
+					return Integer.parseInt(attribute.getValue());
+				}
+			}
+			return 0;
+		}
+
+		private static long getLongValue(String attributeName, List<Attribute> attributes) {
+			for (Attribute attribute : attributes) {
+				if (attribute.getName().equals(attributeName)) {
+					return Long.parseLong(attribute.getValue());
+				}
+			}
+			return 0;
+		}
+
+		private static double getDoubleValue(String attributeName, List<Attribute> attributes) {
+			for (Attribute attribute : attributes) {
+				if (attribute.getName().equals(attributeName)) {
+					return Double.parseDouble(attribute.getValue());
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -12,6 +12,7 @@ import java.io.Serializable;
 import java.sql.Timestamp;
 
 import android.content.Context;
+import android.location.Location;
 
 public class Call implements Serializable {
 
@@ -24,6 +25,12 @@ public class Call implements Serializable {
 	private double mLatitude;
 	private double mLongitude;
 	
+	/**
+	 * Id of the local row this was read from, or -1 if it was not read from
+	 * the local database. Used to track upload progress.
+	 */
+	private transient long mRowId = -1;
+	
 	/**
 	 * Public constructor.
 	 * 
@@ -43,6 +50,15 @@ public class Call implements Serializable {
 		mLongitude = longitude;
 	}
 	
+	/**
+	 * Copy constructor.
+	 * @param call Call to copy.
+	 */
+	protected Call(Call call) {
+		this((call.mTimestamp == null) ? null : (Timestamp) call.mTimestamp.clone(), 
+				call.mPhoneNumber, call.mType, call.mDuration, call.mLatitude, call.mLongitude);
+	}
+	
 	/**
 	 * Public constructor that uses current location. If location is unavailable, Lattitude and Longitude
 	 * are both set to 0.0.
@@ -54,16 +70,16 @@ public class Call implements Serializable {
 	 * @param context Context of current activity.
 	 */
 	public Call(Timestamp timestamp, String phoneNumber, int type, long duration, Context context) {	
-		GPSTracker gps = new GPSTracker(context);
+		Location location = LocationCache.getInstance(context).getLocation();
 
 		mTimestamp = timestamp;
 		mPhoneNumber = phoneNumber;
 		mType = type;
 		mDuration = duration;
 		
-		if(gps.canGetLocation()){
-			mLatitude = gps.getLatitude();
-			mLongitude = gps.getLongitude();
+		if (location != null) {
+			mLatitude = location.getLatitude();
+			mLongitude = location.getLongitude();
 		} else {
 			mLatitude = 0.0;
 			mLongitude = 0.0;
@@ -153,4 +169,18 @@ public class Call implements Serializable {
 	public void setLongitude(double longitude) {
 		mLongitude = longitude;
 	}
+	
+	/**
+	 * @return the local row id
+	 */
+	protected long getRowId() {
+		return mRowId;
+	}
+	
+	/**
+	 * @param rowId the local row id to set
+	 */
+	protected void setRowId(long rowId) {
+		mRowId = rowId;
+	}
 }
@@ -4,15 +4,20 @@
  * 
  * CallCacheService.java
  * An IntentService that caches Call objects to local SQLite
- * database.
+ * database. Only calls newer than the last captured call are
+ * read from the call log.
  */
 
 package com.samgavis.usagetracker;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.app.IntentService;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.provider.CallLog;
 
@@ -20,26 +25,81 @@ public class CallCacheService extends IntentService {
 
 	private static final String TAG = "CallCacheService";
 	
+	/**
+	 * Watermark of the last captured call, kept by CallListSQL in the same 
+	 * transaction as the calls. Call log ids only grow, while a call's date is 
+	 * when it started, so a call that ends after a later one started would be 
+	 * missed by a date watermark. Older versions kept the watermark in these 
+	 * preferences, which are read only until the first call is captured.
+	 */
+	private static final String PREFS_NAME = "usagetracker_calls";
+	private static final String LAST_ID_KEY = "last_id";
+	
+	private static final String[] PROJECTION = { CallLog.Calls._ID, CallLog.Calls.NUMBER,
+		CallLog.Calls.TYPE, CallLog.Calls.DATE, CallLog.Calls.DURATION };
+	private static final String[] ID_PROJECTION = { CallLog.Calls._ID };
+	
 	public CallCacheService() {
 		super(TAG);
 	}
 
 	@Override
 	protected void onHandleIntent(Intent intent) {
-		Cursor cursor = getContentResolver().query(CallLog.Calls.CONTENT_URI,null, null,null, null);
-		int iNumber = cursor.getColumnIndex(CallLog.Calls.NUMBER ); 
-		int iType = cursor.getColumnIndex(CallLog.Calls.TYPE );
-		int iDate = cursor.getColumnIndex(CallLog.Calls.DATE);
-		int iDuration = cursor.getColumnIndex(CallLog.Calls.DURATION);
+		CallListSQL callList = CallListSQL.getInstance(this);
+		long lastId = callList.getLastCallLogId();
+		if (lastId < 0) {
+			SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+			lastId = prefs.getLong(LAST_ID_KEY, -1);
+		}
+		
+		if (lastId < 0) {
+			// Nothing captured yet. Start from the most recent call instead of 
+			// importing the whole call log.
+			Long maxId = getMaxId();
+			if (maxId == null) return;
+			lastId = maxId - 1;
+		}
+		Cursor cursor = getContentResolver().query(CallLog.Calls.CONTENT_URI, PROJECTION, 
+				CallLog.Calls._ID + " > ?", new String[] { String.valueOf(lastId) }, 
+				CallLog.Calls._ID + " ASC");
+		if (cursor == null) return;
 		
-		String number = cursor.getString(iNumber);
-		int type = Integer.parseInt(cursor.getString(iType));
-		Timestamp date = new Timestamp(Long.parseLong(cursor.getString(iDate)));
-		long duration = Long.parseLong(cursor.getString(iDuration));
+		List<Call> calls = new ArrayList<Call>();
+		try {
+			int iId = cursor.getColumnIndex(CallLog.Calls._ID);
+			int iNumber = cursor.getColumnIndex(CallLog.Calls.NUMBER); 
+			int iType = cursor.getColumnIndex(CallLog.Calls.TYPE);
+			int iDate = cursor.getColumnIndex(CallLog.Calls.DATE);
+			int iDuration = cursor.getColumnIndex(CallLog.Calls.DURATION);
+			
+			while (cursor.moveToNext()) {
+				lastId = cursor.getLong(iId);
+				calls.add(new Call(new Timestamp(cursor.getLong(iDate)), cursor.getString(iNumber), 
+						cursor.getInt(iType), cursor.getLong(iDuration), this));
+			}
+		} finally {
+			cursor.close();
+		}
+		if (calls.isEmpty()) return;
 		
-		if (cursor.moveToLast()) {
-			Call call = new Call(date, number, type, duration, this);
-			(new CallListSQL(this)).addCall(call);
+		callList.addCalls(calls, lastId);
+	}
+	
+	/**
+	 * @return The id of the newest call in the call log, or null if the call 
+	 * log is empty or cannot be read.
+	 */
+	private Long getMaxId() {
+		// The call log provider rejects aggregate projections, so sort by id 
+		// and read the first row instead of selecting MAX(_id).
+		Cursor cursor = getContentResolver().query(CallLog.Calls.CONTENT_URI, ID_PROJECTION, 
+				null, null, CallLog.Calls._ID + " DESC");
+		if (cursor == null) return null;
+		try {
+			if (!cursor.moveToFirst() || cursor.isNull(0)) return null;
+			return cursor.getLong(0);
+		} finally {
+			cursor.close();
 		}
 	}	
 }
@@ -10,20 +10,54 @@ package com.samgavis.usagetracker;
 
 import java.sql.Timestamp;
 import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
 
-import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
 import com.amazonaws.services.simpledb.model.PutAttributesRequest;
 import com.amazonaws.services.simpledb.model.SelectResult;
 
 public class CallListSDB extends ListSDB<Call> {
+	
+	private final RollupListSDB mRollupListSDB;
 
 	/**
 	 * Constructor.
-	 * @param client AmazonSimpleDBClient to access SimpleDB.
+	 * @param backend StorageBackend to access SimpleDB.
 	 * @param domainPrefix Domain prefix for user.
+	 * @param context Current context.
 	 */
-	protected CallListSDB(AmazonSimpleDBClient client, String domainPrefix) {
-		super(client, domainPrefix);
+	protected CallListSDB(StorageBackend backend, String domainPrefix, Context context) {
+		super(backend, domainPrefix, context);
+		mRollupListSDB = new RollupListSDB(backend, domainPrefix, CALL_ROLLUP_DOMAIN_NAME_SUFFIX, context);
+	}
+	
+	/**
+	 * Updates StorageBackend here and on the rollup repository.
+	 * @param backend New backend.
+	 */
+	@Override
+	protected void updateBackend(StorageBackend backend) {
+		super.updateBackend(backend);
+		mRollupListSDB.updateBackend(backend);
+	}
+	
+	/**
+	 * Sets read consistency here and on the rollup repository.
+	 * @param readConsistency Consistency to use.
+	 */
+	@Override
+	protected void setReadConsistency(ReadConsistency readConsistency) {
+		super.setReadConsistency(readConsistency);
+		mRollupListSDB.setReadConsistency(readConsistency);
+	}
+	
+	/**
+	 * Get the repository for this stream's rollups.
+	 * @return RollupListSDB that shares this repository's backend.
+	 */
+	protected RollupListSDB getRollupList() {
+		return mRollupListSDB;
 	}
 	
 	/**
@@ -43,6 +77,16 @@ public class CallListSDB extends ListSDB<Call> {
 		return super.addItem(call, CALL_DOMAIN_NAME);
 	}
 	
+	/**
+	 * Add a batch of calls to call domain.
+	 * @param calls Calls to add. At most ListSDB.MAX_BATCH_SIZE items.
+	 * @return Calls that were uploaded. Fewer than were passed in implies that
+	 * AmazonSimpleDBClient must be updated.
+	 */
+	protected List<Call> addCalls(List<Call> calls) {
+		return super.addItems(calls, CALL_DOMAIN_NAME);
+	}
+	
 	/**
 	 * Get PutAttributesRequest for call.
 	 * @param call Call for which to get PutAttributesRequest.
@@ -50,7 +94,8 @@ public class CallListSDB extends ListSDB<Call> {
 	 */
 	@Override
 	protected PutAttributesRequest getPutAttributesRequest(Call call) {
-		return ListSDBUtils.generateCallPutAttributesRequest(call, CALL_DOMAIN_NAME);
+		return ListSDBUtils.generateCallPutAttributesRequest(call, CALL_DOMAIN_NAME, 
+				ListSDBUtils.generateItemName(getDeviceId(), CALL_DOMAIN_NAME_SUFFIX, call.getRowId(), call.getTimestamp()));
 	}
 	
 	/**
@@ -76,6 +121,42 @@ public class CallListSDB extends ListSDB<Call> {
 		return super.getItems(earliest, latest, CALL_DOMAIN_NAME);
 	}
 	
+	/**
+	 * Iterate over calls between timestamps (inclusive), fetching pages on demand.
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @return Iterator over calls in range ordered from oldest to newest.
+	 * @see ListSDB
+	 */
+	protected SelectIterator<Call> iterateCalls(Timestamp earliest, Timestamp latest) {
+		return super.iterateItems(earliest, latest, CALL_DOMAIN_NAME);
+	}
+	
+	/**
+	 * Get only some fields of calls between timestamps (inclusive).
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @param fields Fields to fetch. Timestamp is always fetched. Null fetches all fields.
+	 * @return List of calls in range ordered from oldest to newest. Null if error
+	 * reading from AmazonSimpleDBClient.
+	 * @see ListSDB
+	 */
+	protected List<Call> getCalls(Timestamp earliest, Timestamp latest, Set<Field> fields) {
+		return super.getItems(earliest, latest, null, fields, CALL_DOMAIN_NAME);
+	}
+	
+	/**
+	 * Iterate over only some fields of calls between timestamps (inclusive).
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @param fields Fields to fetch. Timestamp is always fetched. Null fetches all fields.
+	 * @return Iterator over calls in range ordered from oldest to newest.
+	 * @see ListSDB
+	 */
+	protected SelectIterator<Call> iterateCalls(Timestamp earliest, Timestamp latest, Set<Field> fields) {
+		return super.iterateItems(earliest, latest, fields, CALL_DOMAIN_NAME);
+	}
+	
 	/**
 	 * Get most recent call.
 	 * @return Most recent call. Null if error reading from AmazonSimpleDBClient.
@@ -92,6 +173,32 @@ public class CallListSDB extends ListSDB<Call> {
 		return super.getOldestItem(CALL_DOMAIN_NAME);
 	}
 
+	/**
+	 * Count calls between timestamps (inclusive) without fetching them.
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @return Number of calls in range. Null if error reading from AmazonSimpleDBClient.
+	 */
+	protected Long getCount(Timestamp earliest, Timestamp latest) {
+		return super.getCount(earliest, latest, CALL_DOMAIN_NAME);
+	}
+
+	/**
+	 * Get timestamp of call.
+	 */
+	@Override
+	protected Timestamp getTimestamp(Call call) {
+		return call.getTimestamp();
+	}
+	
+	/**
+	 * Copy call.
+	 */
+	@Override
+	protected Call copyItem(Call call) {
+		return new Call(call);
+	}
+
 	/**
 	 * Convert SelectResult to a list of calls.
 	 * @param result Result from SelectRequest.
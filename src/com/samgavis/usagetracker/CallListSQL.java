@@ -10,22 +10,45 @@
 package com.samgavis.usagetracker;
 
 import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.List;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 
 public class CallListSQL extends ListSQL<Call> {
 	
 	private static final String TAG = "CallListSQL";
 	
+	/**
+	 * Capture state name of the call log watermark.
+	 */
+	private static final String CALL_LOG_ID_STATE = "call_log_id";
+	
+	private static CallListSQL sInstance;
+	
+	private final RollupListSQL mRollupList;
+	
 	/**
 	 * Public constructor.
 	 * @param context Current context.
 	 */
 	public CallListSQL(Context context) {
 		super(context);
+		mRollupList = RollupListSQL.getInstance(context, CALL_ROLLUP_TABLE_NAME);
+	}
+	
+	/**
+	 * Get the shared instance for the call table.
+	 * @param context Current context.
+	 * @return Process-wide CallListSQL.
+	 */
+	protected static synchronized CallListSQL getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new CallListSQL(context);
+		}
+		return sInstance;
 	}
 
 	/**
@@ -37,12 +60,68 @@ public class CallListSQL extends ListSQL<Call> {
 	}
 	
 	/**
-	 * Generates a ConentValues object using call to be 
-	 * inserted into database.
+	 * Adds call objects to call table in a single transaction.
+	 * @param calls Calls to add to table.
+	 */
+	protected void addCalls(Collection<Call> calls) {
+		super.addItems(calls, CALL_TABLE_NAME);
+	}
+	
+	/**
+	 * Adds calls read from the call log and advances the call log watermark in
+	 * the same transaction, so a crash can neither lose nor duplicate calls.
+	 * @param calls Calls to add to table.
+	 * @param lastCallLogId Call log id of the newest call in calls.
+	 */
+	protected void addCalls(Collection<Call> calls, long lastCallLogId) {
+		beginTransaction();
+		try {
+			super.addItems(calls, CALL_TABLE_NAME);
+			setCaptureState(CALL_LOG_ID_STATE, lastCallLogId);
+			setTransactionSuccessful();
+		} finally {
+			endTransaction();
+		}
+	}
+	
+	/**
+	 * Get the call log id of the newest captured call.
+	 * @return Call log id, or -1 if no call has been captured.
+	 */
+	protected long getLastCallLogId() {
+		return getCaptureState(CALL_LOG_ID_STATE, -1);
+	}
+	
+	/**
+	 * Columns bound by bindValues().
+	 */
+	@Override
+	protected String[] getInsertColumns() {
+		return ListSQLUtils.CALL_INSERT_COLUMNS;
+	}
+	
+	/**
+	 * Binds call to a compiled insert statement.
+	 */
+	@Override
+	protected void bindValues(SQLiteStatement statement, Call call) {
+		ListSQLUtils.bindCallStatement(statement, call);
+	}
+	
+	/**
+	 * Adds new calls to the rollups in the same transaction.
 	 */
 	@Override
-	protected ContentValues generateValues(Call call) {
-		return ListSQLUtils.generateCallContentValues(call);
+	protected void onItemsAdded(Collection<Call> calls) {
+		mRollupList.addCalls(calls);
+	}
+	
+	/**
+	 * Get the rollups kept for this table.
+	 * @return Shared RollupListSQL.
+	 */
+	protected RollupListSQL getRollupList() {
+		return mRollupList;
 	}
 	
 	/**
@@ -61,6 +140,14 @@ public class CallListSQL extends ListSQL<Call> {
 		return ListSQLUtils.convertCursorToCall(cursor);
 	}
 	
+	/**
+	 * Get the row id call was read with.
+	 */
+	@Override
+	protected long getRowId(Call call) {
+		return call.getRowId();
+	}
+	
 	/**
 	 * Get number of call objects in table.
 	 * @return Number of call objects in table.
@@ -69,6 +156,44 @@ public class CallListSQL extends ListSQL<Call> {
 		return super.getCount(CALL_TABLE_NAME);
 	}
 	
+	/**
+	 * Get number of calls within range of timestamps (inclusive).
+	 * @param earliest Earliest time to include. Null means no lower bound.
+	 * @param latest Latest time to include. Null means no upper bound.
+	 * @return Number of calls in range.
+	 */
+	protected int getCount(Timestamp earliest, Timestamp latest) {
+		return super.getCount(earliest, latest, CALL_TABLE_NAME);
+	}
+	
+	/**
+	 * Get total call duration within range of timestamps (inclusive).
+	 * @param earliest Earliest time to include. Null means no lower bound.
+	 * @param latest Latest time to include. Null means no upper bound.
+	 * @return Sum of call durations in range.
+	 */
+	protected long getDurationTotal(Timestamp earliest, Timestamp latest) {
+		return super.getSum(DURATION_KEY, earliest, latest, CALL_TABLE_NAME);
+	}
+	
+	/**
+	 * Get timestamp of the oldest call in table.
+	 * @return Oldest timestamp, or null if table is empty.
+	 */
+	protected Timestamp getOldestTimestamp() {
+		Long timestamp = super.getMin(TIMESTAMP_KEY, null, null, CALL_TABLE_NAME);
+		return (timestamp == null) ? null : new Timestamp(timestamp);
+	}
+	
+	/**
+	 * Get timestamp of the newest call in table.
+	 * @return Newest timestamp, or null if table is empty.
+	 */
+	protected Timestamp getNewestTimestamp() {
+		Long timestamp = super.getMax(TIMESTAMP_KEY, null, null, CALL_TABLE_NAME);
+		return (timestamp == null) ? null : new Timestamp(timestamp);
+	}
+	
 	/**
 	 * Delete call with given timestamp.
 	 * @param timestamp Timestamp of the call to delete from table.
@@ -77,6 +202,38 @@ public class CallListSQL extends ListSQL<Call> {
 		super.deleteItem(timestamp, CALL_TABLE_NAME);
 	}
 	
+	/**
+	 * Get calls that have not been uploaded yet, in the order they were added.
+	 * @param limit Maximum number of calls to return.
+	 * @return Up to limit calls, with row ids set.
+	 */
+	protected List<Call> getCallsToUpload(int limit) {
+		return super.getItemsToUpload(limit, CALL_TABLE_NAME);
+	}
+	
+	/**
+	 * Get number of calls that have not been uploaded yet.
+	 * @return Number of calls above the upload state.
+	 */
+	protected int getCountToUpload() {
+		return super.getCountToUpload(CALL_TABLE_NAME);
+	}
+	
+	/**
+	 * Record that every row up to and including rowId was uploaded.
+	 * @param rowId Row id of the last uploaded call.
+	 */
+	protected void markUploaded(long rowId) {
+		super.markUploaded(rowId, CALL_TABLE_NAME);
+	}
+	
+	/**
+	 * Delete every uploaded row from table.
+	 */
+	protected void pruneUploaded() {
+		super.pruneUploaded(CALL_TABLE_NAME);
+	}
+	
 	/**
 	 * Delete all calls from table.
 	 */
@@ -13,6 +13,7 @@ import java.sql.Timestamp;
 import java.util.Date;
 
 import android.content.Context;
+import android.location.Location;
 
 public class Data implements Serializable {
 	
@@ -25,6 +26,12 @@ public class Data implements Serializable {
 	private double mLatitude;
 	private double mLongitude;
 	
+	/**
+	 * Id of the local row this was read from, or -1 if it was not read from
+	 * the local database. Used to track upload progress.
+	 */
+	private transient long mRowId = -1;
+	
 	/**
 	 * Public constructor.
 	 * 
@@ -46,6 +53,16 @@ public class Data implements Serializable {
 		mLongitude = longitude;
 	}
 	
+	/**
+	 * Copy constructor.
+	 * @param data Data to copy.
+	 */
+	protected Data(Data data) {
+		this((data.mTimestamp == null) ? null : (Timestamp) data.mTimestamp.clone(), 
+				(data.mTimeframe == null) ? null : (Timestamp) data.mTimeframe.clone(), 
+				data.mUpData, data.mDownData, data.mLatitude, data.mLongitude);
+	}
+	
 	/**
 	 * Public constructor that uses current time. Timeframe is set to null.
 	 * 
@@ -68,16 +85,16 @@ public class Data implements Serializable {
 	 * @param context Context of current activity.
 	 */
 	public Data(Timestamp timestamp, long upData, long downData, Context context) {
-		GPSTracker gps = new GPSTracker(context);
+		Location location = LocationCache.getInstance(context).getLocation();
 
 		mTimestamp = timestamp;
 		mTimeframe = null;
 		mUpData = upData;
 		mDownData = downData;
 		
-		if(gps.canGetLocation()){
-			mLatitude = gps.getLatitude();
-			mLongitude = gps.getLongitude();
+		if (location != null) {
+			mLatitude = location.getLatitude();
+			mLongitude = location.getLongitude();
 		} else {
 			mLatitude = 0.0;
 			mLongitude = 0.0;
@@ -93,16 +110,16 @@ public class Data implements Serializable {
 	 * @param context Context of current activity.
 	 */
 	public Data(long upData, long downData, Context context) {
-		GPSTracker gps = new GPSTracker(context);
+		Location location = LocationCache.getInstance(context).getLocation();
 
 		mTimestamp = new Timestamp(new Date().getTime());
 		mTimeframe = null;
 		mUpData = upData;
 		mDownData = downData;
 		
-		if(gps.canGetLocation()){
-			mLatitude = gps.getLatitude();
-			mLongitude = gps.getLongitude();
+		if (location != null) {
+			mLatitude = location.getLatitude();
+			mLongitude = location.getLongitude();
 		} else {
 			mLatitude = 0.0;
 			mLongitude = 0.0;
@@ -192,5 +209,19 @@ public class Data implements Serializable {
 	public void setLongitude(double longitude) {
 		mLongitude = longitude;
 	}
+	
+	/**
+	 * @return the local row id
+	 */
+	protected long getRowId() {
+		return mRowId;
+	}
+	
+	/**
+	 * @param rowId the local row id to set
+	 */
+	protected void setRowId(long rowId) {
+		mRowId = rowId;
+	}
 
 }
@@ -3,77 +3,264 @@
  * Date: 4-10-2014
  * 
  * DataCacheService.java
- * An IntentService that executes every 15 seconds and adds a new Data
- * object to the local SQLite database.
+ * An IntentService that adds a new Data object to the local SQLite
+ * database each time it runs. Each Data object holds the traffic
+ * since the previous sample rather than the cumulative counters.
+ * The service reschedules itself adaptively: it backs off while no
+ * traffic is seen and speeds up again when throughput rises.
+ * Samples with no traffic and no movement are not stored.
  */
 
 package com.samgavis.usagetracker;
 
+import java.util.List;
+
 import android.app.AlarmManager;
 import android.app.IntentService;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.TrafficStats;
+import android.os.Build;
+import android.os.SystemClock;
 
 public class DataCacheService extends IntentService {
 
 	private static final String TAG = "DataCacheService";
-	private static final int POLL_INTERVAL = 1000 * 15;
 	private static final int REQUEST_CODE = 0;
 	
+	/**
+	 * Default bounds on the time between samples.
+	 */
+	private static final long DEFAULT_MIN_POLL_INTERVAL = 1000 * 15; // 15 seconds
+	private static final long DEFAULT_MAX_POLL_INTERVAL = 1000 * 60 * 15; // 15 minutes
+	
+	/**
+	 * Default distance in meters the device has to move for an idle sample to be stored.
+	 */
+	private static final float DEFAULT_MOVEMENT_THRESHOLD = 100;
+	
+	/**
+	 * Scheduler state. Whether sampling is enabled is stored explicitly, since a 
+	 * one-shot alarm's PendingIntent may no longer exist once it has fired.
+	 */
+	private static final String PREFS_NAME = "usagetracker_sampling";
+	private static final String ENABLED_KEY = "enabled";
+	private static final String MIN_INTERVAL_KEY = "min_interval";
+	private static final String MAX_INTERVAL_KEY = "max_interval";
+	private static final String INTERVAL_KEY = "interval";
+	private static final String THROUGHPUT_KEY = "throughput";
+	private static final String MOVEMENT_THRESHOLD_KEY = "movement_threshold";
+	
+	/**
+	 * Convert cumulative counters into per-interval samples.
+	 */
+	private static final TrafficCounter sMobileCounter = new TrafficCounter("mobile");
+	private static final TrafficCounter sWifiCounter = new TrafficCounter("wifi");
+	
 	public DataCacheService() {
 		super(TAG);
 	}
 	
 	@Override
 	protected void onHandleIntent(Intent intent) {
-		long rxBytes = TrafficStats.getTotalRxBytes();
-        long txBytes = TrafficStats.getTotalTxBytes();
+		long rxBytes = getCounter(TrafficStats.getTotalRxBytes());
+        long txBytes = getCounter(TrafficStats.getTotalTxBytes());
 
-        long mobUp = TrafficStats.getMobileTxBytes();
-        long mobDown = TrafficStats.getMobileRxBytes();
+        long mobUp = getCounter(TrafficStats.getMobileTxBytes());
+        long mobDown = getCounter(TrafficStats.getMobileRxBytes());
 
-        long wifiUp = txBytes-(mobUp);
-        long wifiDown = rxBytes-(mobDown);
+        long wifiUp = Math.max(0, txBytes-(mobUp));
+        long wifiDown = Math.max(0, rxBytes-(mobDown));
 		
-		Data mMobileData = new Data(mobUp, mobDown, this);
-		Data mWifiData = new Data(wifiUp, wifiDown, this);
-
-		MobileDataListSQL mMobileList = new MobileDataListSQL(this);
-		WifiDataListSQL mWifiList = new WifiDataListSQL(this);
+		float threshold = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+				.getFloat(MOVEMENT_THRESHOLD_KEY, DEFAULT_MOVEMENT_THRESHOLD);
 		
-		mMobileList.addData(mMobileData);
-		mWifiList.addData(mWifiData);
+		List<Data> mMobileData = null;
+		List<Data> mWifiData = null;
+		try {
+			MobileDataListSQL mMobileList = MobileDataListSQL.getInstance(this);
+			WifiDataListSQL mWifiList = WifiDataListSQL.getInstance(this);
+			
+			// Wifi traffic is the total minus mobile, so when only the mobile counters
+			// reset, the wifi reading jumps by the mobile traffic lost in the reset. 
+			// That wifi interval cannot be recovered and is skipped.
+			boolean mobileReset = sMobileCounter.isCounterReset(mobUp, mobDown, mMobileList, this);
+			TrafficCounter.Reading mobile = sMobileCounter.sample(mobUp, mobDown, threshold, mMobileList, this);
+			TrafficCounter.Reading wifi;
+			if (mobileReset) {
+				wifi = sWifiCounter.rebase(wifiUp, wifiDown, mWifiList, this);
+			} else {
+				wifi = sWifiCounter.sample(wifiUp, wifiDown, threshold, mWifiList, this);
+			}
+			
+			if (mobile.isChanged() || wifi.isChanged()) {
+				// Both tables share one database, so commit all rows together with 
+				// the readings they were computed from.
+				mMobileList.beginTransaction();
+				try {
+					mMobileList.addData(mobile.getRows());
+					mWifiList.addData(wifi.getRows());
+					sMobileCounter.store(mobile, mMobileList);
+					sWifiCounter.store(wifi, mWifiList);
+					mMobileList.setTransactionSuccessful();
+				} finally {
+					mMobileList.endTransaction();
+				}
+			}
+			sMobileCounter.apply(mobile);
+			sWifiCounter.apply(wifi);
+			mMobileData = mobile.getRows();
+			mWifiData = wifi.getRows();
+		} finally {
+			// Always set the next alarm, or sampling would stop after one failure.
+			if (isServiceAlarmOn(this)) {
+				scheduleNextSample(this, mMobileData, mWifiData);
+			}
+		}
 	}
 	
 	/**
-	 * Set PendingIntent alarm for DataCacheService that runs every 15 seconds.
+	 * Treat unsupported counters as zero.
+	 * @param value Value returned by TrafficStats.
+	 * @return value, or 0 if it is TrafficStats.UNSUPPORTED.
+	 */
+	private static long getCounter(long value) {
+		return (value == TrafficStats.UNSUPPORTED) ? 0 : value;
+	}
+	
+	/**
+	 * Pick the time until the next sample and set the alarm. The interval doubles
+	 * (up to the maximum) while no traffic is seen, drops to the minimum when
+	 * throughput rises, and otherwise stays the same.
 	 * @param context Current context.
-	 * @param isOn Value to set for whether alarm is on.
+	 * @param mobileData Mobile rows that were just recorded, or null if sampling failed.
+	 * @param wifiData Wifi rows that were just recorded, or null if sampling failed.
 	 */
-	protected static void setServiceAlarm(Context context, boolean isOn) {
+	private static void scheduleNextSample(Context context, List<Data> mobileData, List<Data> wifiData) {
+		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		long minInterval = prefs.getLong(MIN_INTERVAL_KEY, DEFAULT_MIN_POLL_INTERVAL);
+		long maxInterval = prefs.getLong(MAX_INTERVAL_KEY, DEFAULT_MAX_POLL_INTERVAL);
+		long interval = prefs.getLong(INTERVAL_KEY, minInterval);
+		float lastThroughput = prefs.getFloat(THROUGHPUT_KEY, 0);
+		
+		if (mobileData == null || wifiData == null) {
+			setAlarm(context, Math.max(minInterval, Math.min(maxInterval, interval)));
+			return;
+		}
+		
+		// Only the last row of each stream covers the latest interval.
+		long bytes = 0;
+		long duration = 1;
+		if (!mobileData.isEmpty()) {
+			Data data = mobileData.get(mobileData.size() - 1);
+			bytes += data.getUpData() + data.getDownData();
+			duration = Math.max(duration, data.getTimestamp().getTime() - data.getTimeframe().getTime());
+		}
+		if (!wifiData.isEmpty()) {
+			Data data = wifiData.get(wifiData.size() - 1);
+			bytes += data.getUpData() + data.getDownData();
+			duration = Math.max(duration, data.getTimestamp().getTime() - data.getTimeframe().getTime());
+		}
+		float throughput = (float) bytes / duration;
+		
+		if (bytes == 0) {
+			interval = interval * 2;
+		} else if (throughput > lastThroughput) {
+			interval = minInterval;
+		}
+		interval = Math.max(minInterval, Math.min(maxInterval, interval));
+		
+		// Only this service reads the interval back, at the next sample, so the 
+		// write does not need to block the sample.
+		SharedPreferences.Editor editor = prefs.edit()
+			.putLong(INTERVAL_KEY, interval)
+			.putFloat(THROUGHPUT_KEY, throughput);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+			editor.apply();
+		} else {
+			editor.commit();
+		}
+		setAlarm(context, interval);
+	}
+	
+	/**
+	 * Set a one-shot alarm for the next sample. The alarm does not wake the device 
+	 * and is inexact on newer platforms, so it fires alongside other system work.
+	 * @param context Current context.
+	 * @param delay Milliseconds until the next sample.
+	 */
+	private static void setAlarm(Context context, long delay) {
 		Intent i = new Intent(context, DataCacheService.class);
 		PendingIntent pi = PendingIntent.getService(context,  REQUEST_CODE,  i, 0);
 		
 		AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-		
+		alarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delay, pi);
+	}
+	
+	/**
+	 * Set bounds on the time between samples. Takes effect from the next sample.
+	 * @param context Current context.
+	 * @param minInterval Shortest time between samples in milliseconds. Used while
+	 * throughput is rising.
+	 * @param maxInterval Longest time between samples in milliseconds. Reached after
+	 * repeated samples with no traffic.
+	 */
+	public static void setSamplingBounds(Context context, long minInterval, long maxInterval) {
+		context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+			.putLong(MIN_INTERVAL_KEY, minInterval)
+			.putLong(MAX_INTERVAL_KEY, Math.max(minInterval, maxInterval))
+			.commit();
+	}
+	
+	/**
+	 * Set how far the device has to move for a sample with no traffic to be stored.
+	 * Takes effect from the next sample.
+	 * @param context Current context.
+	 * @param meters Distance in meters.
+	 */
+	public static void setMovementThreshold(Context context, float meters) {
+		context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+			.putFloat(MOVEMENT_THRESHOLD_KEY, meters)
+			.commit();
+	}
+	
+	/**
+	 * Start or stop sampling. Starting takes a sample immediately and then
+	 * samples at the minimum interval until traffic stops.
+	 * @param context Current context.
+	 * @param isOn Value to set for whether alarm is on.
+	 */
+	protected static void setServiceAlarm(Context context, boolean isOn) {
+		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
 		if (isOn) {
-			alarmManager.setRepeating(AlarmManager.RTC, System.currentTimeMillis(), POLL_INTERVAL, pi);
+			prefs.edit()
+				.putBoolean(ENABLED_KEY, true)
+				.putLong(INTERVAL_KEY, prefs.getLong(MIN_INTERVAL_KEY, DEFAULT_MIN_POLL_INTERVAL))
+				.commit();
+			setAlarm(context, 0);
 		} else {
+			prefs.edit()
+				.putBoolean(ENABLED_KEY, false)
+				.commit();
+			
+			Intent i = new Intent(context, DataCacheService.class);
+			PendingIntent pi = PendingIntent.getService(context,  REQUEST_CODE,  i, 0);
+			
+			AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
 			alarmManager.cancel(pi);
 			pi.cancel();
 		}
 	}
 	
 	/**
-	 * Get whether or not alarm is on.
+	 * Get whether or not sampling is on.
 	 * @param context Current context.
-	 * @return True if alarm is on, false otherwise.
+	 * @return True if sampling was started and not stopped since, false otherwise.
 	 */
 	protected static boolean isServiceAlarmOn(Context context) {
-		Intent i = new Intent(context, DataCacheService.class);
-		PendingIntent pi = PendingIntent.getService(context, REQUEST_CODE, i, PendingIntent.FLAG_NO_CREATE);
-		return pi != null;
+		return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+				.getBoolean(ENABLED_KEY, false);
 	}
 }
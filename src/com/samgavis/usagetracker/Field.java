@@ -0,0 +1,53 @@
+/**
+ * Field.java
+ * Fields of Call and Data objects that can be requested from SimpleDB.
+ * Fields that are not requested keep their default values: zero, an
+ * empty phone number, or a null timeframe.
+ */
+
+package com.samgavis.usagetracker;
+
+import java.util.Set;
+
+public enum Field {
+	TIMESTAMP(ListSDB.TIMESTAMP_ATTRIBUTE),
+	LATITUDE(ListSDB.LAT_ATTRIBUTE),
+	LONGITUDE(ListSDB.LONG_ATTRIBUTE),
+	PHONE_NUMBER(ListSDB.PHONE_NUMBER_ATTRIBUTE),
+	TYPE(ListSDB.TYPE_ATTRIBUTE),
+	DURATION(ListSDB.DURATION_ATTRIBUTE),
+	TIMEFRAME(ListSDB.TIMEFRAME_ATTRIBUTE),
+	UP_DATA(ListSDB.UP_DATA_ATTRIBUTE),
+	DOWN_DATA(ListSDB.DOWN_DATA_ATTRIBUTE);
+	
+	private final String mAttribute;
+	
+	private Field(String attribute) {
+		mAttribute = attribute;
+	}
+	
+	/**
+	 * @return the SimpleDB attribute that stores this field
+	 */
+	protected String getAttribute() {
+		return mAttribute;
+	}
+	
+	/**
+	 * Build the output list of a SimpleDB select. Timestamp is always included
+	 * so that results can be ordered and identified. Fields are listed in
+	 * declaration order, so equal sets give identical queries.
+	 * @param fields Fields to select. Null selects every attribute.
+	 * @return Output list such as "timestamp, updata, downdata", or "*".
+	 */
+	protected static String toOutputList(Set<Field> fields) {
+		if (fields == null) return "*";
+		StringBuilder output = new StringBuilder(TIMESTAMP.mAttribute);
+		for (Field field : values()) {
+			if (field != TIMESTAMP && fields.contains(field)) {
+				output.append(", ").append(field.mAttribute);
+			}
+		}
+		return output.toString();
+	}
+}
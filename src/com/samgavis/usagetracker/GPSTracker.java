@@ -17,6 +17,11 @@ import android.os.IBinder;
 import android.provider.Settings;
 import android.util.Log;
  
+/**
+ * @deprecated Every instance registers its own location listener that is
+ * never removed. Use {@link LocationCache} instead.
+ */
+@Deprecated
 public class GPSTracker extends Service implements LocationListener {
  
     private final Context mContext;
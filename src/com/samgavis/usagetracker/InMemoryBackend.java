@@ -0,0 +1,513 @@
+/**
+ * InMemoryBackend.java
+ * StorageBackend that keeps every domain in memory, so the upload and
+ * query paths can be exercised without network access. It understands
+ * the subset of the SimpleDB select syntax that ListSDB generates:
+ *
+ *   select (* | count(*) | attr, ...) from `domain`
+ *     [where attr op 'value' [and attr op 'value' ...]]
+ *     [order by attr [asc | desc]] [limit n]
+ *
+ * where op is one of = != < <= > >=. Values are compared as strings, like
+ * SimpleDB does. Each attribute holds a single value and puts always
+ * replace it. Latency and throttling can be injected to approximate the
+ * real service. BackendBenchmark in benchmark/ pushes and queries through
+ * it behind a RequestExecutor.
+ */
+
+package com.samgavis.usagetracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.ListDomainsRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
+import com.amazonaws.services.simpledb.model.NoSuchDomainException;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+public class InMemoryBackend implements StorageBackend {
+
+	/**
+	 * Limits of the real service.
+	 */
+	private static final int DEFAULT_SELECT_LIMIT = 100;
+	private static final int MAX_SELECT_LIMIT = 2500;
+	private static final int MAX_BATCH_SIZE = 25;
+	private static final int MAX_DOMAINS_PER_PAGE = 100;
+
+	/**
+	 * Item and attribute returned by a count(*) select.
+	 */
+	private static final String COUNT_ITEM_NAME = "Domain";
+	private static final String COUNT_ATTRIBUTE = "Count";
+
+	/**
+	 * Domain name -> item name -> attribute name -> value. Guarded by this.
+	 */
+	private final Map<String, Map<String, Map<String, String>>> mDomains =
+			new TreeMap<String, Map<String, Map<String, String>>>();
+
+	private final Random mRandom = new Random();
+	private final AtomicLong mRequestCount = new AtomicLong();
+	private volatile long mLatency = 0;
+	private volatile double mThrottleRate = 0;
+
+	/**
+	 * Set how long every request takes before it is executed.
+	 * @param millis Latency in milliseconds. 0 means none.
+	 */
+	public void setLatency(long millis) {
+		mLatency = Math.max(0, millis);
+	}
+
+	/**
+	 * Set the fraction of requests that are rejected as throttled, the way
+	 * SimpleDB rejects requests when a domain is busy. Throttled requests throw
+	 * an AmazonServiceException with error code RequestThrottled and status 503.
+	 * @param rate Probability between 0 and 1 that a request is throttled.
+	 */
+	public void setThrottleRate(double rate) {
+		mThrottleRate = Math.min(1, Math.max(0, rate));
+	}
+
+	/**
+	 * Get the number of requests received, including throttled and failed ones.
+	 */
+	public long getRequestCount() {
+		return mRequestCount.get();
+	}
+
+	/**
+	 * Get the number of items in a domain.
+	 * @param domainName Domain to count.
+	 * @return Number of items. 0 if the domain does not exist.
+	 */
+	public synchronized int getItemCount(String domainName) {
+		Map<String, Map<String, String>> domain = mDomains.get(domainName);
+		return (domain == null) ? 0 : domain.size();
+	}
+
+	/**
+	 * Delete every domain and reset the request count.
+	 */
+	public synchronized void clear() {
+		mDomains.clear();
+		mRequestCount.set(0);
+	}
+
+	@Override
+	public void createDomain(CreateDomainRequest request) {
+		beginRequest();
+		synchronized (this) {
+			if (!mDomains.containsKey(request.getDomainName())) {
+				mDomains.put(request.getDomainName(), new TreeMap<String, Map<String, String>>());
+			}
+		}
+	}
+
+	@Override
+	public ListDomainsResult listDomains(ListDomainsRequest request) {
+		beginRequest();
+		int offset = parseToken(request.getNextToken());
+		int pageSize = (request.getMaxNumberOfDomains() == null)
+				? MAX_DOMAINS_PER_PAGE : request.getMaxNumberOfDomains();
+		List<String> domainNames;
+		synchronized (this) {
+			domainNames = new ArrayList<String>(mDomains.keySet());
+		}
+		int end = Math.min(domainNames.size(), offset + pageSize);
+		ListDomainsResult result = new ListDomainsResult()
+				.withDomainNames(new ArrayList<String>(domainNames.subList(Math.min(offset, end), end)));
+		return (end < domainNames.size()) ? result.withNextToken(String.valueOf(end)) : result;
+	}
+
+	@Override
+	public void putAttributes(PutAttributesRequest request) {
+		beginRequest();
+		synchronized (this) {
+			putItem(getDomain(request.getDomainName()), request.getItemName(), request.getAttributes());
+		}
+	}
+
+	@Override
+	public void batchPutAttributes(BatchPutAttributesRequest request) {
+		beginRequest();
+		if (request.getItems().size() > MAX_BATCH_SIZE) {
+			throw newServiceException("Too many items in a single call. Up to " + MAX_BATCH_SIZE
+					+ " items per call allowed.", "NumberSubmittedItemsExceeded", 400,
+					AmazonServiceException.ErrorType.Client);
+		}
+		synchronized (this) {
+			Map<String, Map<String, String>> domain = getDomain(request.getDomainName());
+			for (ReplaceableItem item : request.getItems()) {
+				putItem(domain, item.getName(), item.getAttributes());
+			}
+		}
+	}
+
+	@Override
+	public SelectResult select(SelectRequest request) {
+		beginRequest();
+		Query query = new Query(request.getSelectExpression());
+
+		List<Item> matches = new ArrayList<Item>();
+		synchronized (this) {
+			for (Map.Entry<String, Map<String, String>> entry : getDomain(query.mDomainName).entrySet()) {
+				if (query.matches(entry.getValue())) {
+					matches.add(query.project(entry.getKey(), entry.getValue()));
+				}
+			}
+		}
+
+		if (query.mCount) {
+			List<Attribute> attributes = new ArrayList<Attribute>(1);
+			attributes.add(new Attribute(COUNT_ATTRIBUTE, String.valueOf(matches.size())));
+			return new SelectResult().withItems(Collections.singletonList(new Item(COUNT_ITEM_NAME, attributes)));
+		}
+		if (query.mOrderBy != null) {
+			Collections.sort(matches, query.getComparator());
+		}
+
+		int offset = parseToken(request.getNextToken());
+		int end = Math.min(matches.size(), offset + query.mLimit);
+		SelectResult result = new SelectResult()
+				.withItems(new ArrayList<Item>(matches.subList(Math.min(offset, end), end)));
+		return (end < matches.size()) ? result.withNextToken(String.valueOf(end)) : result;
+	}
+
+	/**
+	 * Count the request, then apply the injected latency and throttling.
+	 * @throws AmazonServiceException if the request is throttled.
+	 */
+	private void beginRequest() {
+		mRequestCount.incrementAndGet();
+		long latency = mLatency;
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		double throttleRate = mThrottleRate;
+		boolean throttled;
+		synchronized (mRandom) {
+			throttled = throttleRate > 0 && mRandom.nextDouble() < throttleRate;
+		}
+		if (throttled) {
+			throw newServiceException("Request throttled", "RequestThrottled", 503,
+					AmazonServiceException.ErrorType.Service);
+		}
+	}
+
+	/**
+	 * Get the items of a domain. Must be called while holding this.
+	 * @throws NoSuchDomainException if the domain does not exist.
+	 */
+	private Map<String, Map<String, String>> getDomain(String domainName) {
+		Map<String, Map<String, String>> domain = mDomains.get(domainName);
+		if (domain == null) {
+			NoSuchDomainException e = new NoSuchDomainException("The specified domain does not exist.");
+			e.setErrorCode("NoSuchDomain");
+			e.setStatusCode(400);
+			e.setErrorType(AmazonServiceException.ErrorType.Client);
+			throw e;
+		}
+		return domain;
+	}
+
+	/**
+	 * Replace the given attributes of an item, creating it if needed.
+	 * Must be called while holding this.
+	 */
+	private static void putItem(Map<String, Map<String, String>> domain, String itemName,
+			List<ReplaceableAttribute> attributes) {
+		Map<String, String> item = domain.get(itemName);
+		if (item == null) {
+			item = new HashMap<String, String>();
+			domain.put(itemName, item);
+		}
+		for (ReplaceableAttribute attribute : attributes) {
+			item.put(attribute.getName(), attribute.getValue());
+		}
+	}
+
+	/**
+	 * Parse a next token, which is the offset of the next page.
+	 */
+	private static int parseToken(String nextToken) {
+		if (nextToken == null) return 0;
+		try {
+			return Math.max(0, Integer.parseInt(nextToken));
+		} catch (NumberFormatException e) {
+			throw newServiceException("The specified next token is not valid.", "InvalidNextToken",
+					400, AmazonServiceException.ErrorType.Client);
+		}
+	}
+
+	private static AmazonServiceException newServiceException(String message, String errorCode,
+			int statusCode, AmazonServiceException.ErrorType errorType) {
+		AmazonServiceException e = new AmazonServiceException(message);
+		e.setErrorCode(errorCode);
+		e.setStatusCode(statusCode);
+		e.setErrorType(errorType);
+		e.setServiceName("AmazonSimpleDB");
+		return e;
+	}
+
+	/**
+	 * Parsed select expression.
+	 */
+	private static class Query {
+
+		private String mDomainName;
+		private boolean mCount = false;
+		/** Attributes to return. Null means all of them. */
+		private List<String> mOutput = null;
+		private final List<String[]> mConditions = new ArrayList<String[]>();
+		private String mOrderBy = null;
+		private boolean mDescending = false;
+		private int mLimit = DEFAULT_SELECT_LIMIT;
+
+		private final List<String> mTokens;
+		private int mPosition = 0;
+
+		/**
+		 * Parse a select expression.
+		 * @throws AmazonServiceException if the expression is not supported.
+		 */
+		private Query(String expression) {
+			mTokens = tokenize(expression);
+
+			expect("select");
+			if (accept("*")) {
+				// All attributes.
+			} else if (accept("count")) {
+				expect("(");
+				expect("*");
+				expect(")");
+				mCount = true;
+			} else {
+				mOutput = new ArrayList<String>();
+				do {
+					mOutput.add(name());
+				} while (accept(","));
+			}
+
+			expect("from");
+			mDomainName = name();
+
+			if (accept("where")) {
+				do {
+					String attribute = name();
+					String operator = next();
+					if (!operator.equals("=") && !operator.equals("!=") && !operator.equals("<")
+							&& !operator.equals("<=") && !operator.equals(">") && !operator.equals(">=")) {
+						throw invalid("Unsupported operator " + operator);
+					}
+					mConditions.add(new String[] { attribute, operator, value() });
+				} while (accept("and"));
+			}
+
+			if (accept("order")) {
+				expect("by");
+				mOrderBy = name();
+				if (accept("desc")) {
+					mDescending = true;
+				} else {
+					accept("asc");
+				}
+			}
+
+			if (accept("limit")) {
+				try {
+					mLimit = Integer.parseInt(next());
+				} catch (NumberFormatException e) {
+					throw invalid("Invalid limit");
+				}
+				if (mLimit < 1 || mLimit > MAX_SELECT_LIMIT) {
+					throw invalid("Limit must be between 1 and " + MAX_SELECT_LIMIT);
+				}
+			}
+
+			if (mPosition < mTokens.size()) {
+				throw invalid("Unexpected " + mTokens.get(mPosition));
+			}
+		}
+
+		/**
+		 * Whether the attributes of an item satisfy every condition. Like SimpleDB,
+		 * an item without the attribute does not match.
+		 */
+		private boolean matches(Map<String, String> attributes) {
+			for (String[] condition : mConditions) {
+				String value = attributes.get(condition[0]);
+				if (value == null) return false;
+				int comparison = value.compareTo(condition[2]);
+				String operator = condition[1];
+				boolean match = operator.equals("=") ? comparison == 0
+						: operator.equals("!=") ? comparison != 0
+						: operator.equals("<") ? comparison < 0
+						: operator.equals("<=") ? comparison <= 0
+						: operator.equals(">") ? comparison > 0
+						: comparison >= 0;
+				if (!match) return false;
+			}
+			return mOrderBy == null || attributes.containsKey(mOrderBy);
+		}
+
+		/**
+		 * Build the returned item, keeping only the requested attributes.
+		 */
+		private Item project(String itemName, Map<String, String> attributes) {
+			List<Attribute> output = new ArrayList<Attribute>(attributes.size());
+			for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+				if (mOutput == null || mOutput.contains(attribute.getKey())) {
+					output.add(new Attribute(attribute.getKey(), attribute.getValue()));
+				}
+			}
+			return new Item(itemName, output);
+		}
+
+		/**
+		 * Order items by the order by attribute, then by name so pages are stable.
+		 */
+		private Comparator<Item> getComparator() {
+			return new Comparator<Item>() {
+				@Override
+				public int compare(Item lhs, Item rhs) {
+					int comparison = getValue(lhs).compareTo(getValue(rhs));
+					if (comparison == 0) {
+						comparison = lhs.getName().compareTo(rhs.getName());
+					}
+					return mDescending ? -comparison : comparison;
+				}
+			};
+		}
+
+		/**
+		 * Get the order by value of an item. The attribute may be projected
+		 * away, in which case items only sort by name.
+		 */
+		private String getValue(Item item) {
+			for (Attribute attribute : item.getAttributes()) {
+				if (attribute.getName().equals(mOrderBy)) return attribute.getValue();
+			}
+			return "";
+		}
+
+		private String next() {
+			if (mPosition >= mTokens.size()) throw invalid("Unexpected end of expression");
+			return mTokens.get(mPosition++);
+		}
+
+		private boolean accept(String keyword) {
+			if (mPosition < mTokens.size() && mTokens.get(mPosition).equalsIgnoreCase(keyword)) {
+				mPosition++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String keyword) {
+			if (!accept(keyword)) throw invalid("Expected " + keyword);
+		}
+
+		/**
+		 * Read an attribute or domain name, which may be enclosed in backticks.
+		 */
+		private String name() {
+			String token = next();
+			if (token.startsWith("`")) return token.substring(1);
+			if (token.startsWith("'")) throw invalid("Expected a name but found " + token);
+			return token;
+		}
+
+		/**
+		 * Read a quoted value.
+		 */
+		private String value() {
+			String token = next();
+			if (!token.startsWith("'")) throw invalid("Expected a quoted value but found " + token);
+			return token.substring(1);
+		}
+
+		/**
+		 * Split an expression into tokens. Quoted values and backticked names
+		 * keep their opening quote so they can be told apart from keywords,
+		 * and have their closing quote removed and doubled quotes unescaped.
+		 */
+		private static List<String> tokenize(String expression) {
+			List<String> tokens = new ArrayList<String>();
+			int i = 0;
+			int length = expression.length();
+			while (i < length) {
+				char c = expression.charAt(i);
+				if (Character.isWhitespace(c)) {
+					i++;
+				} else if (c == '\'' || c == '`') {
+					StringBuilder token = new StringBuilder().append(c);
+					i++;
+					while (true) {
+						if (i >= length) throw invalid("Unterminated " + c);
+						char d = expression.charAt(i++);
+						if (d == c) {
+							if (i < length && expression.charAt(i) == c) {
+								token.append(c);
+								i++;
+							} else {
+								break;
+							}
+						} else {
+							token.append(d);
+						}
+					}
+					tokens.add(token.toString());
+				} else if (c == '(' || c == ')' || c == ',' || c == '*') {
+					tokens.add(String.valueOf(c));
+					i++;
+				} else if (c == '<' || c == '>' || c == '!' || c == '=') {
+					if (i + 1 < length && expression.charAt(i + 1) == '=' && c != '=') {
+						tokens.add(expression.substring(i, i + 2));
+						i += 2;
+					} else if (c == '<' && i + 1 < length && expression.charAt(i + 1) == '>') {
+						tokens.add("!=");
+						i += 2;
+					} else {
+						tokens.add(String.valueOf(c));
+						i++;
+					}
+				} else {
+					int start = i;
+					while (i < length && !Character.isWhitespace(expression.charAt(i))
+							&& "'`(),*<>!=".indexOf(expression.charAt(i)) < 0) {
+						i++;
+					}
+					tokens.add(expression.substring(start, i));
+				}
+			}
+			return tokens;
+		}
+
+		private static AmazonServiceException invalid(String message) {
+			return newServiceException("The specified query expression syntax is not valid. " + message,
+					"InvalidQueryExpression", 400, AmazonServiceException.ErrorType.Client);
+		}
+	}
+}
@@ -10,15 +10,38 @@
 package com.samgavis.usagetracker;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.AsyncTask;
+import android.os.Looper;
 
-import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
 import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
 import com.amazonaws.services.simpledb.model.NoSuchDomainException;
 import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
 import com.amazonaws.services.simpledb.model.SelectRequest;
 import com.amazonaws.services.simpledb.model.SelectResult;
 
@@ -30,6 +53,9 @@ public abstract class ListSDB<Item> {
 	protected static final String CALL_DOMAIN_NAME_SUFFIX = "_call";
 	protected static final String MOBILE_DOMAIN_NAME_SUFFIX = "_mobile";
 	protected static final String WIFI_DOMAIN_NAME_SUFFIX = "_wifi";
+	protected static final String CALL_ROLLUP_DOMAIN_NAME_SUFFIX = "_call_rollup";
+	protected static final String MOBILE_ROLLUP_DOMAIN_NAME_SUFFIX = "_mobile_rollup";
+	protected static final String WIFI_ROLLUP_DOMAIN_NAME_SUFFIX = "_wifi_rollup";
 	
 	/**
 	 * Attributes used by all SDB domains
@@ -52,31 +78,113 @@ public abstract class ListSDB<Item> {
 	protected static final String UP_DATA_ATTRIBUTE = "updata";
 	protected static final String DOWN_DATA_ATTRIBUTE = "downdata";
 	
-	protected AmazonSimpleDBClient mSDBClient;
+	/**
+	 * Rollup-specific attributes. Rollups store the start of their bucket
+	 * in TIMESTAMP_ATTRIBUTE.
+	 */
+	protected static final String RESOLUTION_ATTRIBUTE = "resolution";
+	protected static final String COUNT_ATTRIBUTE = "count";
+	
+	/**
+	 * Attribute that holds the result of a count(*) select.
+	 */
+	private static final String COUNT_RESULT_ATTRIBUTE = "Count";
+	
+	/**
+	 * Maximum number of items SimpleDB accepts in one BatchPutAttributesRequest.
+	 */
+	protected static final int MAX_BATCH_SIZE = 25;
+	
+	/**
+	 * SharedPreferences file that records which domains are known to exist.
+	 */
+	private static final String DOMAIN_PREFS_NAME = "usagetracker_domains";
+	
+	/**
+	 * SharedPreferences file and key of the id that identifies this install in
+	 * item names, so devices that share a domain prefix never overwrite each
+	 * other's items.
+	 */
+	private static final String DEVICE_PREFS_NAME = "usagetracker_device";
+	private static final String DEVICE_ID_KEY = "device_id";
+	private static final Object sDeviceIdLock = new Object();
+	private static String sDeviceId;
+	
+	/**
+	 * In-memory copy of the verified prefixes, so the write path only 
+	 * reads SharedPreferences once per process.
+	 */
+	private static final Set<String> sVerifiedPrefixes = new HashSet<String>();
+	
+	/**
+	 * Queries that are currently running, keyed by getInFlightKey(). Identical
+	 * queries wait for the running one instead of issuing their own requests.
+	 * Shared queries run on sQueryExecutor, so interrupting a caller only stops
+	 * that caller's wait. A query is dropped once nobody is waiting for it.
+	 */
+	private static final ConcurrentHashMap<String, SharedQuery<?>> sInFlightQueries = 
+			new ConcurrentHashMap<String, SharedQuery<?>>();
+	
+	/**
+	 * Bounded range selects are split into time shards that are fetched 
+	 * concurrently. Each shard spans at least MIN_SHARD_SPAN. Shared queries,
+	 * shards and SelectIterator prefetches all run on sQueryExecutor, which
+	 * runs at most sScanParallelism selects at once. Additional selects wait
+	 * in a queue. Its tasks never wait on each other, so the bound cannot deadlock.
+	 */
+	private static final long MIN_SHARD_SPAN = 1000L * 60 * 60 * 24; // 1 day
+	private static final int DEFAULT_SCAN_PARALLELISM = 4;
+	private static volatile int sScanParallelism = DEFAULT_SCAN_PARALLELISM;
+	private static final ThreadPoolExecutor sQueryExecutor = new ThreadPoolExecutor(
+			DEFAULT_SCAN_PARALLELISM, DEFAULT_SCAN_PARALLELISM, 30, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>());
+	
+	/**
+	 * Most recent upload window of each domain as {earliest, latest, uploaded at}.
+	 * With ReadConsistency.AUTOMATIC, reads overlapping a window that is younger
+	 * than PUSH_WINDOW_AGE are consistent.
+	 */
+	private static final long PUSH_WINDOW_AGE = 1000L * 60; // 1 minute
+	private static final Map<String, long[]> sPushWindows = new HashMap<String, long[]>();
+	
+	protected volatile StorageBackend mBackend;
+	protected volatile ReadConsistency mReadConsistency = ReadConsistency.AUTOMATIC;
+	protected Context mContext;
+	protected String mDomainPrefix;
 	
 	protected String CALL_DOMAIN_NAME;
 	protected String MOBILE_DOMAIN_NAME;
 	protected String WIFI_DOMAIN_NAME;
+	protected String CALL_ROLLUP_DOMAIN_NAME;
+	protected String MOBILE_ROLLUP_DOMAIN_NAME;
+	protected String WIFI_ROLLUP_DOMAIN_NAME;
 	
 	/**
 	 * Constructor.
-	 * @param client AmazonSimpleDBClient with appropriate permissions.
+	 * @param backend StorageBackend with appropriate permissions, usually a SimpleDBBackend.
 	 * @param domainPrefix Prefix to apply to all domains.
+	 * @param context Current context.
 	 */
-	protected ListSDB(AmazonSimpleDBClient client, String domainPrefix) {
-		mSDBClient = client;
+	protected ListSDB(StorageBackend backend, String domainPrefix, Context context) {
+		mBackend = backend;
+		mContext = context.getApplicationContext();
+		mDomainPrefix = domainPrefix;
 		
 		CALL_DOMAIN_NAME = domainPrefix + CALL_DOMAIN_NAME_SUFFIX;
 		MOBILE_DOMAIN_NAME = domainPrefix + MOBILE_DOMAIN_NAME_SUFFIX;
 		WIFI_DOMAIN_NAME = domainPrefix + WIFI_DOMAIN_NAME_SUFFIX;
+		CALL_ROLLUP_DOMAIN_NAME = domainPrefix + CALL_ROLLUP_DOMAIN_NAME_SUFFIX;
+		MOBILE_ROLLUP_DOMAIN_NAME = domainPrefix + MOBILE_ROLLUP_DOMAIN_NAME_SUFFIX;
+		WIFI_ROLLUP_DOMAIN_NAME = domainPrefix + WIFI_ROLLUP_DOMAIN_NAME_SUFFIX;
 	}
 	
 	/**
-	 * Updates SimpleDBClient. This can be used if authorization expires.
-	 * @param client New client.
+	 * Updates StorageBackend. This can be used if authorization expires. Requests
+	 * that are already running finish with the old backend.
+	 * @param backend New backend.
 	 */
-	protected void updateSDBClient(AmazonSimpleDBClient client) {
-		mSDBClient = client;
+	protected void updateBackend(StorageBackend backend) {
+		mBackend = backend;
 	}
 	
 	/**
@@ -85,7 +193,96 @@ public abstract class ListSDB<Item> {
 	 */
 	protected void createDomain(String domainName) {
 		CreateDomainRequest cdr = new CreateDomainRequest(domainName);
-		mSDBClient.createDomain(cdr);
+		mBackend.createDomain(cdr);
+	}
+	
+	/**
+	 * Make sure every domain for this domain prefix exists. The first call for a 
+	 * prefix lists the existing domains and creates any that are missing. The result
+	 * is persisted per domain, so later calls return immediately without a round trip,
+	 * and domains added in later versions are still created. This must not be called
+	 * from the main thread.
+	 * @throws AmazonClientException if the domains could not be listed or created.
+	 */
+	protected void ensureDomains() {
+		synchronized (sVerifiedPrefixes) {
+			if (sVerifiedPrefixes.contains(mDomainPrefix)) return;
+			
+			SharedPreferences prefs = mContext.getSharedPreferences(DOMAIN_PREFS_NAME, Context.MODE_PRIVATE);
+			boolean verified = true;
+			for (String domainName : getDomainNames()) {
+				verified &= prefs.getBoolean(domainName, false);
+			}
+			if (!verified) {
+				Set<String> existingDomains = listDomains();
+				SharedPreferences.Editor editor = prefs.edit();
+				for (String domainName : getDomainNames()) {
+					if (!existingDomains.contains(domainName)) {
+						createDomain(domainName);
+					}
+					editor.putBoolean(domainName, true);
+				}
+				editor.commit();
+			}
+			sVerifiedPrefixes.add(mDomainPrefix);
+		}
+	}
+	
+	/**
+	 * Forget that the domains for this prefix exist, for example because one
+	 * was deleted. The next call to ensureDomains() checks them again.
+	 */
+	protected void forgetDomains() {
+		synchronized (sVerifiedPrefixes) {
+			sVerifiedPrefixes.remove(mDomainPrefix);
+			SharedPreferences.Editor editor = mContext.getSharedPreferences(DOMAIN_PREFS_NAME, 
+					Context.MODE_PRIVATE).edit();
+			for (String domainName : getDomainNames()) {
+				editor.remove(domainName);
+			}
+			editor.commit();
+		}
+	}
+	
+	/**
+	 * Get the id of this install, generating and persisting it on first use.
+	 * @return Random UUID that stays the same for the lifetime of the install.
+	 */
+	protected String getDeviceId() {
+		synchronized (sDeviceIdLock) {
+			if (sDeviceId == null) {
+				SharedPreferences prefs = mContext.getSharedPreferences(DEVICE_PREFS_NAME, Context.MODE_PRIVATE);
+				sDeviceId = prefs.getString(DEVICE_ID_KEY, null);
+				if (sDeviceId == null) {
+					sDeviceId = UUID.randomUUID().toString();
+					prefs.edit().putString(DEVICE_ID_KEY, sDeviceId).commit();
+				}
+			}
+			return sDeviceId;
+		}
+	}
+	
+	/**
+	 * Get names of every domain that belongs to this domain prefix.
+	 */
+	protected String[] getDomainNames() {
+		return new String[] { CALL_DOMAIN_NAME, MOBILE_DOMAIN_NAME, WIFI_DOMAIN_NAME,
+				CALL_ROLLUP_DOMAIN_NAME, MOBILE_ROLLUP_DOMAIN_NAME, WIFI_ROLLUP_DOMAIN_NAME };
+	}
+	
+	/**
+	 * List every domain in the account.
+	 * @return Names of existing domains.
+	 */
+	private Set<String> listDomains() {
+		Set<String> domainNames = new HashSet<String>();
+		String nextToken = null;
+		do {
+			ListDomainsResult result = mBackend.listDomains(new ListDomainsRequest().withNextToken(nextToken));
+			domainNames.addAll(result.getDomainNames());
+			nextToken = result.getNextToken();
+		} while (nextToken != null);
+		return domainNames;
 	}
 	
 	/**
@@ -97,7 +294,9 @@ public abstract class ListSDB<Item> {
 	 */
 	protected boolean addItem(Item item, String domainName) {
 		PutAttributesRequest par = getPutAttributesRequest(item);
-		return addItem(par);
+		if (!addItem(par)) return false;
+		invalidateCache(Collections.singletonList(item), domainName);
+		return true;
 	}
 	
 	/**
@@ -107,6 +306,10 @@ public abstract class ListSDB<Item> {
 	 * to mean that AmazonSimpleDBClient must be updated.
 	 */
 	private boolean addItem(PutAttributesRequest par) {
+		// Only the main thread needs to hand the request off to an AsyncTask.
+		if (Looper.myLooper() != Looper.getMainLooper()) {
+			return putItem(par);
+		}
 		try {
 			return new AddItemAsync().execute(par).get();
 		} catch (Exception e) {
@@ -122,7 +325,8 @@ public abstract class ListSDB<Item> {
 	protected abstract PutAttributesRequest getPutAttributesRequest(Item item);
 	
 	/**
-	 * AsyncTask to upload item to domain.
+	 * AsyncTask to upload item to domain. The main thread waits for it, so its
+	 * requests fail fast instead of retrying.
 	 * @author SamGavisHughson
 	 * @return True if successful, false if unsuccessful. Reason for failure is
 	 * likely an issue with AmazonSimpleDBClient and so it should be updated.
@@ -130,16 +334,235 @@ public abstract class ListSDB<Item> {
 	private class AddItemAsync extends AsyncTask<PutAttributesRequest, Void, Boolean> {
 		@Override
 		protected Boolean doInBackground(PutAttributesRequest... pars) {
+			RequestExecutor.setFailFast(true);
+			try {
+				return putItem(pars[0]);
+			} finally {
+				RequestExecutor.setFailFast(false);
+			}
+		}
+	}
+	
+	/**
+	 * Upload an item on the calling thread.
+	 * @param par PutAttributesRequest to be added to domain.
+	 * @return True if successful, false if unsuccessful.
+	 */
+	private boolean putItem(PutAttributesRequest par) {
+		try {
+			ensureDomains();
 			try {
-				mSDBClient.putAttributes(pars[0]);
+				mBackend.putAttributes(par);
 			} catch (NoSuchDomainException e) {
-				// Lazily instantiate domain name
-				createDomain(pars[0].getDomainName());
-				return addItem(pars[0]);
+				// Domain was deleted since it was last checked.
+				forgetDomains();
+				ensureDomains();
+				mBackend.putAttributes(par);
+			}
+		} catch (Exception e) {
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Add a batch of items to the domain specified by domainName using a single
+	 * BatchPutAttributesRequest. If SimpleDB rejects the batch because of one of
+	 * its items, the batch is split in half and each half is retried so that the
+	 * remaining items are still uploaded.
+	 * @param items Items to add to domain. At most MAX_BATCH_SIZE items.
+	 * @param domainName Domain name to add items to.
+	 * @return Items that were confirmed to be uploaded. If this contains fewer items
+	 * than were passed in, AmazonSimpleDBClient should be updated.
+	 */
+	protected List<Item> addItems(List<Item> items, String domainName) {
+		if (items.isEmpty()) return items;
+		List<Item> uploaded;
+		// Only the main thread needs to hand the request off to an AsyncTask. Other
+		// threads upload directly, so batches from several threads run concurrently
+		// instead of queueing on the AsyncTask executor.
+		if (Looper.myLooper() != Looper.getMainLooper()) {
+			uploaded = putBatch(items, domainName);
+		} else {
+			try {
+				uploaded = new AddItemsAsync(items, domainName).execute().get();
 			} catch (Exception e) {
-				return false;
+				return Collections.emptyList();
 			}
-			return true;
+		}
+		invalidateCache(uploaded, domainName);
+		return uploaded;
+	}
+	
+	/**
+	 * Drop cached results of domainName that the uploaded items could change.
+	 * @param items Items that were uploaded.
+	 * @param domainName Domain they were uploaded to.
+	 */
+	private void invalidateCache(List<Item> items, String domainName) {
+		if (items.isEmpty()) return;
+		long earliest = Long.MAX_VALUE;
+		long latest = Long.MIN_VALUE;
+		for (Item item : items) {
+			long timestamp = getTimestamp(item).getTime();
+			earliest = Math.min(earliest, timestamp);
+			latest = Math.max(latest, timestamp);
+		}
+		QueryCache.getInstance().invalidate(domainName, earliest, latest);
+		recordPushWindow(domainName, earliest, latest);
+		
+		// Queries issued before the upload may miss it, so later callers must not join them.
+		String from = " from `" + domainName + "`";
+		for (String key : sInFlightQueries.keySet()) {
+			if (key.contains(from)) sInFlightQueries.remove(key);
+		}
+	}
+	
+	/**
+	 * Set the consistency of reads from this repository.
+	 * @param readConsistency Consistency to use.
+	 */
+	protected void setReadConsistency(ReadConsistency readConsistency) {
+		mReadConsistency = readConsistency;
+	}
+	
+	/**
+	 * Record that rows with timestamps in [earliest, latest] were just uploaded
+	 * to domainName. Windows that are still recent are merged.
+	 * @param domainName Domain that was written to.
+	 * @param earliest Earliest timestamp that was written.
+	 * @param latest Latest timestamp that was written.
+	 */
+	private static void recordPushWindow(String domainName, long earliest, long latest) {
+		long now = System.currentTimeMillis();
+		synchronized (sPushWindows) {
+			long[] window = sPushWindows.get(domainName);
+			if (window != null && window[2] > now - PUSH_WINDOW_AGE) {
+				earliest = Math.min(earliest, window[0]);
+				latest = Math.max(latest, window[1]);
+			}
+			sPushWindows.put(domainName, new long[] { earliest, latest, now });
+		}
+	}
+	
+	/**
+	 * Decide whether a read of [earliest, latest] from domainName should be consistent.
+	 * @param domainName Domain to read.
+	 * @param earliest Earliest timestamp read. Null means no lower bound.
+	 * @param latest Latest timestamp read. Null means no upper bound.
+	 * @return True if the read should be consistent.
+	 */
+	private boolean isConsistentRead(String domainName, Timestamp earliest, Timestamp latest) {
+		switch (mReadConsistency) {
+		case CONSISTENT: return true;
+		case EVENTUAL: return false;
+		default:
+			long[] window;
+			synchronized (sPushWindows) {
+				window = sPushWindows.get(domainName);
+			}
+			if (window == null || window[2] <= System.currentTimeMillis() - PUSH_WINDOW_AGE) return false;
+			return (earliest == null || earliest.getTime() <= window[1])
+					&& (latest == null || window[0] <= latest.getTime());
+		}
+	}
+	
+	/**
+	 * Get the timestamp an item is stored under.
+	 * @param item Item to read.
+	 * @return Timestamp of item.
+	 */
+	protected abstract Timestamp getTimestamp(Item item);
+	
+	/**
+	 * Copy an item, so cached items are never shared with callers.
+	 * @param item Item to copy.
+	 * @return Copy of item that shares nothing mutable with it.
+	 */
+	protected abstract Item copyItem(Item item);
+	
+	/**
+	 * AsyncTask to upload a batch of items to domain. Like AddItemAsync, its 
+	 * requests fail fast.
+	 * @author SamGavisHughson
+	 * @return Items that were uploaded successfully.
+	 */
+	private class AddItemsAsync extends AsyncTask<Void, Void, List<Item>> {
+		private final List<Item> mItems;
+		private final String mDomainName;
+		
+		private AddItemsAsync(List<Item> items, String domainName) {
+			mItems = items;
+			mDomainName = domainName;
+		}
+		
+		@Override
+		protected List<Item> doInBackground(Void... params) {
+			RequestExecutor.setFailFast(true);
+			try {
+				return putBatch(mItems, mDomainName);
+			} finally {
+				RequestExecutor.setFailFast(false);
+			}
+		}
+	}
+	
+	/**
+	 * Make sure the domains exist, then upload a batch of items on the calling thread.
+	 * @param items Items to upload.
+	 * @param domainName Domain to upload to.
+	 * @return Items that were uploaded successfully.
+	 */
+	private List<Item> putBatch(List<Item> items, String domainName) {
+		try {
+			ensureDomains();
+		} catch (Exception e) {
+			return Collections.emptyList();
+		}
+		return putBatch(items, domainName, true);
+	}
+	
+	/**
+	 * Upload a batch of items, splitting it on failure.
+	 * @param items Items to upload.
+	 * @param domainName Domain to upload to.
+	 * @param checkDomains Whether the domains should be checked again and the batch
+	 * retried if the domain is missing.
+	 * @return Items that were uploaded successfully.
+	 */
+	private List<Item> putBatch(List<Item> items, String domainName, boolean checkDomains) {
+		List<ReplaceableItem> replaceableItems = new ArrayList<ReplaceableItem>(items.size());
+		for (Item item : items) {
+			PutAttributesRequest par = getPutAttributesRequest(item);
+			replaceableItems.add(new ReplaceableItem(par.getItemName(), par.getAttributes()));
+		}
+		
+		try {
+			mBackend.batchPutAttributes(new BatchPutAttributesRequest(domainName, replaceableItems));
+			return items;
+		} catch (NoSuchDomainException e) {
+			// Domain was deleted since it was last checked.
+			if (!checkDomains) return Collections.emptyList();
+			try {
+				forgetDomains();
+				ensureDomains();
+			} catch (Exception e1) {
+				return Collections.emptyList();
+			}
+			return putBatch(items, domainName, false);
+		} catch (AmazonServiceException e) {
+			// Only a rejected request can be caused by a single item. Anything else
+			// (throttling, server errors) would fail the same way for both halves.
+			if (items.size() == 1 || e.getErrorType() != AmazonServiceException.ErrorType.Client) {
+				return Collections.emptyList();
+			}
+			int middle = items.size() / 2;
+			List<Item> uploaded = new ArrayList<Item>(items.size());
+			uploaded.addAll(putBatch(items.subList(0, middle), domainName, false));
+			uploaded.addAll(putBatch(items.subList(middle, items.size()), domainName, false));
+			return uploaded;
+		} catch (Exception e) {
+			return Collections.emptyList();
 		}
 	}
 	
@@ -150,19 +573,16 @@ public abstract class ListSDB<Item> {
 	 * error reading from AmazonSimpleDBClient.
 	 */
 	protected List<Item> getItems(String domainName) {
-		SelectRequest selectRequest = new SelectRequest("select * from `" + domainName + 
-				"` where " + TIMESTAMP_ATTRIBUTE + " > '' order by " + TIMESTAMP_ATTRIBUTE)
-			.withConsistentRead(true);
-		return getItems(selectRequest);
+		return getItems(null, null, domainName);
 	}
 	
 	/**
 	 * Get domains within range of timestamps (inclusive).<br />
-	 * {@code getItems(timestamp, null, null, domainName)} -> Return all items in table.<br />
-	 * {@code getItems(timestamp1, null, timestamp2, domainName)} -> Return all items <= {@code timestamp2}<br />
-	 * {@code getItems(timestamp1, timestamp2, null, domainName)} -> Return all items >= {@code timestamp2}<br />
-	 * {@code getItems(timestamp1, timestamp2, timestamp3, domainName)} -> Return all items >= {@code timestamp2} 
-	 * and <= {@code timestamp3}<br />
+	 * {@code getItems(null, null, domainName)} -> Return all items in table.<br />
+	 * {@code getItems(null, timestamp2, domainName)} -> Return all items <= {@code timestamp2}<br />
+	 * {@code getItems(timestamp1, null, domainName)} -> Return all items >= {@code timestamp1}<br />
+	 * {@code getItems(timestamp1, timestamp2, domainName)} -> Return all items >= {@code timestamp1} 
+	 * and <= {@code timestamp2}<br />
 	 * @param earliest Timestamp of the earliest time in range. Null will return list with
 	 * no lower bound on Timestamp.
 	 * @param latest Timestamp of latest time in range. Null will return list with no upper
@@ -172,55 +592,355 @@ public abstract class ListSDB<Item> {
 	 * error reading from AmazonSimpleDBClient.
 	 */
 	protected List<Item> getItems(Timestamp earliest, Timestamp latest, String domainName) {
-		if (earliest == null && latest == null) {
-			return getItems(domainName);
-		} else if (earliest == null) {
-			SelectRequest selectRequest = new SelectRequest("select * from `" + domainName + 
-					"` where " + TIMESTAMP_ATTRIBUTE + " > '' and " + TIMESTAMP_ATTRIBUTE + " <= " + 
-					ListSDBUtils.padTimestamp(latest) + " order by " + TIMESTAMP_ATTRIBUTE)
-				.withConsistentRead(true);
-			return getItems(selectRequest);
-		} else if (latest == null) {
-			SelectRequest selectRequest = new SelectRequest("select * from `" + domainName + 
-					"` where " + TIMESTAMP_ATTRIBUTE + " >= " + ListSDBUtils.padTimestamp(earliest) + 
-					" order by " + TIMESTAMP_ATTRIBUTE)
-				.withConsistentRead(true);
-			return getItems(selectRequest);
+		return getItems(earliest, latest, null, null, domainName);
+	}
+	
+	/**
+	 * Get items within range of timestamps (inclusive) that also match condition.
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @param condition Additional SimpleDB select condition. Null means none.
+	 * @param domainName Domain to query.
+	 * @return List of items in range ordered from oldest to newest. Null if
+	 * error reading from AmazonSimpleDBClient.
+	 */
+	protected List<Item> getItems(Timestamp earliest, Timestamp latest, String condition, String domainName) {
+		return getItems(earliest, latest, condition, null, domainName);
+	}
+	
+	/**
+	 * Get only some fields of items within range of timestamps (inclusive) that
+	 * also match condition. Fields that are not selected keep their default values.
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @param condition Additional SimpleDB select condition. Null means none.
+	 * @param fields Fields to select. Timestamp is always selected. Null selects all fields.
+	 * @param domainName Domain to query.
+	 * @return List of items in range ordered from oldest to newest. Null if
+	 * error reading from AmazonSimpleDBClient.
+	 */
+	protected List<Item> getItems(Timestamp earliest, Timestamp latest, String condition, 
+			Set<Field> fields, String domainName) {
+		SelectRequest selectRequest = generateRangeSelectRequest(earliest, latest, condition, fields, domainName);
+		String key = getInFlightKey(selectRequest);
+		List<Item> items = getCachedItems(key);
+		if (items != null) return items;
+		
+		long generation = QueryCache.getInstance().getGeneration(domainName);
+		List<SelectRequest> shards = generateShardRequests(earliest, latest, condition, fields, domainName);
+		// The main thread must not wait for shards, which may retry.
+		boolean sharded = shards.size() > 1 && Looper.myLooper() != Looper.getMainLooper();
+		items = sharded ? selectSharded(shards) : getItems(selectRequest);
+		if (items != null) {
+			QueryCache.getInstance().put(key, domainName, generation, 
+					(earliest == null) ? Long.MIN_VALUE : earliest.getTime(),
+					(latest == null) ? Long.MAX_VALUE : latest.getTime(),
+					copyItems(items), items.size());
+		}
+		return items;
+	}
+	
+	/**
+	 * Get a copy of a cached list of items.
+	 * @param key Key the list was cached under.
+	 * @return Copy of the cached list and its items, or null if it is not cached.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Item> getCachedItems(String key) {
+		List<Item> items = (List<Item>) QueryCache.getInstance().get(key);
+		return (items == null) ? null : copyItems(items);
+	}
+	
+	/**
+	 * Copy a list of items and the items in it.
+	 * @param items Items to copy.
+	 * @return New list of copies.
+	 */
+	private List<Item> copyItems(List<Item> items) {
+		List<Item> copies = new ArrayList<Item>(items.size());
+		for (Item item : items) {
+			copies.add(copyItem(item));
+		}
+		return copies;
+	}
+	
+	/**
+	 * Iterate over items within range of timestamps (inclusive). Pages are fetched
+	 * on demand, and the next page is prefetched while the current one is consumed,
+	 * so only about one page of items is held in memory at a time.
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @param domainName Domain to query.
+	 * @return Iterator over items in range ordered from oldest to newest. If
+	 * {@link SelectIterator#hasFailed()} is true once iteration stops, then
+	 * AmazonSimpleDBClient should be updated.
+	 */
+	protected SelectIterator<Item> iterateItems(Timestamp earliest, Timestamp latest, String domainName) {
+		return iterateItems(earliest, latest, null, domainName);
+	}
+	
+	/**
+	 * Iterate over only some fields of items within range of timestamps (inclusive).
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @param fields Fields to select. Timestamp is always selected. Null selects all fields.
+	 * @param domainName Domain to query.
+	 * @return Iterator over items in range ordered from oldest to newest.
+	 * @see #iterateItems(Timestamp, Timestamp, String)
+	 */
+	protected SelectIterator<Item> iterateItems(Timestamp earliest, Timestamp latest, Set<Field> fields, 
+			String domainName) {
+		return new SelectIterator<Item>(this, generateShardRequests(earliest, latest, null, fields, domainName));
+	}
+	
+	/**
+	 * Set how many time shards a bounded range select may be split into. The shards
+	 * are fetched concurrently, since SimpleDB latency is per round trip. This is
+	 * also the number of selects that may run at once across the process.
+	 * @param parallelism Maximum number of shards per query. 1 disables sharding.
+	 */
+	protected static synchronized void setScanParallelism(int parallelism) {
+		sScanParallelism = Math.max(1, parallelism);
+		// The maximum may never drop below the core size, so order the updates.
+		if (sScanParallelism > sQueryExecutor.getMaximumPoolSize()) {
+			sQueryExecutor.setMaximumPoolSize(sScanParallelism);
+			sQueryExecutor.setCorePoolSize(sScanParallelism);
 		} else {
-			SelectRequest selectRequest = new SelectRequest("select * from `" + domainName + 
-					"` where " + TIMESTAMP_ATTRIBUTE + " >= " + ListSDBUtils.padTimestamp(earliest) + 
-					" and " + TIMESTAMP_ATTRIBUTE + " <= " + ListSDBUtils.padTimestamp(latest) + 
-					" order by " + TIMESTAMP_ATTRIBUTE)
-				.withConsistentRead(true);
-			return getItems(selectRequest);	
+			sQueryExecutor.setCorePoolSize(sScanParallelism);
+			sQueryExecutor.setMaximumPoolSize(sScanParallelism);
+		}
+	}
+	
+	/**
+	 * Get the executor that runs selects in the background.
+	 * @return Executor bounded by the scan parallelism.
+	 */
+	protected static ExecutorService getQueryExecutor() {
+		return sQueryExecutor;
+	}
+	
+	/**
+	 * Helper method to split a range select into select requests over consecutive
+	 * sub-ranges. Only ranges with both bounds are split, into at most 
+	 * sScanParallelism shards of at least MIN_SHARD_SPAN each.
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @param condition Additional SimpleDB select condition. Null means none.
+	 * @param fields Fields to select. Null selects all attributes.
+	 * @param domainName Domain to query.
+	 * @return SelectRequests in time order. Holds a single request if the range
+	 * is not split.
+	 */
+	private List<SelectRequest> generateShardRequests(Timestamp earliest, Timestamp latest, 
+			String condition, Set<Field> fields, String domainName) {
+		int shardCount = 1;
+		if (earliest != null && latest != null && latest.after(earliest)) {
+			long span = latest.getTime() - earliest.getTime() + 1;
+			shardCount = (int) Math.min(sScanParallelism, span / MIN_SHARD_SPAN);
+		}
+		if (shardCount <= 1) {
+			return Collections.singletonList(
+					generateRangeSelectRequest(earliest, latest, condition, fields, domainName));
+		}
+		
+		long start = earliest.getTime();
+		long step = (latest.getTime() - start + 1) / shardCount;
+		List<SelectRequest> shards = new ArrayList<SelectRequest>(shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			Timestamp shardEarliest = new Timestamp(start + i * step);
+			Timestamp shardLatest = (i == shardCount - 1) ? latest : new Timestamp(start + (i + 1) * step - 1);
+			shards.add(generateRangeSelectRequest(shardEarliest, shardLatest, condition, fields, domainName));
 		}
+		return shards;
+	}
+	
+	/**
+	 * Execute shards concurrently and concatenate their results in order. The
+	 * shards cover consecutive ranges, so no further merging is needed.
+	 * @param shards SelectRequests in time order.
+	 * @return List of items on success, null if any shard failed or the calling
+	 * thread was interrupted.
+	 */
+	private List<Item> selectSharded(List<SelectRequest> shards) {
+		// Start every shard before waiting for any of them.
+		List<String> keys = new ArrayList<String>(shards.size());
+		List<SharedQuery<List<Item>>> results = new ArrayList<SharedQuery<List<Item>>>(shards.size());
+		for (final SelectRequest shard : shards) {
+			String key = getInFlightKey(shard);
+			keys.add(key);
+			results.add(joinShared(key, new Callable<List<Item>>() {
+				@Override
+				public List<Item> call() {
+					return selectAll(shard);
+				}
+			}));
+		}
+		
+		try {
+			List<Item> items = new ArrayList<Item>();
+			for (SharedQuery<List<Item>> result : results) {
+				List<Item> shardItems = getShared(result);
+				if (shardItems == null) return null;
+				items.addAll(shardItems);
+			}
+			return items;
+		} finally {
+			// Shards nobody else is waiting for are stopped after a failure.
+			for (int i = 0; i < results.size(); i++) {
+				leaveShared(keys.get(i), results.get(i));
+			}
+		}
+	}
+	
+	/**
+	 * Helper method to generate SelectRequest for range of timestamps (inclusive).
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @param condition Additional SimpleDB select condition. Null means none.
+	 * @param fields Fields to select. Null selects all attributes.
+	 * @param domainName Domain to query.
+	 * @return SelectRequest ordered from oldest to newest.
+	 */
+	private SelectRequest generateRangeSelectRequest(Timestamp earliest, Timestamp latest, 
+			String condition, Set<Field> fields, String domainName) {
+		return new SelectRequest("select " + Field.toOutputList(fields) + " from `" + domainName + "` where " 
+				+ generateRangeWhereClause(earliest, latest, condition) 
+				+ " order by " + TIMESTAMP_ATTRIBUTE)
+			.withConsistentRead(isConsistentRead(domainName, earliest, latest));
+	}
+	
+	/**
+	 * Helper method to generate the where clause for a range of timestamps (inclusive).
+	 * The timestamp is always constrained, because SimpleDB only sorts on attributes 
+	 * that are constrained by the where clause.
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @param condition Additional SimpleDB select condition. Null means none.
+	 * @return Where clause without the where keyword.
+	 */
+	private String generateRangeWhereClause(Timestamp earliest, Timestamp latest, String condition) {
+		String where = (earliest == null)
+				? TIMESTAMP_ATTRIBUTE + " > ''"
+				: TIMESTAMP_ATTRIBUTE + " >= '" + ListSDBUtils.padTimestamp(earliest) + "'";
+		if (latest != null) {
+			where += " and " + TIMESTAMP_ATTRIBUTE + " <= '" + ListSDBUtils.padTimestamp(latest) + "'";
+		}
+		if (condition != null) {
+			where += " and " + condition;
+		}
+		return where;
+	}
+	
+	/**
+	 * Count items within range of timestamps (inclusive) without fetching them.
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @param domainName Domain to query.
+	 * @return Number of items in range. Null if error reading from AmazonSimpleDBClient.
+	 */
+	protected Long getCount(Timestamp earliest, Timestamp latest, String domainName) {
+		SelectRequest selectRequest = new SelectRequest("select count(*) from `" + domainName 
+				+ "` where " + generateRangeWhereClause(earliest, latest, null))
+			.withConsistentRead(isConsistentRead(domainName, earliest, latest));
+		String key = getInFlightKey(selectRequest);
+		Long count = (Long) QueryCache.getInstance().get(key);
+		if (count != null) return count;
+		
+		long generation = QueryCache.getInstance().getGeneration(domainName);
+		if (Looper.myLooper() != Looper.getMainLooper()) {
+			count = countShared(selectRequest);
+		} else {
+			try {
+				count = new CountAsync().execute(selectRequest).get();
+			} catch (Exception e) {
+				return null;
+			}
+		}
+		if (count != null) {
+			QueryCache.getInstance().put(key, domainName, generation, 
+					(earliest == null) ? Long.MIN_VALUE : earliest.getTime(),
+					(latest == null) ? Long.MAX_VALUE : latest.getTime(), count, 1);
+		}
+		return count;
+	}
+	
+	/**
+	 * Execute every page of a count(*) SelectRequest on the calling thread. SimpleDB
+	 * returns a partial count with a NextToken when counting takes too long, so the
+	 * counts of all pages are summed.
+	 * @param selectRequest SelectRequest to execute.
+	 * @return Total count on success, null on failure or interruption.
+	 */
+	private Long countAll(SelectRequest selectRequest) {
+		String nextToken = null;
+		long count = 0;
+		do {
+			if (Thread.currentThread().isInterrupted()) return null;
+			selectRequest.setNextToken(nextToken);
+			try {
+				SelectResult result = select(selectRequest);
+				nextToken = result.getNextToken();
+				for (com.amazonaws.services.simpledb.model.Item item : result.getItems()) {
+					for (Attribute attribute : item.getAttributes()) {
+						if (COUNT_RESULT_ATTRIBUTE.equals(attribute.getName())) {
+							count += Long.parseLong(attribute.getValue());
+						}
+					}
+				}
+			} catch (Exception e) {
+				return null;
+			}
+		} while (nextToken != null);
+		return count;
 	}
 	
 	/**
 	 * Get most recent item from domain.
 	 * @param domainName Domain to query.
-	 * @return Most recent item in domain. Null if error reading from AmazonSimpleDBClient.
+	 * @return Most recent item in domain. Null if error reading from AmazonSimpleDBClient
+	 * or if domain is empty.
 	 */
 	protected Item getMostRecentItem(String domainName) {
 		SelectRequest selectRequest = new SelectRequest("select * from `" + domainName + 
 				"` where " + TIMESTAMP_ATTRIBUTE + " > '' order by " + TIMESTAMP_ATTRIBUTE + " desc limit 1")
-			.withConsistentRead(true);
-		List<Item> items = getItems(selectRequest);
-		if (items != null) return items.get(0);
+			.withConsistentRead(isConsistentRead(domainName, null, null));
+		String key = getInFlightKey(selectRequest);
+		List<Item> items = getCachedItems(key);
+		if (items == null) {
+			long generation = QueryCache.getInstance().getGeneration(domainName);
+			items = getItems(selectRequest);
+			if (items == null) return null;
+			// Only rows at or after the most recent item can change the result.
+			QueryCache.getInstance().put(key, domainName, generation, 
+					items.isEmpty() ? Long.MIN_VALUE : getTimestamp(items.get(0)).getTime(),
+					Long.MAX_VALUE, copyItems(items), items.size());
+		}
+		if (!items.isEmpty()) return items.get(0);
 		return null;
 	}
 	
 	/**
 	 * Get oldest item from domain.
 	 * @param domainName Domain to query.
-	 * @return Oldest item in domain. Null if error reading from AmazonSimpleDBClient.
+	 * @return Oldest item in domain. Null if error reading from AmazonSimpleDBClient
+	 * or if domain is empty.
 	 */
 	protected Item getOldestItem(String domainName) {
 		SelectRequest selectRequest = new SelectRequest("select * from `" + domainName + 
 				"` where " + TIMESTAMP_ATTRIBUTE + " > '' order by " + TIMESTAMP_ATTRIBUTE + " limit 1")
-			.withConsistentRead(true);
-		List<Item> items = getItems(selectRequest);
-		if (items != null) return items.get(0);
+			.withConsistentRead(isConsistentRead(domainName, null, null));
+		String key = getInFlightKey(selectRequest);
+		List<Item> items = getCachedItems(key);
+		if (items == null) {
+			long generation = QueryCache.getInstance().getGeneration(domainName);
+			items = getItems(selectRequest);
+			if (items == null) return null;
+			// Only rows at or before the oldest item can change the result.
+			QueryCache.getInstance().put(key, domainName, generation, Long.MIN_VALUE, 
+					items.isEmpty() ? Long.MAX_VALUE : getTimestamp(items.get(0)).getTime(),
+					copyItems(items), items.size());
+		}
+		if (!items.isEmpty()) return items.get(0);
 		return null;
 	}
 	
@@ -230,6 +950,10 @@ public abstract class ListSDB<Item> {
 	 * @return Return list of items on success, null on failure.
 	 */
 	private List<Item> getItems(SelectRequest selectRequest) {
+		// Only the main thread needs to hand the request off to an AsyncTask.
+		if (Looper.myLooper() != Looper.getMainLooper()) {
+			return selectShared(selectRequest);
+		}
 		try {
 			return new GetItemsAsync().execute(selectRequest).get();
 		} catch (Exception e) {
@@ -237,34 +961,220 @@ public abstract class ListSDB<Item> {
 		}
 	}
 	
+	/**
+	 * Execute every page of a SelectRequest, sharing the request with any identical
+	 * one that is already in flight.
+	 * @param selectRequest SelectRequest to execute.
+	 * @return Return list of items on success, null on failure or interruption.
+	 */
+	private List<Item> selectShared(final SelectRequest selectRequest) {
+		List<Item> items = runShared(getInFlightKey(selectRequest), new Callable<List<Item>>() {
+			@Override
+			public List<Item> call() {
+				return selectAll(selectRequest);
+			}
+		});
+		// Every caller gets its own list, since callers may modify it.
+		return (items == null) ? null : new ArrayList<Item>(items);
+	}
+	
+	/**
+	 * Count every page of a count(*) SelectRequest, sharing the request with any 
+	 * identical one that is already in flight.
+	 * @param selectRequest SelectRequest to execute.
+	 * @return Total count on success, null on failure or interruption.
+	 */
+	private Long countShared(final SelectRequest selectRequest) {
+		return runShared(getInFlightKey(selectRequest), new Callable<Long>() {
+			@Override
+			public Long call() {
+				return countAll(selectRequest);
+			}
+		});
+	}
+	
+	/**
+	 * Get the key that identifies identical requests, for both in-flight requests
+	 * and cached results. The select expression already names the domain, the 
+	 * predicate and the projection, so only the consistency is added.
+	 * @param selectRequest SelectRequest to identify.
+	 * @return Key for the request.
+	 */
+	private static String getInFlightKey(SelectRequest selectRequest) {
+		return (Boolean.TRUE.equals(selectRequest.getConsistentRead()) ? "consistent:" : "eventual:")
+				+ selectRequest.getSelectExpression();
+	}
+	
+	/**
+	 * Run query on sQueryExecutor unless an identical query is already in flight,
+	 * in which case wait for that query instead. Every caller gets the same result,
+	 * including null on failure.
+	 * @param key Key that identifies identical queries.
+	 * @param query Query to run.
+	 * @return Result of the query, or null if it failed or the caller was interrupted.
+	 */
+	private static <T> T runShared(String key, Callable<T> query) {
+		SharedQuery<T> shared = joinShared(key, query);
+		try {
+			return getShared(shared);
+		} finally {
+			leaveShared(key, shared);
+		}
+	}
+	
+	/**
+	 * Wait for the in-flight query under key, or start query on sQueryExecutor if
+	 * there is none. Every call must be matched by a call to leaveShared().
+	 * @param key Key that identifies identical queries.
+	 * @param query Query to run.
+	 * @return Shared query the caller is now waiting for.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> SharedQuery<T> joinShared(String key, Callable<T> query) {
+		while (true) {
+			SharedQuery<T> task = new SharedQuery<T>(query);
+			SharedQuery<T> inFlight = (SharedQuery<T>) sInFlightQueries.putIfAbsent(key, task);
+			if (inFlight == null) {
+				sQueryExecutor.execute(task);
+				return task;
+			}
+			if (inFlight.join()) return inFlight;
+			// Its last waiter just left, so it is about to be dropped.
+			sInFlightQueries.remove(key, inFlight);
+		}
+	}
+	
+	/**
+	 * Wait for the result of a shared query.
+	 * @param shared Query joined with joinShared().
+	 * @return Result of the query, or null if it failed, was stopped or the caller 
+	 * was interrupted.
+	 */
+	private static <T> T getShared(SharedQuery<T> shared) {
+		try {
+			return shared.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		} catch (CancellationException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Stop waiting for a shared query. The last caller to leave drops the query,
+	 * and stops it if it is still running.
+	 * @param key Key the query was joined under.
+	 * @param shared Query joined with joinShared().
+	 */
+	private static <T> void leaveShared(String key, SharedQuery<T> shared) {
+		if (shared.leave()) {
+			sInFlightQueries.remove(key, shared);
+			shared.cancel(true);
+		}
+	}
+	
+	/**
+	 * A query together with the number of callers waiting for it. Once the count
+	 * drops to zero the query cannot be joined again.
+	 */
+	private static class SharedQuery<T> extends FutureTask<T> {
+		private int mWaiters = 1;
+		
+		private SharedQuery(Callable<T> query) {
+			super(query);
+		}
+		
+		/**
+		 * @return True if the caller is now waiting, false if the query was abandoned.
+		 */
+		private synchronized boolean join() {
+			if (mWaiters == 0) return false;
+			mWaiters++;
+			return true;
+		}
+		
+		/**
+		 * @return True if the caller was the last one waiting.
+		 */
+		private synchronized boolean leave() {
+			return --mWaiters == 0;
+		}
+	}
+	
+	/**
+	 * Execute every page of a SelectRequest on the calling thread. Stops early 
+	 * if the calling thread is interrupted.
+	 * @param selectRequest SelectRequest to execute.
+	 * @return Return list of items on success, null on failure or interruption.
+	 */
+	private List<Item> selectAll(SelectRequest selectRequest) {
+		String nextToken = null;
+		List<Item> items = new ArrayList<Item>();
+		
+		/**
+		 * SimpleDB pages results using a NextToken. This logic collects all
+		 * pages of data.
+		 */
+		do {
+			if (Thread.currentThread().isInterrupted()) return null;
+			selectRequest.setNextToken(nextToken);
+			try {
+				SelectResult result = select(selectRequest);
+				nextToken = result.getNextToken();
+				items.addAll(convertResultToItemList(result));
+			} catch (Exception e) {
+				return null;
+			}
+		} while (nextToken != null);		
+		return items;
+	}
+	
+	/**
+	 * Execute a single page of a SelectRequest on the calling thread.
+	 * @param selectRequest SelectRequest to execute.
+	 * @return SelectResult for the page.
+	 */
+	protected SelectResult select(SelectRequest selectRequest) {
+		return mBackend.select(selectRequest);
+	}
+	
 	/**
 	 * Asynchronous class that executes SelectRequest. Returns null on failure.
+	 * The main thread waits for it, so the request runs on this thread, fails 
+	 * fast and is not shared with requests that may retry.
 	 * @author SamGavisHughson
 	 */
 	private class GetItemsAsync extends AsyncTask<SelectRequest, Void, List<Item>> {
 		@Override
 		protected List<Item> doInBackground(SelectRequest... selectRequests) {
-			String nextToken = null;
-			List<Item> items = Collections.emptyList();
-			
-			/**
-			 * SimpleDB pages results using a NextToken. This logic collects all
-			 * pages of data.
-			 */
-			do {
-				selectRequests[0].setNextToken(nextToken);
-				try {
-					SelectResult result = mSDBClient.select(selectRequests[0]);
-					nextToken = result.getNextToken();
-					items.addAll(convertResultToItemList(result));
-				} catch (Exception e) {
-					return null;
-				}
-			} while (nextToken != null);		
-			return items;
+			RequestExecutor.setFailFast(true);
+			try {
+				return selectAll(selectRequests[0]);
+			} finally {
+				RequestExecutor.setFailFast(false);
+			}
 		}	
 	}
 	
+	/**
+	 * Asynchronous class that executes a count(*) SelectRequest. Returns null on failure.
+	 * Like GetItemsAsync, it runs on this thread and fails fast.
+	 */
+	private class CountAsync extends AsyncTask<SelectRequest, Void, Long> {
+		@Override
+		protected Long doInBackground(SelectRequest... selectRequests) {
+			RequestExecutor.setFailFast(true);
+			try {
+				return countAll(selectRequests[0]);
+			} finally {
+				RequestExecutor.setFailFast(false);
+			}
+		}
+	}
+	
 	/**
 	 * Convert SelectResult to a list of items.
 	 * @param result Result from SelectRequest.
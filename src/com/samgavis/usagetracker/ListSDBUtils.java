@@ -11,7 +11,9 @@ package com.samgavis.usagetracker;
 
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.amazonaws.services.simpledb.model.Attribute;
 import com.amazonaws.services.simpledb.model.Item;
@@ -22,13 +24,51 @@ import com.amazonaws.services.simpledb.util.SimpleDBUtils;
 
 public class ListSDBUtils {
 	
+	/**
+	 * Codes used to dispatch on attribute names while decoding items.
+	 */
+	private static final int TIMESTAMP_CODE = 0;
+	private static final int LAT_CODE = 1;
+	private static final int LONG_CODE = 2;
+	private static final int PHONE_NUMBER_CODE = 3;
+	private static final int TYPE_CODE = 4;
+	private static final int DURATION_CODE = 5;
+	private static final int TIMEFRAME_CODE = 6;
+	private static final int UP_DATA_CODE = 7;
+	private static final int DOWN_DATA_CODE = 8;
+	private static final int RESOLUTION_CODE = 9;
+	private static final int COUNT_CODE = 10;
+	
+	private static final Map<String, Integer> ATTRIBUTE_CODES = new HashMap<String, Integer>();
+	static {
+		ATTRIBUTE_CODES.put(ListSDB.TIMESTAMP_ATTRIBUTE, TIMESTAMP_CODE);
+		ATTRIBUTE_CODES.put(ListSDB.LAT_ATTRIBUTE, LAT_CODE);
+		ATTRIBUTE_CODES.put(ListSDB.LONG_ATTRIBUTE, LONG_CODE);
+		ATTRIBUTE_CODES.put(ListSDB.PHONE_NUMBER_ATTRIBUTE, PHONE_NUMBER_CODE);
+		ATTRIBUTE_CODES.put(ListSDB.TYPE_ATTRIBUTE, TYPE_CODE);
+		ATTRIBUTE_CODES.put(ListSDB.DURATION_ATTRIBUTE, DURATION_CODE);
+		ATTRIBUTE_CODES.put(ListSDB.TIMEFRAME_ATTRIBUTE, TIMEFRAME_CODE);
+		ATTRIBUTE_CODES.put(ListSDB.UP_DATA_ATTRIBUTE, UP_DATA_CODE);
+		ATTRIBUTE_CODES.put(ListSDB.DOWN_DATA_ATTRIBUTE, DOWN_DATA_CODE);
+		ATTRIBUTE_CODES.put(ListSDB.RESOLUTION_ATTRIBUTE, RESOLUTION_CODE);
+		ATTRIBUTE_CODES.put(ListSDB.COUNT_ATTRIBUTE, COUNT_CODE);
+	}
+	
+	/**
+	 * Powers of ten that are exactly representable as doubles.
+	 */
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15 };
+	
 	/**
 	 * Generate PutAttributesRequest for Call object.
 	 * @param call Call for which to generate PutAttributesRequest.
 	 * @param domainName Domain to which to add Call.
+	 * @param itemName Name of the item, from generateItemName().
 	 * @return PutAttributesRequest for call.
 	 */
-	protected static PutAttributesRequest generateCallPutAttributesRequest(Call call, String domainName) {
+	protected static PutAttributesRequest generateCallPutAttributesRequest(Call call, String domainName, 
+			String itemName) {
 		ReplaceableAttribute timestampAttribute = new ReplaceableAttribute(ListSDB.TIMESTAMP_ATTRIBUTE, padTimestamp(call.getTimestamp()), Boolean.TRUE );
 		ReplaceableAttribute phoneNumberAttribute = new ReplaceableAttribute(ListSDB.PHONE_NUMBER_ATTRIBUTE, call.getPhoneNumber(), Boolean.TRUE );
 		ReplaceableAttribute typeAttribute = new ReplaceableAttribute(ListSDB.TYPE_ATTRIBUTE, String.valueOf(call.getType()), Boolean.TRUE );
@@ -44,17 +84,18 @@ public class ListSDBUtils {
 		attrs.add(latAttribute);
 		attrs.add(longAttribute);
 		
-		return new PutAttributesRequest(domainName, padTimestamp(call.getTimestamp()), attrs);	
+		return new PutAttributesRequest(domainName, itemName, attrs);	
 	}
 	/**
 	 * Generate PutAttributesRequest for Data object.
 	 * @param data Data for which to generate PutAttributesRequest.
 	 * @param domainName Domain to which to add Data.
+	 * @param itemName Name of the item, from generateItemName().
 	 * @return PutAttributesRequest for data.
 	 */
-	protected static PutAttributesRequest generateDataPutAttributesRequest(Data data, String domainName) {
+	protected static PutAttributesRequest generateDataPutAttributesRequest(Data data, String domainName, 
+			String itemName) {
 		ReplaceableAttribute timestampAttribute = new ReplaceableAttribute(ListSDB.TIMESTAMP_ATTRIBUTE, padTimestamp(data.getTimestamp()), Boolean.TRUE );
-		ReplaceableAttribute timeframeAttribute = new ReplaceableAttribute(ListSDB.TIMEFRAME_ATTRIBUTE, padTimeframe(data.getTimeframe()), Boolean.TRUE );
 		ReplaceableAttribute upDataAttribute = new ReplaceableAttribute(ListSDB.UP_DATA_ATTRIBUTE, padUpData(data.getUpData()), Boolean.TRUE );
 		ReplaceableAttribute downDataAttribute = new ReplaceableAttribute(ListSDB.DOWN_DATA_ATTRIBUTE, padDownData(data.getDownData()), Boolean.TRUE );
 		ReplaceableAttribute latAttribute = new ReplaceableAttribute(ListSDB.LAT_ATTRIBUTE, padLatitude(data.getLatitude()), Boolean.TRUE );
@@ -62,15 +103,71 @@ public class ListSDBUtils {
 		
 		List<ReplaceableAttribute> attrs = new ArrayList<ReplaceableAttribute>(6);
 		attrs.add(timestampAttribute);
-		attrs.add(timeframeAttribute);
+		// Cumulative samples have no timeframe.
+		if (data.getTimeframe() != null) {
+			attrs.add(new ReplaceableAttribute(ListSDB.TIMEFRAME_ATTRIBUTE, padTimeframe(data.getTimeframe()), Boolean.TRUE ));
+		}
 		attrs.add(upDataAttribute);
 		attrs.add(downDataAttribute);
 		attrs.add(latAttribute);
 		attrs.add(longAttribute);
 		
-		return new PutAttributesRequest(domainName, padTimestamp(data.getTimestamp()), attrs);
+		return new PutAttributesRequest(domainName, itemName, attrs);
+	}
+	
+	/**
+	 * Generate the item name of a call or data row. Rows read from the local
+	 * database are named by device, stream and local row id, so uploading a row
+	 * again always replaces the same item and rows never collide. Rows that were
+	 * never stored locally fall back to their timestamp.
+	 * @param deviceId Id of this install.
+	 * @param streamSuffix Domain name suffix of the stream, such as ListSDB.CALL_DOMAIN_NAME_SUFFIX.
+	 * @param rowId Local row id, or a negative value if there is none.
+	 * @param timestamp Timestamp of the row.
+	 * @return Item name that is unique across devices and rows.
+	 */
+	protected static String generateItemName(String deviceId, String streamSuffix, long rowId, 
+			Timestamp timestamp) {
+		if (rowId < 0) {
+			return deviceId + streamSuffix + "_t" + padTimestamp(timestamp);
+		}
+		return deviceId + streamSuffix + "_" + SimpleDBUtils.encodeZeroPadding(rowId, 20);
 	}
 		
+	/**
+	 * Generate the item name of a rollup. Every device uploads its own totals for
+	 * a bucket, which readers sum, so devices that share a domain prefix never 
+	 * overwrite each other's totals.
+	 * @param deviceId Id of this install.
+	 * @param rollup Rollup to name.
+	 * @return Item name that is unique across devices and buckets.
+	 */
+	protected static String generateRollupItemName(String deviceId, Rollup rollup) {
+		return deviceId + "_" + rollup.getResolution().getName() + "_" + padTimestamp(rollup.getTimestamp());
+	}
+	
+	/**
+	 * Generate PutAttributesRequest for Rollup object. Every attribute is replaced,
+	 * so uploading a bucket again overwrites this device's previous totals.
+	 * @param rollup Rollup for which to generate PutAttributesRequest.
+	 * @param domainName Domain to which to add Rollup.
+	 * @param itemName Name of the item, from generateRollupItemName().
+	 * @return PutAttributesRequest for rollup.
+	 */
+	protected static PutAttributesRequest generateRollupPutAttributesRequest(Rollup rollup, String domainName, 
+			String itemName) {
+		String resolution = rollup.getResolution().getName();
+		List<ReplaceableAttribute> attrs = new ArrayList<ReplaceableAttribute>(6);
+		attrs.add(new ReplaceableAttribute(ListSDB.TIMESTAMP_ATTRIBUTE, padTimestamp(rollup.getTimestamp()), Boolean.TRUE ));
+		attrs.add(new ReplaceableAttribute(ListSDB.RESOLUTION_ATTRIBUTE, resolution, Boolean.TRUE ));
+		attrs.add(new ReplaceableAttribute(ListSDB.UP_DATA_ATTRIBUTE, padUpData(rollup.getUpData()), Boolean.TRUE ));
+		attrs.add(new ReplaceableAttribute(ListSDB.DOWN_DATA_ATTRIBUTE, padDownData(rollup.getDownData()), Boolean.TRUE ));
+		attrs.add(new ReplaceableAttribute(ListSDB.COUNT_ATTRIBUTE, padCount(rollup.getCount()), Boolean.TRUE ));
+		attrs.add(new ReplaceableAttribute(ListSDB.DURATION_ATTRIBUTE, padDuration(rollup.getDuration()), Boolean.TRUE ));
+		
+		return new PutAttributesRequest(domainName, itemName, attrs);
+	}
+	
 	/**
 	 * Convert selectResult to list of calls.
 	 * @param selectResult SelectResult to convert to list.
@@ -100,23 +197,104 @@ public class ListSDBUtils {
 	}
 	
 	/**
-	 * Convert item to Call.
+	 * Convert selectResult to list of rollups.
+	 * @param selectResult SelectResult to convert to list.
+	 * @return List of rollups from selectResult.
+	 */
+	protected static List<Rollup> convertResultToRollupList(SelectResult selectResult) {
+		List<Item> items = selectResult.getItems();
+		List<Rollup> rollups = new ArrayList<Rollup>(items.size());
+		for (Item item : items) {
+			rollups.add(convertItemToRollup(item));
+		}
+		return rollups;
+	}
+	
+	/**
+	 * Convert item to Call. Walks the item's attributes once.
 	 * @param item Item to convert.
 	 * @return Call converted from item.
 	 */
-	private static Call convertItemToCall(Item item) {
-		return new Call(getTimestampFromItem(item), getPhoneNumberFromItem(item), getTypeFromItem(item), 
-				getDurationFromItem(item), getLatFromItem(item), getLongFromItem(item));
+	protected static Call convertItemToCall(Item item) {
+		long timestamp = 0;
+		String phoneNumber = "";
+		int type = 0;
+		long duration = 0;
+		double latitude = 0;
+		double longitude = 0;
+		
+		for (Attribute attribute : item.getAttributes()) {
+			Integer code = ATTRIBUTE_CODES.get(attribute.getName());
+			if (code == null) continue;
+			String value = attribute.getValue();
+			switch (code.intValue()) {
+			case TIMESTAMP_CODE: timestamp = parsePaddedLong(value); break;
+			case PHONE_NUMBER_CODE: phoneNumber = value; break;
+			case TYPE_CODE: type = (int) parsePaddedLong(value); break;
+			case DURATION_CODE: duration = parsePaddedLong(value); break;
+			case LAT_CODE: latitude = parsePaddedDouble(value); break;
+			case LONG_CODE: longitude = parsePaddedDouble(value); break;
+			}
+		}
+		return new Call(new Timestamp(timestamp), phoneNumber, type, duration, latitude, longitude);
+	}
+	
+	/**
+	 * Convert item to Data. Walks the item's attributes once.
+	 * @param item Item to convert.
+	 * @return Data converted from item. Timeframe is null if item has none.
+	 */
+	protected static Data convertItemToData(Item item) {
+		long timestamp = 0;
+		Timestamp timeframe = null;
+		long upData = 0;
+		long downData = 0;
+		double latitude = 0;
+		double longitude = 0;
+		
+		for (Attribute attribute : item.getAttributes()) {
+			Integer code = ATTRIBUTE_CODES.get(attribute.getName());
+			if (code == null) continue;
+			String value = attribute.getValue();
+			switch (code.intValue()) {
+			case TIMESTAMP_CODE: timestamp = parsePaddedLong(value); break;
+			case TIMEFRAME_CODE: timeframe = new Timestamp(parsePaddedLong(value)); break;
+			case UP_DATA_CODE: upData = parsePaddedLong(value); break;
+			case DOWN_DATA_CODE: downData = parsePaddedLong(value); break;
+			case LAT_CODE: latitude = parsePaddedDouble(value); break;
+			case LONG_CODE: longitude = parsePaddedDouble(value); break;
+			}
+		}
+		return new Data(new Timestamp(timestamp), timeframe, upData, downData, latitude, longitude);
 	}
 	
 	/**
-	 * Convert item to Data.
+	 * Convert item to Rollup. Walks the item's attributes once.
 	 * @param item Item to convert.
-	 * @return Data converted from item.
+	 * @return Rollup converted from item.
 	 */
-	private static Data convertItemToData(Item item) {
-		return new Data(getTimestampFromItem(item), getTimeframeFromItem(item), getUpDataFromItem(item), 
-				getDownDataFromItem(item), getLatFromItem(item), getLongFromItem(item));
+	private static Rollup convertItemToRollup(Item item) {
+		Resolution resolution = null;
+		long timestamp = 0;
+		long upData = 0;
+		long downData = 0;
+		long count = 0;
+		long duration = 0;
+		
+		for (Attribute attribute : item.getAttributes()) {
+			Integer code = ATTRIBUTE_CODES.get(attribute.getName());
+			if (code == null) continue;
+			String value = attribute.getValue();
+			switch (code.intValue()) {
+			case TIMESTAMP_CODE: timestamp = parsePaddedLong(value); break;
+			case RESOLUTION_CODE: resolution = Resolution.fromName(value); break;
+			case UP_DATA_CODE: upData = parsePaddedLong(value); break;
+			case DOWN_DATA_CODE: downData = parsePaddedLong(value); break;
+			case COUNT_CODE: count = parsePaddedLong(value); break;
+			case DURATION_CODE: duration = parsePaddedLong(value); break;
+			}
+		}
+		return new Rollup(resolution, new Timestamp(timestamp), upData, downData, count, duration);
 	}
 	
 	/**
@@ -169,125 +347,66 @@ public class ListSDBUtils {
 	}
 	
 	/**
-	 * Get timestamp from item.
-	 */
-	private static Timestamp getTimestampFromItem(Item item) {
-		return new Timestamp(getLongValueForAttributeFromList(ListSDB.TIMESTAMP_ATTRIBUTE, item.getAttributes()));
-	}
-	
-	/**
-	 * Get latitude from item.
-	 */
-	private static double getLatFromItem(Item item) {
-		return getDoubleValueForAttributeFromList(ListSDB.LAT_ATTRIBUTE, item.getAttributes());
-	}
-	
-	/**
-	 * Get longitude from item.
+	 * Pad count.
 	 */
-	private static double getLongFromItem(Item item) {
-		return getDoubleValueForAttributeFromList(ListSDB.LONG_ATTRIBUTE, item.getAttributes());
+	protected static String padCount(long count) {
+		return SimpleDBUtils.encodeZeroPadding(count, 20);
 	}
 	
 	/**
-	 * Get phone number from item.
+	 * Parse a number produced by SimpleDBUtils.encodeZeroPadding(long, int). The
+	 * padding is skipped in place instead of being stripped with substring().
+	 * @param value Zero padded value. Negative values are padded before the sign.
+	 * @return Parsed value.
 	 */
-	private static String getPhoneNumberFromItem(Item item) {
-		return getStringValueForAttributeFromList(ListSDB.PHONE_NUMBER_ATTRIBUTE, item.getAttributes());
-	}
-	
-	/**
-	 * Get type from item.
-	 */
-	private static int getTypeFromItem(Item item) {
-		return getIntValueForAttributeFromList(ListSDB.TYPE_ATTRIBUTE, item.getAttributes());
-	}
-	
-	/**
-	 * Get duration from item.
-	 */
-	private static long getDurationFromItem(Item item) {
-		return getLongValueForAttributeFromList(ListSDB.DURATION_ATTRIBUTE, item.getAttributes());
-	}
-	
-	/**
-	 * Get timeframe from item.
-	 */
-	private static Timestamp getTimeframeFromItem(Item item) {
-		return new Timestamp(getLongValueForAttributeFromList(ListSDB.TIMEFRAME_ATTRIBUTE, item.getAttributes()));
-	}
-	
-	/**
-	 * Get up data from item.
-	 */
-	private static long getUpDataFromItem(Item item) {
-		return getLongValueForAttributeFromList(ListSDB.UP_DATA_ATTRIBUTE, item.getAttributes());
-	}
-	
-	/**
-	 * Get down data from item.
-	 */
-	private static long getDownDataFromItem(Item item) {
-		return getLongValueForAttributeFromList(ListSDB.DOWN_DATA_ATTRIBUTE, item.getAttributes());
-	}
-	
-	/**
-	 * Get string value for attribute from attribute list.
-	 * @param attributeName Name of attribute to find.
-	 * @param attributes List of attributes.
-	 * @return String value for attribute
-	 */
-	private static String getStringValueForAttributeFromList(String attributeName, List<Attribute> attributes) {
-		for (Attribute attribute : attributes) {
-			if (attribute.getName().equals(attributeName)) {
-				return attribute.getValue();
-			}
+	protected static long parsePaddedLong(String value) {
+		int length = value.length();
+		int i = 0;
+		while (i < length && value.charAt(i) == '0') i++;
+		boolean negative = (i < length && value.charAt(i) == '-');
+		if (negative) i++;
+		
+		long result = 0;
+		for (; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') throw new NumberFormatException(value);
+			result = result * 10 + (c - '0');
 		}
-		return "";		
+		return negative ? -result : result;
 	}
 	
 	/**
-	 * Get string value for attribute from attribute list.
-	 * @param attributeName Name of attribute to find.
-	 * @param attributes List of attributes.
-	 * @return String value for attribute
-	 */
-	private static int getIntValueForAttributeFromList(String attributeName, List<Attribute> attributes) {
-		for (Attribute attribute : attributes) {
-			if (attribute.getName().equals( attributeName)) {
-				return Integer.parseInt(attribute.getValue());
-			}
-		}	
-		return 0;		
-	}	
-	
-	/**
-	 * Get string value for attribute from attribute list.
-	 * @param attributeName Name of attribute to find.
-	 * @param attributes List of attributes.
-	 * @return String value for attribute
+	 * Parse a number produced by SimpleDBUtils.encodeZeroPadding(float, int). Plain
+	 * decimals are parsed in place; anything else (such as exponents) falls back 
+	 * to Double.parseDouble().
+	 * @param value Zero padded value. Negative values are padded before the sign.
+	 * @return Parsed value.
 	 */
-	private static long getLongValueForAttributeFromList(String attributeName, List<Attribute> attributes) {
-		for (Attribute attribute : attributes) {
-			if (attribute.getName().equals( attributeName)) {
-				return Long.parseLong(attribute.getValue());
-			}
-		}	
-		return 0;		
-	}	
-	
-	/**
-	 * Get string value for attribute from attribute list.
-	 * @param attributeName Name of attribute to find.
-	 * @param attributes List of attributes.
-	 * @return String value for attribute
-	 */
-	private static double getDoubleValueForAttributeFromList(String attributeName, List<Attribute> attributes) {
-		for (Attribute attribute : attributes) {
-			if (attribute.getName().equals( attributeName)) {
-				return Double.parseDouble(attribute.getValue());
+	protected static double parsePaddedDouble(String value) {
+		int length = value.length();
+		int i = 0;
+		while (i < length && value.charAt(i) == '0') i++;
+		int start = i;
+		boolean negative = (i < length && value.charAt(i) == '-');
+		if (negative) i++;
+		
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = -1;
+		for (; i < length; i++) {
+			char c = value.charAt(i);
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				if (fractionDigits >= 0) fractionDigits++;
+				// Doubles represent integers of up to 15 digits exactly.
+				if (++digits > 15) return Double.parseDouble(value.substring(start));
+			} else if (c == '.' && fractionDigits < 0) {
+				fractionDigits = 0;
+			} else {
+				return Double.parseDouble(value.substring(start));
 			}
-		}	
-		return 0;		
+		}
+		double result = (fractionDigits > 0) ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+		return negative ? -result : result;
 	}
 }
@@ -3,35 +3,46 @@
  * Date: 4-14-2014
  * 
  * ListSQL.java
- * Subclass of SQLiteOpenHelper that creates all of the local
- * SQL database tables. This also contains generic logic for 
- * adding and removing items from the database.
+ * Controller for the local SQL database. All subclasses share a
+ * single long-lived SQLiteOpenHelper that creates all of the local
+ * SQL database tables, so the database stays open between writes.
+ * This also contains generic logic for adding and removing items
+ * from the database.
  */
 
 package com.samgavis.usagetracker;
 
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
-public abstract class ListSQL<Item> extends SQLiteOpenHelper {
+public abstract class ListSQL<Item> {
 	
 	/**
 	 * Database-specific info
 	 */
-	protected static final int SQL_DB_VERSION = 1;
+	protected static final int SQL_DB_VERSION = 6;
 	protected static final String SQL_DB_NAME = "rightcallLocal";
 	
 	protected static final String MOBILE_TABLE_NAME = "mobile_data";
 	protected static final String WIFI_TABLE_NAME = "wifi_data";
 	protected static final String CALL_TABLE_NAME = "call_data";
 	
+	protected static final String MOBILE_ROLLUP_TABLE_NAME = "mobile_rollup";
+	protected static final String WIFI_ROLLUP_TABLE_NAME = "wifi_rollup";
+	protected static final String CALL_ROLLUP_TABLE_NAME = "call_rollup";
+	
+	protected static final String UPLOAD_STATE_TABLE_NAME = "upload_state";
+	protected static final String CAPTURE_STATE_TABLE_NAME = "capture_state";
+	
 	/**
 	 * Keys that are used by all subclasses. All of these
 	 * keys must be included in this class to properly instantiate
@@ -45,6 +56,7 @@ public abstract class ListSQL<Item> extends SQLiteOpenHelper {
 	/**
 	 * Data-specific keys.
 	 */
+	protected static final String TIMEFRAME_KEY = "timeframe";
 	protected static final String UP_DATA_KEY = "updata";
 	protected static final String DOWN_DATA_KEY = "downdata";
 	
@@ -54,49 +66,309 @@ public abstract class ListSQL<Item> extends SQLiteOpenHelper {
 	protected static final String PHONE_NUMBER_KEY = "number";
 	protected static final String TYPE_KEY = "type";
 	protected static final String DURATION_KEY = "duration";
+	
+	/**
+	 * Rollup-specific keys. Rollups store the start of their bucket
+	 * under TIMESTAMP_KEY.
+	 */
+	protected static final String RESOLUTION_KEY = "resolution";
+	protected static final String COUNT_KEY = "count";
+	protected static final String REVISION_KEY = "revision";
+	protected static final String SYNCED_REVISION_KEY = "synced";
+	
+	/**
+	 * Upload state keys. Each row holds the id of the last row of a table
+	 * that was uploaded.
+	 */
+	protected static final String TABLE_NAME_KEY = "tablename";
+	protected static final String UPLOADED_ID_KEY = "uploaded";
+	
+	/**
+	 * Capture state keys. Each row holds one named value that capture services
+	 * write in the same transaction as the rows they capture.
+	 */
+	protected static final String STATE_NAME_KEY = "name";
+	protected static final String STATE_VALUE_KEY = "value";
+	
+	/**
+	 * Column definitions of the data and call tables. Ids are AUTOINCREMENT so
+	 * they are never reused after uploaded rows are purged, which keeps every
+	 * new row above the upload state of its table.
+	 */
+	private static final String DATA_TABLE_SCHEMA = "("
+			+ ID + " INTEGER PRIMARY KEY AUTOINCREMENT," + TIMESTAMP_KEY + " INTEGER,"
+			+ UP_DATA_KEY + " INTEGER," + DOWN_DATA_KEY + " INTEGER,"
+			+ LAT_KEY + " REAL," + LONG_KEY + " REAL," + TIMEFRAME_KEY + " INTEGER" + ")";
+	private static final String CALL_TABLE_SCHEMA = "("
+			+ ID + " INTEGER PRIMARY KEY AUTOINCREMENT," + TIMESTAMP_KEY + " INTEGER,"
+			+ PHONE_NUMBER_KEY + " TEXT," + TYPE_KEY + " INTEGER,"
+			+ DURATION_KEY + " INTEGER," + LAT_KEY + " REAL,"
+			+ LONG_KEY + " REAL" + ")";
+	
+	/**
+	 * Helper shared by every ListSQL instance in the process. Opening
+	 * the database is expensive, so it is never closed once opened.
+	 */
+	private static DatabaseHelper sHelper;
+	
+	private final DatabaseHelper mHelper;
 
 	/**
 	 * Public constructor.
 	 * @param context Current context.
 	 */
 	public ListSQL(Context context) {
-		super(context, SQL_DB_NAME, null, SQL_DB_VERSION);
+		mHelper = getHelper(context);
+	}
+	
+	/**
+	 * Get the shared database helper, creating it if necessary.
+	 * @param context Current context.
+	 * @return Process-wide database helper.
+	 */
+	private static synchronized DatabaseHelper getHelper(Context context) {
+		if (sHelper == null) {
+			sHelper = new DatabaseHelper(context.getApplicationContext());
+		}
+		return sHelper;
+	}
+	
+	/**
+	 * Get the shared writable database.
+	 */
+	protected SQLiteDatabase getWritableDatabase() {
+		return mHelper.getWritableDatabase();
+	}
+	
+	/**
+	 * Get the shared readable database.
+	 */
+	protected SQLiteDatabase getReadableDatabase() {
+		return mHelper.getReadableDatabase();
+	}
+	
+	/**
+	 * Begin a transaction on the shared database. Transactions nest, so
+	 * writes from several ListSQL subclasses can be committed together.
+	 */
+	protected void beginTransaction() {
+		getWritableDatabase().beginTransaction();
+	}
+	
+	/**
+	 * Mark the current transaction as successful.
+	 */
+	protected void setTransactionSuccessful() {
+		getWritableDatabase().setTransactionSuccessful();
+	}
+	
+	/**
+	 * End the current transaction, committing it if it was marked successful.
+	 */
+	protected void endTransaction() {
+		getWritableDatabase().endTransaction();
 	}
 
 	/**
-	 * Overrides SQLiteOpenHelper's onCreate method. Creates all local
-	 * databases if necessary.
-	 */
-	@Override
-	public void onCreate(SQLiteDatabase db) {
-		String CREATE_MOBILE_DATA_TABLE = "CREATE TABLE " + MOBILE_TABLE_NAME + "("
-                + ID + " INTEGER PRIMARY KEY," + TIMESTAMP_KEY + " TEXT,"
-                + UP_DATA_KEY + " TEXT," + DOWN_DATA_KEY + " TEXT," 
-                + LAT_KEY + " TEXT," + LONG_KEY + " TEXT" + ")";
-		String CREATE_WIFI_DATA_TABLE = "CREATE TABLE " + WIFI_TABLE_NAME + "("
-                + ID + " INTEGER PRIMARY KEY," + TIMESTAMP_KEY + " TEXT,"
-                + UP_DATA_KEY + " TEXT," + DOWN_DATA_KEY + " TEXT," 
-                + LAT_KEY + " TEXT," + LONG_KEY + " TEXT" + ")";
-		String CREATE_CALL_DATA_TABLE = "CREATE TABLE " + CALL_TABLE_NAME + "("
-                + ID + " INTEGER PRIMARY KEY," + TIMESTAMP_KEY + " TEXT," 
-				+ PHONE_NUMBER_KEY + " TEXT," + TYPE_KEY + " TEXT," 
-                + DURATION_KEY + " TEXT," + LAT_KEY + " TEXT," 
-                + LONG_KEY + " TEXT" + ")";
-        db.execSQL(CREATE_MOBILE_DATA_TABLE);
-        db.execSQL(CREATE_WIFI_DATA_TABLE);
-        db.execSQL(CREATE_CALL_DATA_TABLE);
+	 * SQLiteOpenHelper that creates and upgrades all of the local tables.
+	 */
+	private static class DatabaseHelper extends SQLiteOpenHelper {
+		
+		private DatabaseHelper(Context context) {
+			super(context, SQL_DB_NAME, null, SQL_DB_VERSION);
+		}
+		
+		/**
+		 * Overrides SQLiteOpenHelper's onCreate method. Creates all local
+		 * databases if necessary.
+		 */
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			ListSQL.onCreate(db);
+		}
 		
+		/**
+		 * Create new tables on Upgrade.
+		 */
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			ListSQL.onUpgrade(db, oldVersion, newVersion);
+		}
+	}
+
+	/**
+	 * Creates all local databases if necessary.
+	 */
+	private static void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + MOBILE_TABLE_NAME + DATA_TABLE_SCHEMA);
+        db.execSQL("CREATE TABLE " + WIFI_TABLE_NAME + DATA_TABLE_SCHEMA);
+        db.execSQL("CREATE TABLE " + CALL_TABLE_NAME + CALL_TABLE_SCHEMA);
+        createTimestampIndex(db, MOBILE_TABLE_NAME);
+        createTimestampIndex(db, WIFI_TABLE_NAME);
+        createTimestampIndex(db, CALL_TABLE_NAME);
+        createRollupTables(db);
+        createUploadStateTable(db);
+        createCaptureStateTable(db);
+	}
+	
+	/**
+	 * Create the rollup tables. Each row holds the totals of one bucket, so
+	 * (resolution, timestamp) is unique.
+	 */
+	private static void createRollupTables(SQLiteDatabase db) {
+		String[] tableNames = { MOBILE_ROLLUP_TABLE_NAME, WIFI_ROLLUP_TABLE_NAME, CALL_ROLLUP_TABLE_NAME };
+		for (String tableName : tableNames) {
+			db.execSQL("CREATE TABLE " + tableName + "("
+					+ ID + " INTEGER PRIMARY KEY," + TIMESTAMP_KEY + " INTEGER,"
+					+ RESOLUTION_KEY + " INTEGER," + UP_DATA_KEY + " INTEGER,"
+					+ DOWN_DATA_KEY + " INTEGER," + COUNT_KEY + " INTEGER,"
+					+ DURATION_KEY + " INTEGER," + REVISION_KEY + " INTEGER,"
+					+ SYNCED_REVISION_KEY + " INTEGER,"
+					+ "UNIQUE(" + RESOLUTION_KEY + "," + TIMESTAMP_KEY + "))");
+		}
+	}
+	
+	/**
+	 * Create the upload state table, which holds one row per uploaded table.
+	 */
+	private static void createUploadStateTable(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + UPLOAD_STATE_TABLE_NAME + "("
+				+ TABLE_NAME_KEY + " TEXT PRIMARY KEY," + UPLOADED_ID_KEY + " INTEGER)");
+	}
+	
+	/**
+	 * Create the capture state table, which holds one row per named value.
+	 */
+	private static void createCaptureStateTable(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + CAPTURE_STATE_TABLE_NAME + "("
+				+ STATE_NAME_KEY + " TEXT PRIMARY KEY," + STATE_VALUE_KEY + " INTEGER)");
+	}
+	
+	/**
+	 * Create an index on the timestamp column of table.
+	 * @param db Database to modify.
+	 * @param tableName Name of the table to index.
+	 */
+	private static void createTimestampIndex(SQLiteDatabase db, String tableName) {
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + tableName + "_" + TIMESTAMP_KEY + "_index ON "
+				+ tableName + "(" + TIMESTAMP_KEY + ")");
 	}
 
 	/**
-	 * Create new tables on Upgrade.
+	 * Migrate tables on Upgrade. Each step upgrades the schema by exactly
+	 * one version and preserves existing rows, so any older database can be
+	 * brought up to date by running the steps in order.
+	 */
+	private static void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		if (oldVersion < 2) {
+			upgradeToVersion2(db);
+		}
+		if (oldVersion < 3) {
+			upgradeToVersion3(db);
+		}
+		if (oldVersion < 4) {
+			upgradeToVersion4(db);
+		}
+		if (oldVersion < 5) {
+			upgradeToVersion5(db);
+		}
+		if (oldVersion < 6) {
+			upgradeToVersion6(db);
+		}
+	}
+	
+	/**
+	 * Version 2 stores numeric columns as INTEGER/REAL instead of TEXT and
+	 * indexes every table on timestamp.
+	 */
+	private static void upgradeToVersion2(SQLiteDatabase db) {
+		String dataColumns = ID + "," + TIMESTAMP_KEY + "," + UP_DATA_KEY + ","
+				+ DOWN_DATA_KEY + "," + LAT_KEY + "," + LONG_KEY;
+		String dataValues = ID + ", CAST(" + TIMESTAMP_KEY + " AS INTEGER), CAST(" + UP_DATA_KEY
+				+ " AS INTEGER), CAST(" + DOWN_DATA_KEY + " AS INTEGER), CAST(" + LAT_KEY
+				+ " AS REAL), CAST(" + LONG_KEY + " AS REAL)";
+		String dataSchema = "(" + ID + " INTEGER PRIMARY KEY," + TIMESTAMP_KEY + " INTEGER,"
+				+ UP_DATA_KEY + " INTEGER," + DOWN_DATA_KEY + " INTEGER,"
+				+ LAT_KEY + " REAL," + LONG_KEY + " REAL" + ")";
+		String callColumns = ID + "," + TIMESTAMP_KEY + "," + PHONE_NUMBER_KEY + ","
+				+ TYPE_KEY + "," + DURATION_KEY + "," + LAT_KEY + "," + LONG_KEY;
+		String callValues = ID + ", CAST(" + TIMESTAMP_KEY + " AS INTEGER), " + PHONE_NUMBER_KEY
+				+ ", CAST(" + TYPE_KEY + " AS INTEGER), CAST(" + DURATION_KEY + " AS INTEGER), CAST("
+				+ LAT_KEY + " AS REAL), CAST(" + LONG_KEY + " AS REAL)";
+		String callSchema = "(" + ID + " INTEGER PRIMARY KEY," + TIMESTAMP_KEY + " INTEGER,"
+				+ PHONE_NUMBER_KEY + " TEXT," + TYPE_KEY + " INTEGER,"
+				+ DURATION_KEY + " INTEGER," + LAT_KEY + " REAL,"
+				+ LONG_KEY + " REAL" + ")";
+		
+		rebuildTable(db, MOBILE_TABLE_NAME, dataSchema, dataColumns, dataValues);
+		rebuildTable(db, WIFI_TABLE_NAME, dataSchema, dataColumns, dataValues);
+		rebuildTable(db, CALL_TABLE_NAME, callSchema, callColumns, callValues);
+		createTimestampIndex(db, MOBILE_TABLE_NAME);
+		createTimestampIndex(db, WIFI_TABLE_NAME);
+		createTimestampIndex(db, CALL_TABLE_NAME);
+	}
+	
+	/**
+	 * Version 3 adds the start of the interval covered by each data row. Existing 
+	 * rows keep a null timeframe, which marks them as cumulative counters.
 	 */
-	@Override
-	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-	       db.execSQL("DROP TABLE IF EXISTS " + MOBILE_TABLE_NAME);
-	       db.execSQL("DROP TABLE IF EXISTS " + WIFI_TABLE_NAME);
-	       db.execSQL("DROP TABLE IF EXISTS " + CALL_TABLE_NAME);
-	       onCreate(db);
+	private static void upgradeToVersion3(SQLiteDatabase db) {
+		db.execSQL("ALTER TABLE " + MOBILE_TABLE_NAME + " ADD COLUMN " + TIMEFRAME_KEY + " INTEGER");
+		db.execSQL("ALTER TABLE " + WIFI_TABLE_NAME + " ADD COLUMN " + TIMEFRAME_KEY + " INTEGER");
+	}
+	
+	/**
+	 * Version 4 adds the rollup tables. Rollups only count rows added after
+	 * the upgrade.
+	 */
+	private static void upgradeToVersion4(SQLiteDatabase db) {
+		createRollupTables(db);
+	}
+	
+	/**
+	 * Version 5 tracks upload progress with the id of the last uploaded row
+	 * of each table, so ids become AUTOINCREMENT. Existing rows have not been 
+	 * uploaded, since uploaded rows used to be deleted.
+	 */
+	private static void upgradeToVersion5(SQLiteDatabase db) {
+		String dataColumns = ID + "," + TIMESTAMP_KEY + "," + UP_DATA_KEY + "," + DOWN_DATA_KEY + ","
+				+ LAT_KEY + "," + LONG_KEY + "," + TIMEFRAME_KEY;
+		String callColumns = ID + "," + TIMESTAMP_KEY + "," + PHONE_NUMBER_KEY + "," + TYPE_KEY + ","
+				+ DURATION_KEY + "," + LAT_KEY + "," + LONG_KEY;
+		
+		rebuildTable(db, MOBILE_TABLE_NAME, DATA_TABLE_SCHEMA, dataColumns, dataColumns);
+		rebuildTable(db, WIFI_TABLE_NAME, DATA_TABLE_SCHEMA, dataColumns, dataColumns);
+		rebuildTable(db, CALL_TABLE_NAME, CALL_TABLE_SCHEMA, callColumns, callColumns);
+		createTimestampIndex(db, MOBILE_TABLE_NAME);
+		createTimestampIndex(db, WIFI_TABLE_NAME);
+		createTimestampIndex(db, CALL_TABLE_NAME);
+		createUploadStateTable(db);
+	}
+	
+	/**
+	 * Version 6 keeps capture state, such as the call log watermark, in the
+	 * database so it commits atomically with the captured rows.
+	 */
+	private static void upgradeToVersion6(SQLiteDatabase db) {
+		createCaptureStateTable(db);
+	}
+	
+	/**
+	 * Recreate table with a new schema, copying every existing row.
+	 * @param db Database to modify.
+	 * @param tableName Name of the table to rebuild.
+	 * @param schema Column definitions of the new table.
+	 * @param columns Columns of the new table to fill.
+	 * @param values Expressions over the old table's columns, one per column.
+	 */
+	private static void rebuildTable(SQLiteDatabase db, String tableName, String schema,
+			String columns, String values) {
+		String oldTableName = tableName + "_old";
+		db.execSQL("ALTER TABLE " + tableName + " RENAME TO " + oldTableName);
+		db.execSQL("CREATE TABLE " + tableName + schema);
+		db.execSQL("INSERT INTO " + tableName + " (" + columns + ") SELECT " + values
+				+ " FROM " + oldTableName);
+		db.execSQL("DROP TABLE " + oldTableName);
 	}
 	
 	/**
@@ -105,19 +377,75 @@ public abstract class ListSQL<Item> extends SQLiteOpenHelper {
 	 * @param tableName Name of the table to add the Item to.
 	 */
 	protected void addItem(Item item, String tableName) {
-		ContentValues values = generateValues(item);
+		addItems(Collections.singletonList(item), tableName);
+	}
+	
+	/**
+	 * Add a collection of items to the local database in a single transaction.
+	 * One compiled insert statement is reused for every item.
+	 * @param items Items to be added to the database.
+	 * @param tableName Name of the table to add the Items to.
+	 */
+	protected void addItems(Collection<Item> items, String tableName) {
+		if (items.isEmpty()) return;
+		
 		SQLiteDatabase db = this.getWritableDatabase();
-		db.insert(tableName, null, values);
-	    db.close();
+		SQLiteStatement statement = db.compileStatement(generateInsertStatement(tableName));
+		db.beginTransaction();
+		try {
+			for (Item item : items) {
+				statement.clearBindings();
+				bindValues(statement, item);
+				statement.executeInsert();
+			}
+			onItemsAdded(items);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			statement.close();
+		}
+	}
+	
+	/**
+	 * Called inside the insert transaction after items were added, so that
+	 * derived tables are updated atomically with the items. Does nothing by default.
+	 * @param items Items that were added.
+	 */
+	protected void onItemsAdded(Collection<Item> items) {
 	}
 	
 	/**
-	 * Helper method converts item into ContentValues object that
-	 * can be added to the SQLite database.
-	 * @param item Item to be converted into ContentValues object.
-	 * @return ContentValues object containing the values from item.
+	 * Helper method generates an insert statement for every column
+	 * returned by getInsertColumns().
+	 * @param tableName Name of the table to insert into.
+	 * @return SQL insert statement with one parameter per column.
+	 */
+	private String generateInsertStatement(String tableName) {
+		String[] columns = getInsertColumns();
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(tableName).append(" (");
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0) sql.append(",");
+			sql.append(columns[i]);
+		}
+		sql.append(") VALUES (");
+		for (int i = 0; i < columns.length; i++) {
+			sql.append(i > 0 ? ",?" : "?");
+		}
+		return sql.append(")").toString();
+	}
+	
+	/**
+	 * Columns bound by bindValues(), in binding order.
+	 * @return Names of the columns to insert.
+	 */
+	protected abstract String[] getInsertColumns();
+	
+	/**
+	 * Helper method binds item to a compiled insert statement.
+	 * @param statement Statement generated from getInsertColumns().
+	 * @param item Item to bind.
 	 */
-	protected abstract ContentValues generateValues(Item item);
+	protected abstract void bindValues(SQLiteStatement statement, Item item);
 	
 	/**
 	 * Get a list of all of the items in table.
@@ -136,6 +464,7 @@ public abstract class ListSQL<Item> extends SQLiteOpenHelper {
 	    		itemList.add(convertCursorToItem(cursor));
 	    	} while (cursor.moveToNext());
 	    }
+	    cursor.close();
 	    
 	    return itemList;
 	}
@@ -148,17 +477,100 @@ public abstract class ListSQL<Item> extends SQLiteOpenHelper {
 	protected abstract Item convertCursorToItem(Cursor cursor);
 	
 	/**
-	 * Get the number of items in table.
+	 * Get the row id item was read with, which getItemsToUpload() sets.
+	 * @param item Item read from table.
+	 * @return Row id of item.
+	 */
+	protected abstract long getRowId(Item item);
+	
+	/**
+	 * Get the number of items in table. Only the count is read.
 	 * @param tableName Name of the table to query.
 	 * @return Number of items in table.
 	 */
 	protected int getCount(String tableName) {
-		String query = "SELECT  * FROM " + tableName;
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.rawQuery(query, null);
-        cursor.close();
- 
-        return cursor.getCount();
+		return getCount(null, null, tableName);
+	}
+	
+	/**
+	 * Get the number of items within range of timestamps (inclusive).
+	 * @param earliest Earliest time to include. Null means no lower bound.
+	 * @param latest Latest time to include. Null means no upper bound.
+	 * @param tableName Name of the table to query.
+	 * @return Number of items in range.
+	 */
+	protected int getCount(Timestamp earliest, Timestamp latest, String tableName) {
+		Long count = aggregate("COUNT(*)", earliest, latest, tableName);
+		return (count == null) ? 0 : count.intValue();
+	}
+	
+	/**
+	 * Get the sum of column over items within range of timestamps (inclusive).
+	 * @param column Integer column to sum.
+	 * @param earliest Earliest time to include. Null means no lower bound.
+	 * @param latest Latest time to include. Null means no upper bound.
+	 * @param tableName Name of the table to query.
+	 * @return Sum of column, 0 if there are no items in range.
+	 */
+	protected long getSum(String column, Timestamp earliest, Timestamp latest, String tableName) {
+		Long sum = aggregate("SUM(" + column + ")", earliest, latest, tableName);
+		return (sum == null) ? 0 : sum.longValue();
+	}
+	
+	/**
+	 * Get the smallest value of column over items within range of timestamps (inclusive).
+	 * @param column Integer column to read.
+	 * @param earliest Earliest time to include. Null means no lower bound.
+	 * @param latest Latest time to include. Null means no upper bound.
+	 * @param tableName Name of the table to query.
+	 * @return Smallest value, or null if there are no items in range.
+	 */
+	protected Long getMin(String column, Timestamp earliest, Timestamp latest, String tableName) {
+		return aggregate("MIN(" + column + ")", earliest, latest, tableName);
+	}
+	
+	/**
+	 * Get the largest value of column over items within range of timestamps (inclusive).
+	 * @param column Integer column to read.
+	 * @param earliest Earliest time to include. Null means no lower bound.
+	 * @param latest Latest time to include. Null means no upper bound.
+	 * @param tableName Name of the table to query.
+	 * @return Largest value, or null if there are no items in range.
+	 */
+	protected Long getMax(String column, Timestamp earliest, Timestamp latest, String tableName) {
+		return aggregate("MAX(" + column + ")", earliest, latest, tableName);
+	}
+	
+	/**
+	 * Helper method evaluates an aggregate expression over items within range
+	 * of timestamps (inclusive). The timestamp index keeps this from scanning
+	 * the whole table when a range is given.
+	 * @param expression Aggregate expression, such as COUNT(*).
+	 * @param earliest Earliest time to include. Null means no lower bound.
+	 * @param latest Latest time to include. Null means no upper bound.
+	 * @param tableName Name of the table to query.
+	 * @return Value of expression, or null if it is NULL.
+	 */
+	private Long aggregate(String expression, Timestamp earliest, Timestamp latest, String tableName) {
+		StringBuilder query = new StringBuilder("SELECT ").append(expression)
+				.append(" FROM ").append(tableName);
+		List<String> args = new ArrayList<String>(2);
+		if (earliest != null) {
+			query.append(" WHERE ").append(TIMESTAMP_KEY).append(">=?");
+			args.add(String.valueOf(earliest.getTime()));
+		}
+		if (latest != null) {
+			query.append(args.isEmpty() ? " WHERE " : " AND ").append(TIMESTAMP_KEY).append("<=?");
+			args.add(String.valueOf(latest.getTime()));
+		}
+		
+		Cursor cursor = getReadableDatabase().rawQuery(query.toString(), args.toArray(new String[args.size()]));
+		try {
+			if (!cursor.moveToFirst() || cursor.isNull(0)) return null;
+			return cursor.getLong(0);
+		} finally {
+			cursor.close();
+		}
 	}
 	
 	/**
@@ -169,7 +581,114 @@ public abstract class ListSQL<Item> extends SQLiteOpenHelper {
 	protected void deleteItem(Timestamp timestamp, String tableName) {
 		SQLiteDatabase db = this.getWritableDatabase();
 		db.delete(tableName, TIMESTAMP_KEY + "=" + timestamp.getTime(), null);
-		db.close();
+	}
+	
+	/**
+	 * Get items that have not been uploaded yet, in the order they were added.
+	 * @param limit Maximum number of items to return.
+	 * @param tableName Name of the table to query.
+	 * @return Up to limit items above the upload state of table, with row ids.
+	 */
+	protected List<Item> getItemsToUpload(int limit, String tableName) {
+		List<Item> itemList = new ArrayList<Item>();
+		Cursor cursor = getReadableDatabase().rawQuery("SELECT * FROM " + tableName + " WHERE " + ID 
+				+ ">? ORDER BY " + ID + " LIMIT " + limit, 
+				new String[] { String.valueOf(getUploadedId(tableName)) });
+		try {
+			while (cursor.moveToNext()) {
+				itemList.add(convertCursorToItem(cursor));
+			}
+		} finally {
+			cursor.close();
+		}
+		return itemList;
+	}
+	
+	/**
+	 * Get the number of items that have not been uploaded yet.
+	 * @param tableName Name of the table to query.
+	 * @return Number of items above the upload state of table.
+	 */
+	protected int getCountToUpload(String tableName) {
+		Cursor cursor = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + tableName 
+				+ " WHERE " + ID + ">?", new String[] { String.valueOf(getUploadedId(tableName)) });
+		try {
+			return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Get the id of the last uploaded row of table.
+	 * @param tableName Name of the table to query.
+	 * @return Row id, or 0 if nothing has been uploaded.
+	 */
+	protected long getUploadedId(String tableName) {
+		Cursor cursor = getReadableDatabase().rawQuery("SELECT " + UPLOADED_ID_KEY + " FROM " 
+				+ UPLOAD_STATE_TABLE_NAME + " WHERE " + TABLE_NAME_KEY + "=?", new String[] { tableName });
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Record that every row of table up to and including rowId was uploaded.
+	 * The upload state never moves backwards.
+	 * @param rowId Id of the last uploaded row.
+	 * @param tableName Name of the uploaded table.
+	 */
+	protected void markUploaded(long rowId, String tableName) {
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			if (rowId > getUploadedId(tableName)) {
+				db.execSQL("INSERT OR REPLACE INTO " + UPLOAD_STATE_TABLE_NAME + " (" + TABLE_NAME_KEY 
+						+ "," + UPLOADED_ID_KEY + ") VALUES (?,?)", new Object[] { tableName, rowId });
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+	
+	/**
+	 * Get a capture state value.
+	 * @param name Name of the value.
+	 * @param defaultValue Value to return if none is stored.
+	 * @return Stored value, or defaultValue.
+	 */
+	protected long getCaptureState(String name, long defaultValue) {
+		Cursor cursor = getReadableDatabase().rawQuery("SELECT " + STATE_VALUE_KEY + " FROM " 
+				+ CAPTURE_STATE_TABLE_NAME + " WHERE " + STATE_NAME_KEY + "=?", new String[] { name });
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : defaultValue;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Store a capture state value. Call inside the transaction that adds the
+	 * rows the value describes.
+	 * @param name Name of the value.
+	 * @param value Value to store.
+	 */
+	protected void setCaptureState(String name, long value) {
+		getWritableDatabase().execSQL("INSERT OR REPLACE INTO " + CAPTURE_STATE_TABLE_NAME + " (" 
+				+ STATE_NAME_KEY + "," + STATE_VALUE_KEY + ") VALUES (?,?)", new Object[] { name, value });
+	}
+	
+	/**
+	 * Delete every uploaded row of table with a single range delete.
+	 * @param tableName Name of the table to purge.
+	 */
+	protected void pruneUploaded(String tableName) {
+		getWritableDatabase().execSQL("DELETE FROM " + tableName + " WHERE " + ID + "<=(SELECT " 
+				+ UPLOADED_ID_KEY + " FROM " + UPLOAD_STATE_TABLE_NAME + " WHERE " + TABLE_NAME_KEY 
+				+ "=?)", new Object[] { tableName });
 	}
 	
 	/**
@@ -179,7 +698,6 @@ public abstract class ListSQL<Item> extends SQLiteOpenHelper {
 	protected void deleteAll(String tableName) {
 		SQLiteDatabase db = this.getWritableDatabase();
 	    db.delete(tableName, null, null);
-	    db.close();
 	}
 }
 
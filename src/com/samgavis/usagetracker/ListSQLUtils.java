@@ -10,94 +10,142 @@ package com.samgavis.usagetracker;
 
 import java.sql.Timestamp;
 
-import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 
 public class ListSQLUtils {
 	
 	/**
-	 * Generate ConventValues object for Call object.
-	 * @param call Call object to be converted.
-	 * @return ContentValues object containing data from call.
-	 */
-	protected static ContentValues generateCallContentValues(Call call) {
-		String timestamp = String.valueOf(call.getTimestamp().getTime());
-		String phoneNumber = call.getPhoneNumber();
-		String type = String.valueOf(call.getType());
-		String duration = String.valueOf(call.getDuration());
-		String latitude = String.valueOf((float)call.getLatitude());
-		String longitude = String.valueOf((float)call.getLongitude());
-		
-		ContentValues values = new ContentValues();
-		
-		values.put(ListSQL.TIMESTAMP_KEY, timestamp);
-		values.put(ListSQL.PHONE_NUMBER_KEY, phoneNumber);
-		values.put(ListSQL.TYPE_KEY, type);
-		values.put(ListSQL.DURATION_KEY, duration);
-		values.put(ListSQL.LAT_KEY, latitude);
-		values.put(ListSQL.LONG_KEY, longitude);
-		
-		return values;
-	}
-	
-	/**
-	 * Generate ContentValues object for Data object.
-	 * @param data Data object to be converted.
-	 * @return ContentValues object containing data from data.
-	 */
-	protected static ContentValues generateDataContentValues(Data data) {
-		String timestamp = String.valueOf(data.getTimestamp().getTime());
-		String upData = String.valueOf(data.getUpData());
-		String downData = String.valueOf(data.getDownData());
-		String latitude = String.valueOf((float)data.getLatitude());
-		String longitude = String.valueOf((float)data.getLongitude());
-		
-		ContentValues values = new ContentValues();
-		
-		values.put(ListSQL.TIMESTAMP_KEY, timestamp);
-		values.put(ListSQL.UP_DATA_KEY, upData);
-		values.put(ListSQL.DOWN_DATA_KEY, downData);
-		values.put(ListSQL.LAT_KEY, latitude);
-		values.put(ListSQL.LONG_KEY, longitude);
-		
-		return values;
+	 * Columns bound by bindCallStatement(), in binding order.
+	 */
+	protected static final String[] CALL_INSERT_COLUMNS = {
+		ListSQL.TIMESTAMP_KEY, ListSQL.PHONE_NUMBER_KEY, ListSQL.TYPE_KEY,
+		ListSQL.DURATION_KEY, ListSQL.LAT_KEY, ListSQL.LONG_KEY };
+	
+	/**
+	 * Columns bound by bindDataStatement(), in binding order.
+	 */
+	protected static final String[] DATA_INSERT_COLUMNS = {
+		ListSQL.TIMESTAMP_KEY, ListSQL.UP_DATA_KEY, ListSQL.DOWN_DATA_KEY,
+		ListSQL.LAT_KEY, ListSQL.LONG_KEY, ListSQL.TIMEFRAME_KEY };
+	
+	/**
+	 * Columns bound by bindRollupStatement(), in binding order.
+	 */
+	protected static final String[] ROLLUP_INSERT_COLUMNS = {
+		ListSQL.TIMESTAMP_KEY, ListSQL.RESOLUTION_KEY, ListSQL.UP_DATA_KEY,
+		ListSQL.DOWN_DATA_KEY, ListSQL.COUNT_KEY, ListSQL.DURATION_KEY, 
+		ListSQL.REVISION_KEY, ListSQL.SYNCED_REVISION_KEY };
+	
+	/**
+	 * Bind Call object to compiled insert statement.
+	 * @param statement Statement with CALL_INSERT_COLUMNS parameters.
+	 * @param call Call object to be bound.
+	 */
+	protected static void bindCallStatement(SQLiteStatement statement, Call call) {
+		statement.bindLong(1, call.getTimestamp().getTime());
+		if (call.getPhoneNumber() != null) {
+			statement.bindString(2, call.getPhoneNumber());
+		} else {
+			statement.bindNull(2);
+		}
+		statement.bindLong(3, call.getType());
+		statement.bindLong(4, call.getDuration());
+		statement.bindDouble(5, call.getLatitude());
+		statement.bindDouble(6, call.getLongitude());
+	}
+	
+	/**
+	 * Bind Data object to compiled insert statement.
+	 * @param statement Statement with DATA_INSERT_COLUMNS parameters.
+	 * @param data Data object to be bound.
+	 */
+	protected static void bindDataStatement(SQLiteStatement statement, Data data) {
+		statement.bindLong(1, data.getTimestamp().getTime());
+		statement.bindLong(2, data.getUpData());
+		statement.bindLong(3, data.getDownData());
+		statement.bindDouble(4, data.getLatitude());
+		statement.bindDouble(5, data.getLongitude());
+		if (data.getTimeframe() != null) {
+			statement.bindLong(6, data.getTimeframe().getTime());
+		} else {
+			statement.bindNull(6);
+		}
+	}
+	
+	/**
+	 * Bind Rollup object to compiled insert statement. The rollup is inserted
+	 * as not yet uploaded.
+	 * @param statement Statement with ROLLUP_INSERT_COLUMNS parameters.
+	 * @param rollup Rollup object to be bound.
+	 */
+	protected static void bindRollupStatement(SQLiteStatement statement, Rollup rollup) {
+		statement.bindLong(1, rollup.getTimestamp().getTime());
+		statement.bindLong(2, rollup.getResolution().getMillis());
+		statement.bindLong(3, rollup.getUpData());
+		statement.bindLong(4, rollup.getDownData());
+		statement.bindLong(5, rollup.getCount());
+		statement.bindLong(6, rollup.getDuration());
+		statement.bindLong(7, rollup.getRevision());
+		statement.bindLong(8, 0);
 	}
 	
 	/**
 	 * Generate Call object from cursor.
 	 * @param cursor Cursor pointing to database entry.
-	 * @return Call object referenced by cursor.
+	 * @return Call object referenced by cursor, including its row id.
 	 */
 	protected static Call convertCursorToCall(Cursor cursor) {
-		return new Call(
+		Call call = new Call(
 				ListSQLUtils.getTimestampFromCursor(cursor), 
 				ListSQLUtils.getPhoneNumberFromCursor(cursor), 
 				ListSQLUtils.getTypeFromCursor(cursor), 
 				ListSQLUtils.getDurationFromCursor(cursor), 
 				ListSQLUtils.getLatFromCallCursor(cursor), 
 				ListSQLUtils.getLongFromCallCursor(cursor));
+		call.setRowId(cursor.getLong(0));
+		return call;
 	}
 	
 	/**
 	 * Generate Data object from cursor.
 	 * @param cursor Cursor pointng to database entry.
-	 * @return Data object referenced by cursor.
+	 * @return Data object referenced by cursor, including its row id.
 	 */
 	protected static Data convertCursorToData(Cursor cursor) {
-		return new Data(
+		Data data = new Data(
 				ListSQLUtils.getTimestampFromCursor(cursor),
-				null,
+				ListSQLUtils.getTimeframeFromCursor(cursor),
 				ListSQLUtils.getUpDataFromCursor(cursor), 
 				ListSQLUtils.getDownDataFromCursor(cursor), 
 				ListSQLUtils.getLatFromDataCursor(cursor), 
 				ListSQLUtils.getLongFromDataCursor(cursor));
+		data.setRowId(cursor.getLong(0));
+		return data;
+	}
+	
+	/**
+	 * Generate Rollup object from cursor.
+	 * @param cursor Cursor pointing to database entry.
+	 * @return Rollup object referenced by cursor, including its revision.
+	 */
+	protected static Rollup convertCursorToRollup(Cursor cursor) {
+		Rollup rollup = new Rollup(
+				Resolution.fromMillis(cursor.getLong(2)),
+				ListSQLUtils.getTimestampFromCursor(cursor),
+				cursor.getLong(3),
+				cursor.getLong(4),
+				cursor.getLong(5),
+				cursor.getLong(6));
+		rollup.setRevision(cursor.getLong(7));
+		return rollup;
 	}
 	
 	/**
 	 * Get timestamp field from cursor.
 	 */
 	protected static Timestamp getTimestampFromCursor(Cursor cursor) {
-		return new Timestamp(Long.parseLong(cursor.getString(1)));
+		return new Timestamp(cursor.getLong(1));
 	}
 	
 	/**
@@ -115,28 +163,28 @@ public class ListSQLUtils {
 	 * Get call type field from cursor.
 	 */
 	protected static int getTypeFromCursor(Cursor cursor) {
-		return Integer.parseInt(cursor.getString(3));
+		return cursor.getInt(3);
 	}
 	
 	/**
 	 * Get call duration field from cursor.
 	 */
 	protected static long getDurationFromCursor(Cursor cursor) {
-		return Long.parseLong(cursor.getString(4));
+		return cursor.getLong(4);
 	}
 	
 	/**
 	 * Get latitude field from cursor.
 	 */
 	protected static double getLatFromCallCursor(Cursor cursor) {
-		return Double.parseDouble(cursor.getString(5));
+		return cursor.getDouble(5);
 	}
 	
 	/**
 	 * Get longitude field from cursor.
 	 */
 	protected static double getLongFromCallCursor(Cursor cursor) {
-		return Double.parseDouble(cursor.getString(6));
+		return cursor.getDouble(6);
 	}
 	
 	/**
@@ -147,27 +195,34 @@ public class ListSQLUtils {
 	 * Get up data field from cursor.
 	 */
 	protected static long getUpDataFromCursor(Cursor cursor) {
-		return Long.parseLong(cursor.getString(2));
+		return cursor.getLong(2);
 	}
 	
 	/**
 	 * Get down data field from cursor.
 	 */
 	protected static long getDownDataFromCursor(Cursor cursor) {
-		return Long.parseLong(cursor.getString(3));
+		return cursor.getLong(3);
 	}
 	
 	/**
 	 * Get latitude field from cursor.
 	 */
 	protected static double getLatFromDataCursor(Cursor cursor) {
-		return Double.parseDouble(cursor.getString(4));
+		return cursor.getDouble(4);
 	}
 	
 	/**
 	 * Get longitude field from cursor.
 	 */
 	protected static double getLongFromDataCursor(Cursor cursor) {
-		return Double.parseDouble(cursor.getString(5));
+		return cursor.getDouble(5);
+	}
+	
+	/**
+	 * Get timeframe field from cursor. Null for cumulative data.
+	 */
+	protected static Timestamp getTimeframeFromCursor(Cursor cursor) {
+		return cursor.isNull(6) ? null : new Timestamp(cursor.getLong(6));
 	}
 }
@@ -0,0 +1,208 @@
+/**
+ * LocationCache.java
+ * Process-wide cache of the device's last known location. A single
+ * passive listener is registered for the life of the process. Only
+ * when the cached fix is older than the staleness budget is a single
+ * network fix requested, and at most once per MIN_TIME_BW_FIX_REQUESTS.
+ */
+
+package com.samgavis.usagetracker;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.SystemClock;
+
+public class LocationCache implements LocationListener {
+	
+	/**
+	 * Default staleness budget. Cached fixes older than this are refreshed
+	 * from the providers' last known locations or a new network fix.
+	 */
+	private static final long DEFAULT_MAX_AGE = 1000 * 60 * 5; // 5 minutes
+	
+	/**
+	 * Minimum time between attempts to refresh a stale fix, so a device
+	 * with no recent fix does not query the providers on every sample.
+	 */
+	private static final long MIN_TIME_BW_REFRESHES = 1000 * 30; // 30 seconds
+	
+	/**
+	 * Minimum time between requests for a single network fix. Network fixes
+	 * are cheap, but each one still wakes the radio.
+	 */
+	private static final long MIN_TIME_BW_FIX_REQUESTS = 1000 * 60 * 5; // 5 minutes
+	
+	// The minimum time between passive updates in milliseconds
+	private static final long MIN_TIME_BW_UPDATES = 1000 * 60 * 1; // 1 minute
+	
+	// The minimum distance between passive updates in meters
+	private static final float MIN_DISTANCE_CHANGE_FOR_UPDATES = 100; // 100 meters
+	
+	private static LocationCache sInstance;
+	
+	private final LocationManager mLocationManager;
+	private volatile Location mLocation;
+	private volatile long mMaxAge = DEFAULT_MAX_AGE;
+	private volatile long mLastRefresh = 0;
+	private volatile long mLastFixRequest = 0;
+	
+	/**
+	 * Receives requested single fixes. Kept apart from the passive listener so 
+	 * single updates never affect its registration.
+	 */
+	private final LocationListener mSingleUpdateListener = new LocationListener() {
+		@Override
+		public void onLocationChanged(Location location) {
+			update(location);
+		}
+
+		@Override
+		public void onProviderDisabled(String provider) {
+		}
+
+		@Override
+		public void onProviderEnabled(String provider) {
+		}
+
+		@Override
+		public void onStatusChanged(String provider, int status, Bundle extras) {
+		}
+	};
+	
+	/**
+	 * Get the shared LocationCache, registering its listener if necessary.
+	 * @param context Current context.
+	 * @return Process-wide LocationCache.
+	 */
+	public static synchronized LocationCache getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new LocationCache(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+	
+	private LocationCache(Context context) {
+		mLocationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+		refresh();
+		try {
+			// The passive provider only delivers fixes that other apps requested,
+			// so listening costs no power. Updates arrive on the main thread because 
+			// the calling thread's looper may not outlive it.
+			mLocationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER,
+					MIN_TIME_BW_UPDATES, MIN_DISTANCE_CHANGE_FOR_UPDATES, this, Looper.getMainLooper());
+		} catch (Exception e) {
+			// Location permission missing or provider unavailable. Cached
+			// values are still refreshed from last known locations.
+		}
+	}
+	
+	/**
+	 * Set the staleness budget.
+	 * @param maxAge Age in milliseconds after which a cached fix is refreshed from the 
+	 * providers' last known locations, or if those are stale too, from a network fix.
+	 */
+	public void setMaxAge(long maxAge) {
+		mMaxAge = maxAge;
+	}
+	
+	/**
+	 * Get the most recent known location. This never waits for a fix. If the cached
+	 * fix is older than the staleness budget even after reading the providers' last
+	 * known locations, a single network fix is requested for later calls.
+	 * @return Most recent known location, which may be older than the staleness budget
+	 * if no newer fix exists. Null if no location is known.
+	 */
+	public Location getLocation() {
+		Location location = mLocation;
+		if (isStale(location)) {
+			long now = SystemClock.elapsedRealtime();
+			if (now - mLastRefresh >= MIN_TIME_BW_REFRESHES) {
+				mLastRefresh = now;
+				refresh();
+			}
+			location = mLocation;
+			if (isStale(location) && now - mLastFixRequest >= MIN_TIME_BW_FIX_REQUESTS) {
+				mLastFixRequest = now;
+				requestFix();
+			}
+		}
+		return location;
+	}
+	
+	/**
+	 * Whether a fix is missing or older than the staleness budget.
+	 * @param location Cached fix. May be null.
+	 */
+	private boolean isStale(Location location) {
+		return location == null || System.currentTimeMillis() - location.getTime() > mMaxAge;
+	}
+	
+	/**
+	 * Request a single network fix, delivered on the main thread. Single updates
+	 * need API 9, so older platforms rely on last known locations only.
+	 */
+	private void requestFix() {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD) return;
+		try {
+			if (!mLocationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) return;
+			mLocationManager.requestSingleUpdate(LocationManager.NETWORK_PROVIDER, 
+					mSingleUpdateListener, Looper.getMainLooper());
+		} catch (Exception e) {
+			// Location permission missing or provider unavailable.
+		}
+	}
+	
+	/**
+	 * Update the cached location from the providers' last known locations.
+	 */
+	private void refresh() {
+		update(getLastKnownLocation(LocationManager.NETWORK_PROVIDER));
+		update(getLastKnownLocation(LocationManager.GPS_PROVIDER));
+	}
+	
+	/**
+	 * Get a provider's last known location without requesting updates.
+	 * @param provider Provider to query.
+	 * @return Last known location, or null if unavailable.
+	 */
+	private Location getLastKnownLocation(String provider) {
+		try {
+			return mLocationManager.getLastKnownLocation(provider);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Replace the cached location if location is newer.
+	 * @param location Candidate location. May be null.
+	 */
+	private synchronized void update(Location location) {
+		if (location == null) return;
+		if (mLocation == null || location.getTime() > mLocation.getTime()) {
+			mLocation = location;
+		}
+	}
+
+	@Override
+	public void onLocationChanged(Location location) {
+		update(location);
+	}
+
+	@Override
+	public void onProviderDisabled(String provider) {
+	}
+
+	@Override
+	public void onProviderEnabled(String provider) {
+	}
+
+	@Override
+	public void onStatusChanged(String provider, int status, Bundle extras) {
+	}
+}
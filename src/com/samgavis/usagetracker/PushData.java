@@ -4,79 +4,242 @@
  * 
  * PushData.java
  * A utility class that includes static functions to upload
- * data to SimpleDB.
+ * data and its rollups to SimpleDB.
  */
 
 package com.samgavis.usagetracker;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import android.content.Context;
 
-import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
-
 public class PushData {
 	
-	protected static boolean pushData(AmazonSimpleDBClient client, String domainPrefix, Context context) {
-		return (pushCalls(client, domainPrefix, context)
-				&& pushMobileData(client, domainPrefix, context)
-				&& pushWifiData(client, domainPrefix, context));
-	}
+	/**
+	 * Each stream is uploaded by its own pipeline on sPipelineExecutor, so a
+	 * failure in one stream does not hold back the others.
+	 */
+	private static final int STREAM_COUNT = 3;
+	private static final ExecutorService sPipelineExecutor = Executors.newFixedThreadPool(STREAM_COUNT);
 	
 	/**
-	 * Upload calls in SQLite table.
-	 * @param client AmazonSimpleDBClient of DB to which to upload.
-	 * @return True if successful, false if unsuccessful.
+	 * Each pipeline keeps up to BATCHES_IN_FLIGHT batch requests in flight at
+	 * once. Item names are deterministic, so batches can complete in any order and
+	 * be resent without duplicating rows. sBatchExecutor caps the batch requests
+	 * in flight across every pipeline.
+	 */
+	private static final int BATCHES_IN_FLIGHT = 3;
+	private static final int MAX_CONCURRENT_BATCHES = 6;
+	private static final ExecutorService sBatchExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_BATCHES);
+	
+	/**
+	 * Held while a stream is uploaded, so concurrent pushes (for example from
+	 * UsageTracker and PushService) do not upload the same rows twice.
+	 */
+	private static final Object sCallLock = new Object();
+	private static final Object sMobileDataLock = new Object();
+	private static final Object sWifiDataLock = new Object();
+	
+	/**
+	 * Upload all cached data using long-lived SimpleDB repositories. The streams
+	 * are uploaded concurrently and each one is attempted even if another fails.
+	 * @param callListSDB Repository to upload calls to.
+	 * @param mobileDataListSDB Repository to upload mobile data to.
+	 * @param wifiDataListSDB Repository to upload wifi data to.
+	 * @param context Current context.
+	 * @return True if every stream was uploaded, false if any failed.
 	 */
-	private static boolean pushCalls(AmazonSimpleDBClient client, String domainPrefix, Context context) {
-		CallListSQL mCallListSQL = new CallListSQL(context);
-		CallListSDB mCallListSDB = new CallListSDB(client, domainPrefix);
+	protected static boolean pushData(final CallListSDB callListSDB, final MobileDataListSDB mobileDataListSDB,
+			final WifiDataListSDB wifiDataListSDB, final Context context) {
+		final CallListSQL callListSQL = CallListSQL.getInstance(context);
+		final MobileDataListSQL mobileDataListSQL = MobileDataListSQL.getInstance(context);
+		final WifiDataListSQL wifiDataListSQL = WifiDataListSQL.getInstance(context);
 		
-		List<Call> calls = mCallListSQL.getCalls();
-		for (Call c : calls) {
-			if (!mCallListSDB.addCall(c)) {
-				return false;
+		List<Future<Boolean>> pipelines = new ArrayList<Future<Boolean>>(STREAM_COUNT);
+		pipelines.add(sPipelineExecutor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				synchronized (sCallLock) {
+					return pushStream(callListSQL, ListSQL.CALL_TABLE_NAME, 
+							callListSDB, callListSDB.CALL_DOMAIN_NAME) 
+							&& pushRollups(callListSDB.getRollupList(), callListSQL.getRollupList());
+				}
+			}
+		}));
+		pipelines.add(sPipelineExecutor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				synchronized (sMobileDataLock) {
+					return pushStream(mobileDataListSQL, ListSQL.MOBILE_TABLE_NAME, 
+							mobileDataListSDB, mobileDataListSDB.MOBILE_DOMAIN_NAME) 
+							&& pushRollups(mobileDataListSDB.getRollupList(), mobileDataListSQL.getRollupList());
+				}
+			}
+		}));
+		pipelines.add(sPipelineExecutor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				synchronized (sWifiDataLock) {
+					return pushStream(wifiDataListSQL, ListSQL.WIFI_TABLE_NAME, 
+							wifiDataListSDB, wifiDataListSDB.WIFI_DOMAIN_NAME) 
+							&& pushRollups(wifiDataListSDB.getRollupList(), wifiDataListSQL.getRollupList());
+				}
+			}
+		}));
+		
+		boolean success = true;
+		for (Future<Boolean> pipeline : pipelines) {
+			try {
+				success &= pipeline.get();
+			} catch (Exception e) {
+				success = false;
 			}
-			mCallListSQL.deleteCall(c.getTimestamp());
 		}
-		return true;
+		return success;
 	}
 	
 	/**
-	 * Upload mobile data in SQLite table.
-	 * @param client AmazonSimpleDBClient of DB to which to upload.
+	 * Upload the rows of one SQLite table that have not been uploaded yet. Several 
+	 * batches are in flight at once and the upload state advances after each group, 
+	 * so an interrupted push resumes where it stopped. Uploaded rows are purged at the end.
+	 * @param listSQL Local repository to upload from.
+	 * @param tableName Table of listSQL to upload.
+	 * @param listSDB Repository to upload to.
+	 * @param domainName Domain of listSDB to upload to.
 	 * @return True if successful, false if unsuccessful.
 	 */
-	private static boolean pushMobileData(AmazonSimpleDBClient client, String domainPrefix, Context context) {
-		MobileDataListSQL mDataListSQL = new MobileDataListSQL(context);
-		MobileDataListSDB mDataListSDB = new MobileDataListSDB(client, domainPrefix);
-		
-		List<Data> data = mDataListSQL.getData();
-		for (Data d : data) {
-			if (!mDataListSDB.addData(d)) {
-				return false;
+	private static <T> boolean pushStream(ListSQL<T> listSQL, String tableName, 
+			final ListSDB<T> listSDB, final String domainName) {
+		BatchUploader<T> uploader = new BatchUploader<T>() {
+			@Override
+			public List<T> upload(List<T> batch) {
+				return listSDB.addItems(batch, domainName);
+			}
+		};
+		try {
+			List<T> items;
+			while (!(items = listSQL.getItemsToUpload(ListSDB.MAX_BATCH_SIZE * BATCHES_IN_FLIGHT, tableName)).isEmpty()) {
+				List<List<T>> batches = partition(items);
+				T last = getLastUploaded(batches, uploadBatches(batches, uploader));
+				if (last != null) {
+					listSQL.markUploaded(listSQL.getRowId(last), tableName);
+				}
+				if (last != items.get(items.size() - 1)) {
+					return false;
+				}
 			}
-			mDataListSQL.deleteData(d.getTimestamp());
+		} finally {
+			listSQL.pruneUploaded(tableName);
 		}
 		return true;
 	}
 	
 	/**
-	 * Upload wifi data in SQLite table.
-	 * @param client AmazonSimpleDBClient of DB to which to upload.
+	 * Upload rollups that changed since they were last uploaded, then prune
+	 * old rollups that are no longer needed locally.
+	 * @param rollupListSDB Repository to upload rollups to.
+	 * @param rollupListSQL Local rollups.
 	 * @return True if successful, false if unsuccessful.
 	 */
-	private static boolean pushWifiData(AmazonSimpleDBClient client, String domainPrefix, Context context) {
-		WifiDataListSQL mDataListSQL = new WifiDataListSQL(context);
-		WifiDataListSDB mDataListSDB = new WifiDataListSDB(client, domainPrefix);
-		
-		List<Data> data = mDataListSQL.getData();
-		for (Data d : data) {
-			if (!mDataListSDB.addData(d)) {
-				return false;
+	private static boolean pushRollups(final RollupListSDB rollupListSDB, RollupListSQL rollupListSQL) {
+		BatchUploader<Rollup> uploader = new BatchUploader<Rollup>() {
+			@Override
+			public List<Rollup> upload(List<Rollup> batch) {
+				return rollupListSDB.addRollups(batch);
 			}
-			mDataListSQL.deleteData(d.getTimestamp());
+		};
+		List<List<Rollup>> batches = partition(rollupListSQL.getChangedRollups());
+		boolean success = true;
+		for (int i = 0; i < batches.size(); i += BATCHES_IN_FLIGHT) {
+			List<List<Rollup>> group = batches.subList(i, Math.min(i + BATCHES_IN_FLIGHT, batches.size()));
+			List<List<Rollup>> uploaded = uploadBatches(group, uploader);
+			for (int j = 0; j < group.size(); j++) {
+				rollupListSQL.markUploaded(uploaded.get(j));
+				success &= uploaded.get(j).size() == group.get(j).size();
+			}
+			if (!success) return false;
 		}
+		rollupListSQL.pruneUploaded();
 		return true;
 	}
+	
+	/**
+	 * Uploads one batch of items.
+	 */
+	private interface BatchUploader<T> {
+		/**
+		 * @param batch Items to upload. At most ListSDB.MAX_BATCH_SIZE items.
+		 * @return Items that were uploaded, in order.
+		 */
+		public List<T> upload(List<T> batch);
+	}
+	
+	/**
+	 * Upload batches concurrently on sBatchExecutor and wait for all of them.
+	 * @param batches Batches to upload.
+	 * @param uploader Uploader for the batches.
+	 * @return Items uploaded from each batch, in the same order as batches. A batch
+	 * that failed entirely has an empty list.
+	 */
+	private static <T> List<List<T>> uploadBatches(List<List<T>> batches, final BatchUploader<T> uploader) {
+		List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>(batches.size());
+		for (final List<T> batch : batches) {
+			futures.add(sBatchExecutor.submit(new Callable<List<T>>() {
+				@Override
+				public List<T> call() {
+					return uploader.upload(batch);
+				}
+			}));
+		}
+		List<List<T>> uploaded = new ArrayList<List<T>>(batches.size());
+		for (Future<List<T>> future : futures) {
+			try {
+				uploaded.add(future.get());
+			} catch (Exception e) {
+				uploaded.add(Collections.<T>emptyList());
+			}
+		}
+		return uploaded;
+	}
+	
+	/**
+	 * Get the last item that was uploaded along with every item before it.
+	 * Upload progress can only advance past such an item.
+	 * @param batches Consecutive batches that were uploaded.
+	 * @param uploaded Items that were confirmed to be uploaded from each batch, in order.
+	 * @return Last item of the uploaded prefix, or null if the first item failed.
+	 */
+	private static <T> T getLastUploaded(List<List<T>> batches, List<List<T>> uploaded) {
+		T last = null;
+		for (int i = 0; i < batches.size(); i++) {
+			List<T> batch = batches.get(i);
+			List<T> batchUploaded = uploaded.get(i);
+			int count = 0;
+			while (count < batchUploaded.size() && batchUploaded.get(count) == batch.get(count)) {
+				count++;
+			}
+			if (count > 0) last = batch.get(count - 1);
+			if (count < batch.size()) break;
+		}
+		return last;
+	}
+	
+	/**
+	 * Split items into batches that fit in a single BatchPutAttributesRequest.
+	 * @param items Items to split.
+	 * @return Consecutive batches of at most ListSDB.MAX_BATCH_SIZE items.
+	 */
+	private static <T> List<List<T>> partition(List<T> items) {
+		List<List<T>> batches = new ArrayList<List<T>>();
+		for (int i = 0; i < items.size(); i += ListSDB.MAX_BATCH_SIZE) {
+			batches.add(items.subList(i, Math.min(i + ListSDB.MAX_BATCH_SIZE, items.size())));
+		}
+		return batches;
+	}
 }
@@ -9,6 +9,7 @@
 package com.samgavis.usagetracker;
 
 import java.util.List;
+import java.util.Random;
 
 import android.app.AlarmManager;
 import android.app.IntentService;
@@ -16,6 +17,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
@@ -25,8 +27,29 @@ public abstract class PushService extends IntentService {
 	
 	private static final int REQUEST_CODE = 1;
 	
+	/**
+	 * Failed pushes are retried by a one-shot alarm. Retry n waits a random time
+	 * between half and all of RETRY_BASE_DELAY * 2^n, capped at RETRY_MAX_DELAY, so
+	 * devices that failed together do not all retry at the same moment. After
+	 * MAX_RETRIES the next push waits for the repeating alarm.
+	 */
+	private static final int RETRY_REQUEST_CODE = 2;
+	private static final String RETRY_EXTRA = "com.samgavis.usagetracker.PushService.retry";
+	private static final int MAX_RETRIES = 5;
+	private static final long RETRY_BASE_DELAY = 1000L * 30; // 30 seconds
+	private static final long RETRY_MAX_DELAY = 1000L * 60 * 30; // 30 minutes
+	private static final Random sRandom = new Random();
+	
 	protected String mDomainPrefix = "user";
 	
+	/**
+	 * SimpleDB repositories reused across intents. Created on first push. Requests
+	 * go through the process-wide RequestExecutor for SimpleDB.
+	 */
+	private CallListSDB mCallListSDB;
+	private MobileDataListSDB mMobileDataListSDB;
+	private WifiDataListSDB mWifiDataListSDB;
+	
 	public PushService() {
 		super(TAG);
 	}
@@ -39,22 +62,39 @@ public abstract class PushService extends IntentService {
 	protected void onHandleIntent(Intent intent) {
 		
 		ConnectivityManager cm = (ConnectivityManager)getSystemService(Context.CONNECTIVITY_SERVICE);
+		int retry = intent.getIntExtra(RETRY_EXTRA, 0);
 		boolean isNetworkAvailable = cm.getBackgroundDataSetting() && cm.getActiveNetworkInfo() != null;
 		if (!isNetworkAvailable) {
-			pushError();
+			pushError(retry);
 			return;
 		}
 		
 		AmazonSimpleDBClient client = getSimpleDBClient(mDomainPrefix);
 
-		if (!PushData.pushData(client, mDomainPrefix, this)) {
-			pushError();
+		if (!pushData(client)) {
+			pushError(retry);
+		}
+	}
+	
+	/**
+	 * Push cached data with the given client, reusing the SimpleDB repositories.
+	 * @param client Client to push with.
+	 * @return True if successful, false if unsuccessful.
+	 */
+	private boolean pushData(AmazonSimpleDBClient client) {
+		RequestExecutor requestExecutor = RequestExecutor.getInstance(new SimpleDBBackend(client));
+		if (mCallListSDB == null) {
+			mCallListSDB = new CallListSDB(requestExecutor, mDomainPrefix, this);
+			mMobileDataListSDB = new MobileDataListSDB(requestExecutor, mDomainPrefix, this);
+			mWifiDataListSDB = new WifiDataListSDB(requestExecutor, mDomainPrefix, this);
 		}
+		return PushData.pushData(mCallListSDB, mMobileDataListSDB, mWifiDataListSDB, this);
 	}
 		
 	/**
 	 * Abstract class that gets an instance of AmazonSimpleDBClient. This
-	 * is called every time an intent is received.
+	 * is called every time an intent is received. Failed requests are already
+	 * retried, so create the client with ClientConfiguration.setMaxErrorRetry(0).
 	 * @param prefix Domain prefix.
 	 * @return AmazonSimpleDBClient generated.
 	 */
@@ -62,12 +102,19 @@ public abstract class PushService extends IntentService {
 	
 	/**
 	 * This is the error handler. It calls the user-defined error handler
-	 * and retries pushing data if return value is true.
+	 * and schedules a retry of the push if return value is true.
+	 * @param retry Number of retries that already failed.
 	 */
-	private void pushError() {
-		if (handleError()) {
-			AmazonSimpleDBClient client = getSimpleDBClient(mDomainPrefix);
-			PushData.pushData(client, mDomainPrefix, this);
+	private void pushError(int retry) {
+		if (handleError() && retry < MAX_RETRIES) {
+			long delay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << retry);
+			delay = delay / 2 + (long) (sRandom.nextDouble() * (delay / 2));
+			
+			Intent i = new Intent(this, getClass()).putExtra(RETRY_EXTRA, retry + 1);
+			PendingIntent pi = PendingIntent.getService(this, RETRY_REQUEST_CODE, i, 
+					PendingIntent.FLAG_UPDATE_CURRENT);
+			AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+			alarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delay, pi);
 		}
 	}
 	
@@ -0,0 +1,176 @@
+/**
+ * QueryCache.java
+ * In-memory cache of SimpleDB query results shared by every ListSDB in
+ * the process. Each entry records the domain and the range of timestamps
+ * that could change its result, so uploads only invalidate the entries
+ * they affect. Memory is bounded by evicting the least recently used
+ * entries, and every entry expires after a TTL so that rows written by
+ * other devices are eventually seen. A generation counter per domain
+ * keeps a query that raced with an upload from caching its stale result.
+ */
+
+package com.samgavis.usagetracker;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class QueryCache {
+	
+	/**
+	 * Bounds on the size of the cache. Weight is the number of items held.
+	 */
+	private static final int MAX_ENTRIES = 64;
+	private static final int MAX_WEIGHT = 10000;
+	
+	/**
+	 * Results whose range ended more than HISTORICAL_AGE ago rarely change, so
+	 * they are kept longer than results that may still be receiving rows.
+	 */
+	private static final long HISTORICAL_AGE = 1000L * 60 * 5; // 5 minutes
+	private static final long HISTORICAL_TTL = 1000L * 60 * 10; // 10 minutes
+	private static final long RECENT_TTL = 1000L * 30; // 30 seconds
+	
+	private static final QueryCache sInstance = new QueryCache();
+	
+	/**
+	 * Entries in access order, so the eldest entry is the least recently used.
+	 */
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private int mWeight = 0;
+	
+	/**
+	 * Number of invalidations of each domain, and of clear() calls. Both only
+	 * grow, so their sum changes whenever a domain's cached results could.
+	 */
+	private final Map<String, Long> mGenerations = new HashMap<String, Long>();
+	private long mClearCount = 0;
+	
+	private QueryCache() {
+	}
+	
+	/**
+	 * Get the process-wide cache.
+	 * @return Shared QueryCache.
+	 */
+	protected static QueryCache getInstance() {
+		return sInstance;
+	}
+	
+	/**
+	 * Get a cached result.
+	 * @param key Key the result was stored under, usually the select expression.
+	 * @return Cached result, or null if there is none or it expired.
+	 */
+	protected synchronized Object get(String key) {
+		Entry entry = mEntries.get(key);
+		if (entry == null) return null;
+		if (entry.mExpires <= System.currentTimeMillis()) {
+			remove(key);
+			return null;
+		}
+		return entry.mValue;
+	}
+	
+	/**
+	 * Get the current generation of a domain. Read it before issuing a query and
+	 * pass it to put(), so the result is dropped if the domain was written meanwhile.
+	 * @param domainName Domain about to be queried.
+	 * @return Generation of domainName.
+	 */
+	protected synchronized long getGeneration(String domainName) {
+		Long generation = mGenerations.get(domainName);
+		return mClearCount + ((generation == null) ? 0 : generation);
+	}
+	
+	/**
+	 * Cache a result. The TTL depends on whether the range is historical.
+	 * Nothing is cached if domainName was invalidated since generation was read.
+	 * @param key Key to store the result under.
+	 * @param domainName Domain the result was read from.
+	 * @param generation Generation of domainName read before the query was issued.
+	 * @param earliest Earliest timestamp whose rows could change the result. 
+	 * Long.MIN_VALUE if there is no lower bound.
+	 * @param latest Latest timestamp whose rows could change the result.
+	 * Long.MAX_VALUE if there is no upper bound.
+	 * @param value Result to cache. Must not be modified afterwards.
+	 * @param weight Number of items in the result.
+	 */
+	protected synchronized void put(String key, String domainName, long generation, long earliest, 
+			long latest, Object value, int weight) {
+		if (weight > MAX_WEIGHT || generation != getGeneration(domainName)) return;
+		
+		long now = System.currentTimeMillis();
+		long ttl = (latest < now - HISTORICAL_AGE) ? HISTORICAL_TTL : RECENT_TTL;
+		remove(key);
+		mEntries.put(key, new Entry(domainName, earliest, latest, value, weight, now + ttl));
+		mWeight += weight;
+		
+		Iterator<Entry> eldest = mEntries.values().iterator();
+		while (mEntries.size() > MAX_ENTRIES || mWeight > MAX_WEIGHT) {
+			mWeight -= eldest.next().mWeight;
+			eldest.remove();
+		}
+	}
+	
+	/**
+	 * Drop every entry of domainName whose range overlaps [earliest, latest].
+	 * Called after rows with timestamps in that range were uploaded.
+	 * @param domainName Domain that was written to.
+	 * @param earliest Earliest timestamp that was written.
+	 * @param latest Latest timestamp that was written.
+	 */
+	protected synchronized void invalidate(String domainName, long earliest, long latest) {
+		Long generation = mGenerations.get(domainName);
+		mGenerations.put(domainName, (generation == null) ? 1 : generation + 1);
+		
+		Iterator<Entry> entries = mEntries.values().iterator();
+		while (entries.hasNext()) {
+			Entry entry = entries.next();
+			if (entry.mDomainName.equals(domainName) 
+					&& entry.mEarliest <= latest && earliest <= entry.mLatest) {
+				mWeight -= entry.mWeight;
+				entries.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Drop every entry.
+	 */
+	protected synchronized void clear() {
+		mEntries.clear();
+		mWeight = 0;
+		mClearCount++;
+	}
+	
+	/**
+	 * Helper method removes the entry stored under key, if any.
+	 */
+	private void remove(String key) {
+		Entry entry = mEntries.remove(key);
+		if (entry != null) mWeight -= entry.mWeight;
+	}
+	
+	/**
+	 * A cached result with the range of timestamps it depends on.
+	 */
+	private static class Entry {
+		private final String mDomainName;
+		private final long mEarliest;
+		private final long mLatest;
+		private final Object mValue;
+		private final int mWeight;
+		private final long mExpires;
+		
+		private Entry(String domainName, long earliest, long latest, Object value, int weight, long expires) {
+			mDomainName = domainName;
+			mEarliest = earliest;
+			mLatest = latest;
+			mValue = value;
+			mWeight = weight;
+			mExpires = expires;
+		}
+	}
+}
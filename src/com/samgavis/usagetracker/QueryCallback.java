@@ -0,0 +1,16 @@
+/**
+ * QueryCallback.java
+ * Callback for the asynchronous queries on UsageTracker.
+ */
+
+package com.samgavis.usagetracker;
+
+public interface QueryCallback<Result> {
+	
+	/**
+	 * Called on the main thread when a query completes. This is not
+	 * called if the query was cancelled.
+	 * @param result Result of the query. Null means client must be updated.
+	 */
+	public void onResult(Result result);
+}
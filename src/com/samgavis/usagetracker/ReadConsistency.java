@@ -0,0 +1,28 @@
+/**
+ * ReadConsistency.java
+ * Consistency of SimpleDB reads. Consistent reads cost more and are
+ * slower than eventually consistent ones, and only matter for rows
+ * that were written in the last few seconds.
+ */
+
+package com.samgavis.usagetracker;
+
+public enum ReadConsistency {
+	/**
+	 * Every read is consistent.
+	 */
+	CONSISTENT,
+	
+	/**
+	 * Every read is eventually consistent, so rows uploaded in the last
+	 * few seconds may be missing.
+	 */
+	EVENTUAL,
+	
+	/**
+	 * Reads are consistent only if the requested range overlaps rows
+	 * that this process uploaded recently, and eventually consistent
+	 * otherwise.
+	 */
+	AUTOMATIC
+}
@@ -0,0 +1,487 @@
+/**
+ * RequestExecutor.java
+ * StorageBackend that sits in front of another backend and controls how
+ * requests are sent to it. Requests are rate limited with a token bucket
+ * whose rate is halved whenever the service throttles and slowly recovers
+ * afterwards. Failed requests are retried with jittered exponential backoff
+ * according to a retry policy per error code, so devices that failed
+ * together do not all retry at the same moment.
+ * These retries replace the AWS client's own, so an AmazonSimpleDBClient
+ * behind a RequestExecutor should be created with a ClientConfiguration
+ * whose maxErrorRetry is 0. Otherwise every attempt made here is itself
+ * retried by the client, 3 times by default.
+ */
+
+package com.samgavis.usagetracker;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+public class RequestExecutor implements StorageBackend {
+
+	/**
+	 * Default limits. The rate is in requests per second.
+	 */
+	private static final double DEFAULT_RATE = 20;
+	private static final int DEFAULT_BURST = 25;
+	private static final int DEFAULT_MAX_RETRIES = 5;
+	private static final long DEFAULT_BASE_DELAY = 100; // ms
+	private static final long DEFAULT_MAX_DELAY = 1000L * 20; // 20 seconds
+
+	/**
+	 * After throttling the rate is multiplied by THROTTLE_DECREASE, but never drops
+	 * below MIN_RATE. Each successful request adds RATE_INCREASE back until the
+	 * configured rate is reached.
+	 */
+	private static final double THROTTLE_DECREASE = 0.5;
+	private static final double RATE_INCREASE = 0.5;
+	private static final double MIN_RATE = 0.5;
+
+	/**
+	 * Error codes that mean the service is overloaded. These are retried and
+	 * reduce the request rate.
+	 */
+	private static final String[] THROTTLE_ERROR_CODES = { "RequestThrottled", "ServiceUnavailable" };
+
+	/**
+	 * Other error codes that are retried by default.
+	 */
+	private static final String[] RETRYABLE_ERROR_CODES = { "InternalError", "RequestTimeout" };
+
+	/**
+	 * Process-wide executor for SimpleDB, so every request to the service draws 
+	 * from one token bucket. Guarded by the class.
+	 */
+	private static RequestExecutor sSimpleDBInstance;
+
+	/**
+	 * Set on threads that run requests for a caller on the main thread. Those 
+	 * requests neither wait for the rate limit nor retry, so the main thread is 
+	 * never blocked for a whole retry schedule.
+	 */
+	private static final ThreadLocal<Boolean> sFailFast = new ThreadLocal<Boolean>();
+
+	private volatile StorageBackend mBackend;
+
+	/**
+	 * Retry policy per error code. Error codes without a policy are retried if
+	 * they are server errors (status 5xx, or error type Service) and not retried
+	 * otherwise. Guarded by itself.
+	 */
+	private final Map<String, Boolean> mRetryPolicies = new HashMap<String, Boolean>();
+
+	private volatile int mMaxRetries = DEFAULT_MAX_RETRIES;
+	private volatile long mBaseDelay = DEFAULT_BASE_DELAY;
+	private volatile long mMaxDelay = DEFAULT_MAX_DELAY;
+
+	/**
+	 * Token bucket. Guarded by mBucketLock.
+	 */
+	private final Object mBucketLock = new Object();
+	private double mMaxRate = DEFAULT_RATE;
+	private double mRate = DEFAULT_RATE;
+	private int mBurst = DEFAULT_BURST;
+	private double mTokens = DEFAULT_BURST;
+	private long mRefillTime = System.nanoTime();
+
+	private final Random mRandom = new Random();
+
+	private final AtomicLong mRequestCount = new AtomicLong();
+	private final AtomicLong mRetryCount = new AtomicLong();
+	private final AtomicLong mThrottledCount = new AtomicLong();
+	private final AtomicLong mFailureCount = new AtomicLong();
+	private final AtomicLong mRateLimitedMillis = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 * @param backend Backend to send requests to.
+	 */
+	public RequestExecutor(StorageBackend backend) {
+		mBackend = backend;
+		for (String errorCode : THROTTLE_ERROR_CODES) {
+			mRetryPolicies.put(errorCode, Boolean.TRUE);
+		}
+		for (String errorCode : RETRYABLE_ERROR_CODES) {
+			mRetryPolicies.put(errorCode, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Get the executor for a backend. Every SimpleDBBackend talks to the same
+	 * service and shares one process-wide executor, which is pointed at backend, 
+	 * so a SimpleDBBackend with a newer client replaces the one it was using. 
+	 * Any other backend gets a new executor of its own, which is not kept.
+	 * @param backend Backend to send requests to.
+	 * @return RequestExecutor for backend.
+	 */
+	public static synchronized RequestExecutor getInstance(StorageBackend backend) {
+		if (!(backend instanceof SimpleDBBackend)) {
+			return new RequestExecutor(backend);
+		}
+		if (sSimpleDBInstance == null) {
+			sSimpleDBInstance = new RequestExecutor(backend);
+		} else {
+			sSimpleDBInstance.setBackend(backend);
+		}
+		return sSimpleDBInstance;
+	}
+
+	/**
+	 * Set whether requests sent from the calling thread fail instead of waiting
+	 * for the rate limit or retrying. Set it around work done on behalf of the 
+	 * main thread and clear it afterwards.
+	 * @param failFast True to fail fast, false to restore the normal behavior.
+	 */
+	protected static void setFailFast(boolean failFast) {
+		if (failFast) {
+			sFailFast.set(Boolean.TRUE);
+		} else {
+			sFailFast.remove();
+		}
+	}
+
+	/**
+	 * Replace the backend requests are sent to, for example because authorization
+	 * expired. Requests that are already running finish with the old backend.
+	 * The rate limit and counters are kept.
+	 * @param backend New backend.
+	 */
+	public void setBackend(StorageBackend backend) {
+		mBackend = backend;
+	}
+
+	/**
+	 * Set the sustained request rate and how many requests may be sent at once
+	 * after a quiet period.
+	 * @param requestsPerSecond Sustained rate. Defaults to 20.
+	 * @param burst Size of the token bucket. Defaults to 25.
+	 */
+	public void setRateLimit(double requestsPerSecond, int burst) {
+		synchronized (mBucketLock) {
+			mMaxRate = Math.max(MIN_RATE, requestsPerSecond);
+			mRate = Math.min(mRate, mMaxRate);
+			mBurst = Math.max(1, burst);
+			mTokens = Math.min(mTokens, mBurst);
+		}
+	}
+
+	/**
+	 * Set the retry schedule. Retry n waits a random time between 0 and
+	 * min(maxDelay, baseDelay * 2^n).
+	 * @param maxRetries Maximum number of retries per request. Defaults to 5. 0 disables retries.
+	 * @param baseDelay Delay before jitter of the first retry in milliseconds. Defaults to 100.
+	 * @param maxDelay Maximum delay of any retry in milliseconds. Defaults to 20 seconds.
+	 */
+	public void setRetries(int maxRetries, long baseDelay, long maxDelay) {
+		mMaxRetries = Math.max(0, maxRetries);
+		mBaseDelay = Math.max(1, baseDelay);
+		mMaxDelay = Math.max(mBaseDelay, maxDelay);
+	}
+
+	/**
+	 * Set whether failures with the given SimpleDB error code are retried.
+	 * By default RequestThrottled, ServiceUnavailable, InternalError and
+	 * RequestTimeout are retried, along with any other server error.
+	 * @param errorCode SimpleDB error code, such as "RequestThrottled".
+	 * @param retry True to retry, false to fail immediately.
+	 */
+	public void setRetryPolicy(String errorCode, boolean retry) {
+		synchronized (mRetryPolicies) {
+			mRetryPolicies.put(errorCode, retry);
+		}
+	}
+
+	/**
+	 * Get the number of requests sent to the backend, including retries.
+	 */
+	public long getRequestCount() {
+		return mRequestCount.get();
+	}
+
+	/**
+	 * Get the number of retries.
+	 */
+	public long getRetryCount() {
+		return mRetryCount.get();
+	}
+
+	/**
+	 * Get the number of requests that the service throttled.
+	 */
+	public long getThrottledCount() {
+		return mThrottledCount.get();
+	}
+
+	/**
+	 * Get the number of requests that failed after every retry.
+	 */
+	public long getFailureCount() {
+		return mFailureCount.get();
+	}
+
+	/**
+	 * Get the total time requests waited for the rate limit in milliseconds.
+	 */
+	public long getRateLimitedMillis() {
+		return mRateLimitedMillis.get();
+	}
+
+	/**
+	 * Get the current request rate, which is lower than the configured rate
+	 * while recovering from throttling.
+	 * @return Requests per second.
+	 */
+	public double getCurrentRate() {
+		synchronized (mBucketLock) {
+			return mRate;
+		}
+	}
+
+	/**
+	 * Reset every counter to 0.
+	 */
+	public void resetCounters() {
+		mRequestCount.set(0);
+		mRetryCount.set(0);
+		mThrottledCount.set(0);
+		mFailureCount.set(0);
+		mRateLimitedMillis.set(0);
+	}
+
+	@Override
+	public void createDomain(final CreateDomainRequest request) {
+		execute(new Request<Void>() {
+			@Override
+			public Void send(StorageBackend backend) {
+				backend.createDomain(request);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public ListDomainsResult listDomains(final ListDomainsRequest request) {
+		return execute(new Request<ListDomainsResult>() {
+			@Override
+			public ListDomainsResult send(StorageBackend backend) {
+				return backend.listDomains(request);
+			}
+		});
+	}
+
+	@Override
+	public void putAttributes(final PutAttributesRequest request) {
+		execute(new Request<Void>() {
+			@Override
+			public Void send(StorageBackend backend) {
+				backend.putAttributes(request);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void batchPutAttributes(final BatchPutAttributesRequest request) {
+		execute(new Request<Void>() {
+			@Override
+			public Void send(StorageBackend backend) {
+				backend.batchPutAttributes(request);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public SelectResult select(final SelectRequest request) {
+		return execute(new Request<SelectResult>() {
+			@Override
+			public SelectResult send(StorageBackend backend) {
+				return backend.select(request);
+			}
+		});
+	}
+
+	/**
+	 * A request that can be sent more than once.
+	 */
+	private interface Request<T> {
+		public T send(StorageBackend backend);
+	}
+
+	/**
+	 * Send a request, waiting for the rate limit and retrying failures that the
+	 * retry policy allows. This blocks and must not be called from the main thread.
+	 * On a fail fast thread the request is sent at most once.
+	 * @param request Request to send.
+	 * @return Result of the request.
+	 * @throws AmazonClientException the last failure if the request did not succeed.
+	 */
+	private <T> T execute(Request<T> request) {
+		boolean failFast = sFailFast.get() != null;
+		int maxRetries = failFast ? 0 : mMaxRetries;
+		for (int attempt = 0; ; attempt++) {
+			if (failFast) {
+				if (!tryAcquire()) {
+					mFailureCount.incrementAndGet();
+					throw new AmazonClientException("Rate limited");
+				}
+			} else {
+				acquire();
+			}
+			mRequestCount.incrementAndGet();
+			try {
+				T result = request.send(mBackend);
+				onSuccess();
+				return result;
+			} catch (AmazonServiceException e) {
+				boolean throttled = isThrottle(e);
+				if (throttled) {
+					mThrottledCount.incrementAndGet();
+					onThrottle();
+				}
+				if (attempt >= maxRetries || !isRetryable(e)) {
+					mFailureCount.incrementAndGet();
+					throw e;
+				}
+			} catch (AmazonClientException e) {
+				// No response from the service, such as a network error.
+				if (attempt >= maxRetries) {
+					mFailureCount.incrementAndGet();
+					throw e;
+				}
+			}
+			mRetryCount.incrementAndGet();
+			sleep(getBackoff(attempt));
+		}
+	}
+
+	/**
+	 * Whether the service rejected the request because it is overloaded.
+	 */
+	private static boolean isThrottle(AmazonServiceException e) {
+		for (String errorCode : THROTTLE_ERROR_CODES) {
+			if (errorCode.equals(e.getErrorCode())) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Whether a failure should be retried according to the retry policies.
+	 */
+	private boolean isRetryable(AmazonServiceException e) {
+		Boolean policy;
+		synchronized (mRetryPolicies) {
+			policy = mRetryPolicies.get(e.getErrorCode());
+		}
+		if (policy != null) return policy;
+		return e.getStatusCode() >= 500 || e.getErrorType() == AmazonServiceException.ErrorType.Service;
+	}
+
+	/**
+	 * Get how long to wait before a retry, with full jitter.
+	 * @param attempt Number of the attempt that failed, starting at 0.
+	 * @return Delay in milliseconds.
+	 */
+	private long getBackoff(int attempt) {
+		long ceiling = mMaxDelay;
+		if (attempt < 30) {
+			ceiling = Math.min(ceiling, mBaseDelay << attempt);
+		}
+		synchronized (mRandom) {
+			return (long) (mRandom.nextDouble() * ceiling);
+		}
+	}
+
+	/**
+	 * Take a token from the bucket, waiting until one is available.
+	 */
+	private void acquire() {
+		long waited = 0;
+		while (true) {
+			long wait;
+			synchronized (mBucketLock) {
+				refill();
+				if (mTokens >= 1) {
+					mTokens -= 1;
+					break;
+				}
+				wait = (long) Math.ceil((1 - mTokens) * 1000 / mRate);
+			}
+			sleep(wait);
+			waited += wait;
+		}
+		if (waited > 0) mRateLimitedMillis.addAndGet(waited);
+	}
+
+	/**
+	 * Take a token from the bucket if one is available, without waiting.
+	 * @return True if a token was taken.
+	 */
+	private boolean tryAcquire() {
+		synchronized (mBucketLock) {
+			refill();
+			if (mTokens < 1) return false;
+			mTokens -= 1;
+			return true;
+		}
+	}
+
+	/**
+	 * Add the tokens accumulated since the last refill. Must be called while
+	 * holding mBucketLock.
+	 */
+	private void refill() {
+		long now = System.nanoTime();
+		mTokens = Math.min(mBurst, mTokens + (now - mRefillTime) * mRate / 1e9);
+		mRefillTime = now;
+	}
+
+	/**
+	 * Lower the rate and empty the bucket so requests back off immediately.
+	 */
+	private void onThrottle() {
+		synchronized (mBucketLock) {
+			refill();
+			mRate = Math.max(MIN_RATE, mRate * THROTTLE_DECREASE);
+			mTokens = Math.min(mTokens, 0);
+		}
+	}
+
+	/**
+	 * Recover the rate after throttling.
+	 */
+	private void onSuccess() {
+		synchronized (mBucketLock) {
+			if (mRate < mMaxRate) {
+				refill();
+				mRate = Math.min(mMaxRate, mRate + RATE_INCREASE);
+			}
+		}
+	}
+
+	/**
+	 * Sleep, turning an interrupt into a failed request.
+	 * @param millis Time to sleep in milliseconds.
+	 */
+	private static void sleep(long millis) {
+		if (millis <= 0) return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted while waiting to send request", e);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Resolution.java
+ * Bucket sizes used by the rollup tables. Buckets are aligned to UTC,
+ * so a DAY bucket runs from midnight UTC to midnight UTC.
+ */
+
+package com.samgavis.usagetracker;
+
+public enum Resolution {
+	MINUTE("minute", 1000L * 60),
+	HOUR("hour", 1000L * 60 * 60),
+	DAY("day", 1000L * 60 * 60 * 24);
+	
+	private final String mName;
+	private final long mMillis;
+	
+	private Resolution(String name, long millis) {
+		mName = name;
+		mMillis = millis;
+	}
+	
+	/**
+	 * @return the name used to store this resolution in SimpleDB
+	 */
+	public String getName() {
+		return mName;
+	}
+	
+	/**
+	 * @return the length of one bucket in milliseconds
+	 */
+	public long getMillis() {
+		return mMillis;
+	}
+	
+	/**
+	 * Get the start of the bucket that contains time.
+	 * @param time Time in milliseconds. Must not be negative.
+	 * @return Start of the bucket in milliseconds.
+	 */
+	public long floor(long time) {
+		return time - (time % mMillis);
+	}
+	
+	/**
+	 * Get the start of the first bucket that begins at or after time.
+	 * @param time Time in milliseconds. Must not be negative.
+	 * @return Start of the bucket in milliseconds.
+	 */
+	public long ceil(long time) {
+		long floor = floor(time);
+		return (floor == time) ? floor : floor + mMillis;
+	}
+	
+	/**
+	 * Look up resolution by the name returned by getName().
+	 * @param name Name of the resolution.
+	 * @return Matching resolution, or null if there is none.
+	 */
+	public static Resolution fromName(String name) {
+		for (Resolution resolution : values()) {
+			if (resolution.mName.equals(name)) return resolution;
+		}
+		return null;
+	}
+	
+	/**
+	 * Look up resolution by bucket length.
+	 * @param millis Length of one bucket in milliseconds.
+	 * @return Matching resolution, or null if there is none.
+	 */
+	public static Resolution fromMillis(long millis) {
+		for (Resolution resolution : values()) {
+			if (resolution.mMillis == millis) return resolution;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * Rollup.java
+ * An object to represent the totals of one stream within a time bucket.
+ * Data rows and calls are counted in the bucket that contains their
+ * timestamp.
+ */
+
+package com.samgavis.usagetracker;
+
+import java.io.Serializable;
+import java.sql.Timestamp;
+
+public class Rollup implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private Resolution mResolution;
+	private Timestamp mTimestamp;
+	private long mUpData;
+	private long mDownData;
+	private long mCount;
+	private long mDuration;
+	
+	/**
+	 * Local revision of the bucket. Used to tell which buckets changed since 
+	 * they were last uploaded.
+	 */
+	private transient long mRevision;
+	
+	/**
+	 * Public constructor.
+	 * 
+	 * @param resolution Size of the bucket. Null for totals over an arbitrary range.
+	 * @param timestamp Start of the bucket.
+	 * @param upData Bytes uploaded within the bucket. Zero for calls.
+	 * @param downData Bytes downloaded within the bucket. Zero for calls.
+	 * @param count Number of data rows or calls within the bucket.
+	 * @param duration Total duration of calls within the bucket. Zero for data.
+	 */
+	public Rollup(Resolution resolution, Timestamp timestamp, long upData, long downData, 
+			long count, long duration) {
+		mResolution = resolution;
+		mTimestamp = timestamp;
+		mUpData = upData;
+		mDownData = downData;
+		mCount = count;
+		mDuration = duration;
+	}
+	
+	/**
+	 * Copy constructor.
+	 * @param rollup Rollup to copy.
+	 */
+	protected Rollup(Rollup rollup) {
+		this(rollup.mResolution, (rollup.mTimestamp == null) ? null : (Timestamp) rollup.mTimestamp.clone(),
+				rollup.mUpData, rollup.mDownData, rollup.mCount, rollup.mDuration);
+		mRevision = rollup.mRevision;
+	}
+	
+	/**
+	 * Add the totals of another rollup to this one.
+	 * @param rollup Rollup to add.
+	 */
+	protected void add(Rollup rollup) {
+		mUpData += rollup.mUpData;
+		mDownData += rollup.mDownData;
+		mCount += rollup.mCount;
+		mDuration += rollup.mDuration;
+	}
+
+	/**
+	 * @return the resolution
+	 */
+	public Resolution getResolution() {
+		return mResolution;
+	}
+
+	/**
+	 * @param resolution the resolution to set
+	 */
+	public void setResolution(Resolution resolution) {
+		mResolution = resolution;
+	}
+
+	/**
+	 * @return the start of the bucket
+	 */
+	public Timestamp getTimestamp() {
+		return mTimestamp;
+	}
+
+	/**
+	 * @param timestamp the start of the bucket to set
+	 */
+	public void setTimestamp(Timestamp timestamp) {
+		mTimestamp = timestamp;
+	}
+
+	/**
+	 * @return the upData
+	 */
+	public long getUpData() {
+		return mUpData;
+	}
+
+	/**
+	 * @param upData the upData to set
+	 */
+	public void setUpData(long upData) {
+		mUpData = upData;
+	}
+
+	/**
+	 * @return the downData
+	 */
+	public long getDownData() {
+		return mDownData;
+	}
+
+	/**
+	 * @param downData the downData to set
+	 */
+	public void setDownData(long downData) {
+		mDownData = downData;
+	}
+
+	/**
+	 * @return the count
+	 */
+	public long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @param count the count to set
+	 */
+	public void setCount(long count) {
+		mCount = count;
+	}
+
+	/**
+	 * @return the duration
+	 */
+	public long getDuration() {
+		return mDuration;
+	}
+
+	/**
+	 * @param duration the duration to set
+	 */
+	public void setDuration(long duration) {
+		mDuration = duration;
+	}
+	
+	/**
+	 * @return the local revision
+	 */
+	protected long getRevision() {
+		return mRevision;
+	}
+	
+	/**
+	 * @param revision the local revision to set
+	 */
+	protected void setRevision(long revision) {
+		mRevision = revision;
+	}
+
+}
@@ -0,0 +1,180 @@
+/**
+ * RollupListSDB.java
+ * Subclass of ListSDB that implements functionality for storing the
+ * minute, hour and day totals of one stream. Each device stores its own
+ * totals per bucket, and reads sum them across devices.
+ */
+
+package com.samgavis.usagetracker;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+public class RollupListSDB extends ListSDB<Rollup> {
+	
+	private final String mDomainName;
+
+	/**
+	 * Constructor.
+	 * @param backend StorageBackend to access SimpleDB.
+	 * @param domainPrefix Domain prefix for user.
+	 * @param domainNameSuffix Suffix of the rollup domain, such as MOBILE_ROLLUP_DOMAIN_NAME_SUFFIX.
+	 * @param context Current context.
+	 */
+	protected RollupListSDB(StorageBackend backend, String domainPrefix, String domainNameSuffix, 
+			Context context) {
+		super(backend, domainPrefix, context);
+		mDomainName = domainPrefix + domainNameSuffix;
+	}
+	
+	/**
+	 * Create rollup domain.
+	 */
+	protected void createDomain() {
+		super.createDomain(mDomainName);
+	}
+	
+	/**
+	 * Add a batch of rollups to the rollup domain, replacing this device's previous
+	 * totals of each bucket.
+	 * @param rollups Rollups to add. At most ListSDB.MAX_BATCH_SIZE items.
+	 * @return Rollups that were uploaded. Fewer than were passed in implies that
+	 * AmazonSimpleDBClient must be updated.
+	 */
+	protected List<Rollup> addRollups(List<Rollup> rollups) {
+		return super.addItems(rollups, mDomainName);
+	}
+	
+	/**
+	 * Get PutAttributesRequest for rollup.
+	 * @param rollup Rollup for which to get PutAttributesRequest.
+	 * @return PutAttributesRequest for rollup.
+	 */
+	@Override
+	protected PutAttributesRequest getPutAttributesRequest(Rollup rollup) {
+		return ListSDBUtils.generateRollupPutAttributesRequest(rollup, mDomainName, 
+				ListSDBUtils.generateRollupItemName(getDeviceId(), rollup));
+	}
+	
+	/**
+	 * Get rollups at one resolution whose buckets start between timestamps (inclusive).
+	 * The totals of every device are summed, so there is one rollup per bucket.
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @param resolution Resolution of the rollups.
+	 * @return List of rollups ordered from oldest to newest. Null if error reading
+	 * from AmazonSimpleDBClient.
+	 */
+	protected List<Rollup> getRollups(Timestamp earliest, Timestamp latest, Resolution resolution) {
+		List<Rollup> rollups = super.getItems(earliest, latest, 
+				RESOLUTION_ATTRIBUTE + " = '" + resolution.getName() + "'", mDomainName);
+		return (rollups == null) ? null : sumBuckets(rollups);
+	}
+	
+	/**
+	 * Helper method sums the rollups of different devices for the same bucket.
+	 * The rollups are ordered by timestamp, so rows of one bucket are adjacent.
+	 * New rollups are returned, since the given ones are shared with the cache.
+	 * @param rollups Rollups of one resolution ordered from oldest to newest.
+	 * @return One rollup per bucket ordered from oldest to newest.
+	 */
+	private static List<Rollup> sumBuckets(List<Rollup> rollups) {
+		List<Rollup> buckets = new ArrayList<Rollup>(rollups.size());
+		Rollup bucket = null;
+		for (Rollup rollup : rollups) {
+			if (bucket == null || !bucket.getTimestamp().equals(rollup.getTimestamp())) {
+				bucket = new Rollup(rollup.getResolution(), rollup.getTimestamp(), 0, 0, 0, 0);
+				buckets.add(bucket);
+			}
+			bucket.add(rollup);
+		}
+		return buckets;
+	}
+	
+	/**
+	 * Get the totals of every bucket between timestamps (inclusive). The range is
+	 * covered by day buckets where it spans whole days, hour buckets where it spans 
+	 * whole hours and minute buckets for the rest, so only a few rows are read. The
+	 * traffic of each sample is spread over the minutes it covers, so the totals are 
+	 * accurate to the minute. They include every device, but leave out rows that
+	 * reached a device more than a day after their bucket ended.
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means the current time.
+	 * @return Rollup with a null resolution holding the totals, starting at earliest.
+	 * Null if error reading from AmazonSimpleDBClient.
+	 */
+	protected Rollup getTotal(Timestamp earliest, Timestamp latest) {
+		long start = (earliest == null) ? 0 : earliest.getTime();
+		long end = ((latest == null) ? System.currentTimeMillis() : latest.getTime()) + 1;
+		Rollup total = new Rollup(null, new Timestamp(start), 0, 0, 0, 0);
+		if (start >= end) return total;
+		
+		return addTotal(start, end, Resolution.values().length - 1, total) ? total : null;
+	}
+	
+	/**
+	 * Add the buckets covering [start, end) to total, using the coarsest resolution
+	 * at or below level that fits and finer resolutions for the remainder.
+	 * @param start Start of the range in milliseconds.
+	 * @param end End of the range in milliseconds, exclusive.
+	 * @param level Index of the coarsest resolution to use in Resolution.values().
+	 * @param total Rollup to add to.
+	 * @return True if successful, false if error reading from AmazonSimpleDBClient.
+	 */
+	private boolean addTotal(long start, long end, int level, Rollup total) {
+		Resolution resolution = Resolution.values()[level];
+		long first;
+		long last;
+		if (level == 0) {
+			// Finest resolution, so include partially covered buckets.
+			first = resolution.floor(start);
+			last = end;
+		} else {
+			first = resolution.ceil(start);
+			last = resolution.floor(end);
+			if (first >= last) return addTotal(start, end, level - 1, total);
+		}
+		
+		List<Rollup> rollups = getRollups(new Timestamp(first), new Timestamp(last - 1), resolution);
+		if (rollups == null) return false;
+		for (Rollup rollup : rollups) {
+			total.add(rollup);
+		}
+		
+		if (level == 0) return true;
+		return (start >= first || addTotal(start, first, level - 1, total))
+				&& (end <= last || addTotal(last, end, level - 1, total));
+	}
+
+	/**
+	 * Get timestamp of rollup.
+	 */
+	@Override
+	protected Timestamp getTimestamp(Rollup rollup) {
+		return rollup.getTimestamp();
+	}
+	
+	/**
+	 * Copy rollup.
+	 */
+	@Override
+	protected Rollup copyItem(Rollup rollup) {
+		return new Rollup(rollup);
+	}
+
+	/**
+	 * Convert SelectResult to a list of rollups.
+	 * @param result Result from SelectRequest.
+	 * @return List of rollups from SelectResult.
+	 */
+	@Override
+	protected List<Rollup> convertResultToItemList(SelectResult result) {
+		return ListSDBUtils.convertResultToRollupList(result);
+	}
+}
@@ -0,0 +1,296 @@
+/**
+ * RollupListSQL.java
+ * Subclass of ListSQL that keeps minute, hour and day totals for one
+ * stream. Totals are updated incrementally as rows are added to the
+ * stream's table, and each bucket tracks whether it changed since it
+ * was last uploaded. The traffic of a data row is spread over the
+ * minutes its timeframe covers.
+ */
+
+package com.samgavis.usagetracker;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+public class RollupListSQL extends ListSQL<Rollup> {
+	
+	/**
+	 * Uploaded buckets are kept this long after they end, so that late rows
+	 * still add to the local totals instead of starting a new bucket at zero.
+	 * Buckets that ended longer ago are never created, since the upload of a
+	 * recreated bucket would replace its full total in SimpleDB. The same span
+	 * bounds how far back the traffic of one data row is spread.
+	 */
+	private static final long PRUNE_AGE = 1000L * 60 * 60 * 24;
+	
+	private static final Map<String, RollupListSQL> sInstances = new HashMap<String, RollupListSQL>();
+	
+	private final String mTableName;
+	
+	/**
+	 * Public constructor.
+	 * @param context Current context.
+	 * @param tableName Name of the rollup table.
+	 */
+	public RollupListSQL(Context context, String tableName) {
+		super(context);
+		mTableName = tableName;
+	}
+	
+	/**
+	 * Get the shared instance for a rollup table.
+	 * @param context Current context.
+	 * @param tableName Name of the rollup table.
+	 * @return Process-wide RollupListSQL for the table.
+	 */
+	protected static RollupListSQL getInstance(Context context, String tableName) {
+		synchronized (sInstances) {
+			RollupListSQL instance = sInstances.get(tableName);
+			if (instance == null) {
+				instance = new RollupListSQL(context, tableName);
+				sInstances.put(tableName, instance);
+			}
+			return instance;
+		}
+	}
+	
+	/**
+	 * Add data rows to the totals. Cumulative rows (without a timeframe) are skipped.
+	 * @param data Data rows that were added to the stream's table.
+	 */
+	protected void addData(Collection<Data> data) {
+		List<Rollup> rollups = new ArrayList<Rollup>(data.size());
+		for (Data d : data) {
+			if (d.getTimeframe() == null) continue;
+			splitByMinute(d, rollups);
+		}
+		addToBuckets(rollups);
+	}
+	
+	/**
+	 * Split a data row into one rollup per minute of its timeframe, dividing the
+	 * traffic in proportion to time. Hour and day buckets are filled from the 
+	 * same pieces, so they are split too. The row is counted in its last minute.
+	 * A timeframe longer than PRUNE_AGE, which only follows a reboot, is spread 
+	 * over the last PRUNE_AGE of it.
+	 * @param data Data row with a timeframe.
+	 * @param rollups List to add rollups with a null resolution to.
+	 */
+	private static void splitByMinute(Data data, List<Rollup> rollups) {
+		long end = data.getTimestamp().getTime();
+		long start = Math.max(data.getTimeframe().getTime(), end - PRUNE_AGE);
+		long span = end - start;
+		if (span <= 0 || (data.getUpData() == 0 && data.getDownData() == 0)) {
+			rollups.add(new Rollup(null, new Timestamp((span <= 0) ? end : end - 1), 
+					data.getUpData(), data.getDownData(), 1, 0));
+			return;
+		}
+		
+		// Round the running totals rather than each piece, so the pieces add up exactly.
+		long upAdded = 0;
+		long downAdded = 0;
+		for (long from = start; from < end; ) {
+			long to = Math.min(end, Resolution.MINUTE.floor(from) + Resolution.MINUTE.getMillis());
+			double share = (double) (to - start) / span;
+			long upTotal = Math.round(data.getUpData() * share);
+			long downTotal = Math.round(data.getDownData() * share);
+			rollups.add(new Rollup(null, new Timestamp(from), upTotal - upAdded, downTotal - downAdded, 
+					(to == end) ? 1 : 0, 0));
+			upAdded = upTotal;
+			downAdded = downTotal;
+			from = to;
+		}
+	}
+	
+	/**
+	 * Add calls to the totals.
+	 * @param calls Calls that were added to the call table.
+	 */
+	protected void addCalls(Collection<Call> calls) {
+		List<Rollup> rollups = new ArrayList<Rollup>(calls.size());
+		for (Call call : calls) {
+			rollups.add(new Rollup(null, call.getTimestamp(), 0, 0, 1, call.getDuration()));
+		}
+		addToBuckets(rollups);
+	}
+	
+	/**
+	 * Add each rollup to the bucket containing its timestamp at every resolution.
+	 * Rollups for the same bucket are summed first, so each bucket is written once.
+	 * Buckets that ended more than PRUNE_AGE ago are only added to if they still
+	 * exist, since they may have been uploaded and pruned.
+	 * @param rollups Rollups with a null resolution to add.
+	 */
+	private void addToBuckets(List<Rollup> rollups) {
+		if (rollups.isEmpty()) return;
+		
+		Map<Resolution, Map<Long, Rollup>> buckets = new HashMap<Resolution, Map<Long, Rollup>>();
+		for (Resolution resolution : Resolution.values()) {
+			Map<Long, Rollup> resolutionBuckets = new HashMap<Long, Rollup>();
+			for (Rollup rollup : rollups) {
+				long bucket = resolution.floor(rollup.getTimestamp().getTime());
+				Rollup total = resolutionBuckets.get(bucket);
+				if (total == null) {
+					total = new Rollup(resolution, new Timestamp(bucket), 0, 0, 0, 0);
+					resolutionBuckets.put(bucket, total);
+				}
+				total.add(rollup);
+			}
+			buckets.put(resolution, resolutionBuckets);
+		}
+		
+		SQLiteDatabase db = getWritableDatabase();
+		SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + mTableName 
+				+ " (" + TIMESTAMP_KEY + "," + RESOLUTION_KEY + "," + UP_DATA_KEY + "," 
+				+ DOWN_DATA_KEY + "," + COUNT_KEY + "," + DURATION_KEY + "," + REVISION_KEY + ","
+				+ SYNCED_REVISION_KEY + ") VALUES (?,?,0,0,0,0,0,0)");
+		SQLiteStatement update = db.compileStatement("UPDATE " + mTableName + " SET "
+				+ UP_DATA_KEY + "=" + UP_DATA_KEY + "+?," + DOWN_DATA_KEY + "=" + DOWN_DATA_KEY + "+?,"
+				+ COUNT_KEY + "=" + COUNT_KEY + "+?," + DURATION_KEY + "=" + DURATION_KEY + "+?,"
+				+ REVISION_KEY + "=" + REVISION_KEY + "+1 WHERE "
+				+ TIMESTAMP_KEY + "=? AND " + RESOLUTION_KEY + "=?");
+		// Matches the buckets pruneUploaded() may already have deleted.
+		long pruned = System.currentTimeMillis() - PRUNE_AGE;
+		db.beginTransaction();
+		try {
+			for (Map<Long, Rollup> resolutionBuckets : buckets.values()) {
+				for (Rollup total : resolutionBuckets.values()) {
+					long bucket = total.getTimestamp().getTime();
+					long resolution = total.getResolution().getMillis();
+					if (bucket + resolution >= pruned) {
+						insert.bindLong(1, bucket);
+						insert.bindLong(2, resolution);
+						insert.execute();
+					}
+					
+					update.bindLong(1, total.getUpData());
+					update.bindLong(2, total.getDownData());
+					update.bindLong(3, total.getCount());
+					update.bindLong(4, total.getDuration());
+					update.bindLong(5, bucket);
+					update.bindLong(6, resolution);
+					update.execute();
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			insert.close();
+			update.close();
+		}
+	}
+
+	/**
+	 * Columns bound by bindValues().
+	 */
+	@Override
+	protected String[] getInsertColumns() {
+		return ListSQLUtils.ROLLUP_INSERT_COLUMNS;
+	}
+	
+	/**
+	 * Binds rollup to a compiled insert statement.
+	 */
+	@Override
+	protected void bindValues(SQLiteStatement statement, Rollup rollup) {
+		ListSQLUtils.bindRollupStatement(statement, rollup);
+	}
+	
+	/**
+	 * Get all rollups in the table.
+	 * @return List of rollups. Ordered oldest bucket first.
+	 */
+	protected List<Rollup> getRollups() {
+		return super.getItems(mTableName);
+	}
+	
+	/**
+	 * Get rollups that changed since they were last uploaded.
+	 * @return List of rollups with their revisions. Ordered oldest bucket first.
+	 */
+	protected List<Rollup> getChangedRollups() {
+		List<Rollup> rollups = new ArrayList<Rollup>();
+		String query = "SELECT * FROM " + mTableName + " WHERE " + REVISION_KEY + ">" 
+				+ SYNCED_REVISION_KEY + " ORDER BY " + TIMESTAMP_KEY;
+		
+		Cursor cursor = getReadableDatabase().rawQuery(query, null);
+		try {
+			while (cursor.moveToNext()) {
+				rollups.add(convertCursorToItem(cursor));
+			}
+		} finally {
+			cursor.close();
+		}
+		return rollups;
+	}
+	
+	/**
+	 * Record that rollups were uploaded at their revisions. Buckets that changed
+	 * again since they were read stay marked as changed.
+	 * @param rollups Rollups returned by getChangedRollups() that were uploaded.
+	 */
+	protected void markUploaded(Collection<Rollup> rollups) {
+		if (rollups.isEmpty()) return;
+		
+		SQLiteDatabase db = getWritableDatabase();
+		SQLiteStatement statement = db.compileStatement("UPDATE " + mTableName + " SET "
+				+ SYNCED_REVISION_KEY + "=? WHERE " + TIMESTAMP_KEY + "=? AND " 
+				+ RESOLUTION_KEY + "=? AND " + SYNCED_REVISION_KEY + "<?");
+		db.beginTransaction();
+		try {
+			for (Rollup rollup : rollups) {
+				statement.bindLong(1, rollup.getRevision());
+				statement.bindLong(2, rollup.getTimestamp().getTime());
+				statement.bindLong(3, rollup.getResolution().getMillis());
+				statement.bindLong(4, rollup.getRevision());
+				statement.execute();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			statement.close();
+		}
+	}
+	
+	/**
+	 * Delete uploaded buckets that ended more than PRUNE_AGE ago.
+	 */
+	protected void pruneUploaded() {
+		long before = System.currentTimeMillis() - PRUNE_AGE;
+		getWritableDatabase().delete(mTableName, REVISION_KEY + "=" + SYNCED_REVISION_KEY 
+				+ " AND " + TIMESTAMP_KEY + "+" + RESOLUTION_KEY + "<" + before, null);
+	}
+
+	/**
+	 * Converts cursor into Rollup object.
+	 */
+	@Override
+	protected Rollup convertCursorToItem(Cursor cursor) {
+		return ListSQLUtils.convertCursorToRollup(cursor);
+	}
+	
+	/**
+	 * Rollups are tracked by revision rather than by row id.
+	 * @return -1
+	 */
+	@Override
+	protected long getRowId(Rollup rollup) {
+		return -1;
+	}
+	
+	/**
+	 * Delete all rollups from table.
+	 */
+	protected void deleteAll() {
+		super.deleteAll(mTableName);
+	}
+}
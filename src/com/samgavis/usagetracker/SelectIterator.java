@@ -0,0 +1,161 @@
+/**
+ * SelectIterator.java
+ * Iterator over the results of a SimpleDB SelectRequest, or of several
+ * requests over consecutive time shards. Pages are fetched lazily, and
+ * the next page is prefetched in the background while the caller works
+ * through the current one. The first page of the next shard is also
+ * requested while the current shard is read, so moving to it does not
+ * wait for a round trip.
+ */
+
+package com.samgavis.usagetracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+public class SelectIterator<Item> implements Iterator<Item> {
+	
+	private final ListSDB<Item> mListSDB;
+	private final List<String> mSelectExpressions;
+	private final List<Boolean> mConsistentReads;
+	
+	/**
+	 * First page of the shard after the current one, or null if there is none.
+	 */
+	private Future<SelectResult> mNextShardPage;
+	private int mShard = 0;
+	
+	private Iterator<Item> mPage;
+	private Future<SelectResult> mNextPage;
+	private boolean mFailed = false;
+	
+	/**
+	 * Constructor. The first page is requested immediately.
+	 * @param listSDB ListSDB used to execute and convert pages.
+	 * @param selectRequest SelectRequest to iterate over.
+	 */
+	protected SelectIterator(ListSDB<Item> listSDB, SelectRequest selectRequest) {
+		this(listSDB, Collections.singletonList(selectRequest));
+	}
+	
+	/**
+	 * Constructor for a range split into shards. The first pages of the first
+	 * two shards are requested immediately.
+	 * @param listSDB ListSDB used to execute and convert pages.
+	 * @param shards SelectRequests over consecutive, ordered ranges.
+	 */
+	protected SelectIterator(ListSDB<Item> listSDB, List<SelectRequest> shards) {
+		mListSDB = listSDB;
+		mSelectExpressions = new ArrayList<String>(shards.size());
+		mConsistentReads = new ArrayList<Boolean>(shards.size());
+		for (SelectRequest shard : shards) {
+			mSelectExpressions.add(shard.getSelectExpression());
+			mConsistentReads.add(Boolean.TRUE.equals(shard.isConsistentRead()));
+		}
+		mNextPage = fetchPage(0, null);
+		mNextShardPage = fetchFirstPage(1);
+	}
+	
+	/**
+	 * Request a page in the background on the shared query executor. Each iterator
+	 * has at most two pages in flight: the next page of the current shard and the
+	 * first page of the next shard.
+	 * @param shard Index of the shard to fetch from.
+	 * @param nextToken Token of the page to fetch. Null for the first page.
+	 * @return Future holding the page.
+	 */
+	private Future<SelectResult> fetchPage(int shard, String nextToken) {
+		final SelectRequest selectRequest = new SelectRequest(mSelectExpressions.get(shard))
+			.withConsistentRead(mConsistentReads.get(shard))
+			.withNextToken(nextToken);
+		return ListSDB.getQueryExecutor().submit(new Callable<SelectResult>() {
+			@Override
+			public SelectResult call() {
+				return mListSDB.select(selectRequest);
+			}
+		});
+	}
+
+	/**
+	 * Request the first page of a shard if there is one.
+	 * @param shard Index of the shard.
+	 * @return Future holding the page, or null if shard is past the last one.
+	 */
+	private Future<SelectResult> fetchFirstPage(int shard) {
+		return (shard < mSelectExpressions.size()) ? fetchPage(shard, null) : null;
+	}
+
+	/**
+	 * Returns true if there are more items. This blocks until the next page 
+	 * has been fetched if the current page is exhausted.
+	 */
+	@Override
+	public boolean hasNext() {
+		while (mPage == null || !mPage.hasNext()) {
+			if (mNextPage == null) {
+				// Current shard is exhausted, so move on to the next one.
+				if (mFailed || mNextShardPage == null) break;
+				mShard++;
+				mNextPage = mNextShardPage;
+				mNextShardPage = fetchFirstPage(mShard + 1);
+			}
+			try {
+				SelectResult result = mNextPage.get();
+				mNextPage = (result.getNextToken() != null) ? fetchPage(mShard, result.getNextToken()) : null;
+				mPage = mListSDB.convertResultToItemList(result).iterator();
+			} catch (Exception e) {
+				mFailed = true;
+				close();
+				break;
+			}
+		}
+		return mPage != null && mPage.hasNext();
+	}
+
+	@Override
+	public Item next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		return mPage.next();
+	}
+
+	/**
+	 * Not supported.
+	 */
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+	/**
+	 * Stop iterating and discard any page that is being prefetched.
+	 */
+	public void close() {
+		if (mNextPage != null) {
+			mNextPage.cancel(true);
+			mNextPage = null;
+		}
+		if (mNextShardPage != null) {
+			mNextShardPage.cancel(true);
+			mNextShardPage = null;
+		}
+		mShard = mSelectExpressions.size();
+		mPage = null;
+	}
+	
+	/**
+	 * Get whether iteration stopped because of an error.
+	 * @return True if a page could not be fetched. This should be interpreted
+	 * to mean that AmazonSimpleDBClient must be updated.
+	 */
+	public boolean hasFailed() {
+		return mFailed;
+	}
+}
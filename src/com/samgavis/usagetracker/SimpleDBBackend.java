@@ -0,0 +1,56 @@
+/**
+ * SimpleDBBackend.java
+ * StorageBackend that sends every request to Amazon SimpleDB.
+ * Requests are retried by the RequestExecutor in front of it, so the
+ * client should be created with ClientConfiguration.setMaxErrorRetry(0).
+ */
+
+package com.samgavis.usagetracker;
+
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+public class SimpleDBBackend implements StorageBackend {
+	
+	private final AmazonSimpleDBClient mClient;
+	
+	/**
+	 * Constructor.
+	 * @param client AmazonSimpleDBClient with appropriate permissions, and
+	 * maxErrorRetry set to 0 in its ClientConfiguration.
+	 */
+	public SimpleDBBackend(AmazonSimpleDBClient client) {
+		mClient = client;
+	}
+
+	@Override
+	public void createDomain(CreateDomainRequest request) {
+		mClient.createDomain(request);
+	}
+
+	@Override
+	public ListDomainsResult listDomains(ListDomainsRequest request) {
+		return mClient.listDomains(request);
+	}
+
+	@Override
+	public void putAttributes(PutAttributesRequest request) {
+		mClient.putAttributes(request);
+	}
+
+	@Override
+	public void batchPutAttributes(BatchPutAttributesRequest request) {
+		mClient.batchPutAttributes(request);
+	}
+
+	@Override
+	public SelectResult select(SelectRequest request) {
+		return mClient.select(request);
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * StorageBackend.java
+ * The SimpleDB operations that ListSDB needs. Implementations report
+ * errors the same way AmazonSimpleDBClient does, by throwing
+ * AmazonServiceException (such as NoSuchDomainException) or
+ * AmazonClientException.
+ */
+
+package com.samgavis.usagetracker;
+
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+public interface StorageBackend {
+	
+	/**
+	 * Create a domain. Does nothing if it already exists.
+	 * @param request Domain to create.
+	 */
+	public void createDomain(CreateDomainRequest request);
+	
+	/**
+	 * List one page of domains.
+	 * @param request Page to list.
+	 * @return Domain names and the token of the next page, if any.
+	 */
+	public ListDomainsResult listDomains(ListDomainsRequest request);
+	
+	/**
+	 * Put the attributes of a single item.
+	 * @param request Item to put.
+	 */
+	public void putAttributes(PutAttributesRequest request);
+	
+	/**
+	 * Put the attributes of up to 25 items in one request.
+	 * @param request Items to put.
+	 */
+	public void batchPutAttributes(BatchPutAttributesRequest request);
+	
+	/**
+	 * Execute one page of a select.
+	 * @param request Select expression and the token of the page to fetch.
+	 * @return Items and the token of the next page, if any.
+	 */
+	public SelectResult select(SelectRequest request);
+}
@@ -0,0 +1,282 @@
+/**
+ * TrafficCounter.java
+ * Converts the cumulative TrafficStats counters for one stream into
+ * per-interval Data samples. The previous reading is persisted in the
+ * database, in the same transaction as the rows it produced, so deltas
+ * survive the service being restarted and are never counted twice. 
+ * Counter resets (reboots or counters going backwards) are detected.
+ * Samples with no traffic and no movement are not recorded. When
+ * activity resumes a single zero row covers the whole idle span.
+ * A counter derived from others can be rebased to skip an interval
+ * in which its inputs are known to be inconsistent.
+ */
+
+package com.samgavis.usagetracker;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.os.SystemClock;
+
+public class TrafficCounter {
+	
+	/**
+	 * Capture state keys, prefixed with the stream name. Older versions kept the
+	 * previous reading in these preferences, which are read until the first
+	 * reading is stored in the database.
+	 */
+	private static final String PREFS_NAME = "usagetracker_traffic";
+	private static final String UP_KEY = "_up";
+	private static final String DOWN_KEY = "_down";
+	private static final String TIME_KEY = "_time";
+	private static final String ELAPSED_KEY = "_elapsed";
+	private static final String WRITTEN_KEY = "_written";
+	private static final String LAT_KEY = "_lat";
+	private static final String LONG_KEY = "_long";
+	
+	private final String mStream;
+	
+	/**
+	 * Previous reading. mLastTime is negative until a reading is known.
+	 */
+	private boolean mLoaded = false;
+	private long mLastUp;
+	private long mLastDown;
+	private long mLastTime = -1;
+	private long mLastElapsed;
+	
+	/**
+	 * End of the last row that was recorded and where it was taken. Readings
+	 * after mWrittenTime up to mLastTime were skipped as unchanged. Skipped
+	 * readings are only kept in memory, so if the process dies the idle span
+	 * is folded into the next recorded row instead.
+	 */
+	private long mWrittenTime = -1;
+	private double mWrittenLatitude;
+	private double mWrittenLongitude;
+	
+	/**
+	 * Constructor.
+	 * @param stream Name of the stream, used to persist its previous reading.
+	 */
+	protected TrafficCounter(String stream) {
+		mStream = stream;
+	}
+	
+	/**
+	 * A reading that has not been applied yet: the rows it produced and the 
+	 * baseline that replaces the previous reading once those rows are stored.
+	 */
+	protected static class Reading {
+		private final List<Data> mRows = new ArrayList<Data>(2);
+		private boolean mChanged;
+		private long mUp;
+		private long mDown;
+		private long mTime;
+		private long mElapsed;
+		private long mWrittenTime;
+		private double mWrittenLatitude;
+		private double mWrittenLongitude;
+		
+		/**
+		 * @return Data rows to store, oldest first. May be empty.
+		 */
+		protected List<Data> getRows() {
+			return mRows;
+		}
+		
+		/**
+		 * @return True if the baseline has to be stored, false if the reading was
+		 * skipped and only needs to be applied in memory.
+		 */
+		protected boolean isChanged() {
+			return mChanged;
+		}
+	}
+	
+	/**
+	 * Compute the rows for a reading of the cumulative counters. Nothing is 
+	 * stored: call store() in the transaction that adds the rows, then apply()
+	 * once it has committed. After a reset the counters are taken to have 
+	 * started from zero at the reset, which is at boot time after a reboot.
+	 * 
+	 * If nothing was transferred and the device moved less than threshold meters
+	 * since the last recorded row, the reading is skipped and has no rows. The 
+	 * first reading after a run of skipped ones has two rows: a zero row 
+	 * covering the idle span, then the row for the latest interval.
+	 * @param up Cumulative bytes uploaded since boot.
+	 * @param down Cumulative bytes downloaded since boot.
+	 * @param threshold Distance in meters below which the device counts as not moved.
+	 * @param list List whose database holds the previous reading.
+	 * @param context Current context.
+	 * @return Pending reading.
+	 */
+	protected synchronized Reading sample(long up, long down, float threshold, 
+			ListSQL<?> list, Context context) {
+		load(list, context);
+		
+		long now = System.currentTimeMillis();
+		long elapsed = SystemClock.elapsedRealtime();
+		
+		// elapsedRealtime() only goes backwards across a reboot, unlike wall clock time.
+		boolean rebooted = mLastTime < 0 || elapsed < mLastElapsed;
+		boolean reset = rebooted || up < mLastUp || down < mLastDown;
+		
+		long timeframe;
+		if (rebooted) {
+			timeframe = Math.max(now - elapsed, mLastTime);
+		} else {
+			timeframe = mLastTime;
+		}
+		long upDelta = reset ? up : up - mLastUp;
+		long downDelta = reset ? down : down - mLastDown;
+		
+		Data data = new Data(new Timestamp(now), upDelta, downDelta, context);
+		data.setTimeframe(new Timestamp(timeframe));
+		
+		Reading reading = new Reading();
+		reading.mUp = mLastUp;
+		reading.mDown = mLastDown;
+		reading.mTime = now;
+		reading.mElapsed = elapsed;
+		reading.mWrittenTime = mWrittenTime;
+		reading.mWrittenLatitude = mWrittenLatitude;
+		reading.mWrittenLongitude = mWrittenLongitude;
+		if (!reset && upDelta == 0 && downDelta == 0 
+				&& getDistance(data) < threshold) {
+			return reading;
+		}
+		
+		if (!reset && mLastTime > mWrittenTime) {
+			reading.mRows.add(new Data(new Timestamp(mLastTime), new Timestamp(mWrittenTime), 
+					0, 0, mWrittenLatitude, mWrittenLongitude));
+		}
+		reading.mRows.add(data);
+		
+		reading.mChanged = true;
+		reading.mUp = up;
+		reading.mDown = down;
+		reading.mWrittenTime = now;
+		reading.mWrittenLatitude = data.getLatitude();
+		reading.mWrittenLongitude = data.getLongitude();
+		return reading;
+	}
+	
+	/**
+	 * Check whether the counters went backwards without a reboot, which happens
+	 * when a network interface is reset on its own.
+	 * @param up Cumulative bytes uploaded since boot.
+	 * @param down Cumulative bytes downloaded since boot.
+	 * @param list List whose database holds the previous reading.
+	 * @param context Current context.
+	 * @return True if either counter is lower than the previous reading.
+	 */
+	protected synchronized boolean isCounterReset(long up, long down, ListSQL<?> list, Context context) {
+		load(list, context);
+		if (mLastTime < 0 || SystemClock.elapsedRealtime() < mLastElapsed) {
+			return false;
+		}
+		return up < mLastUp || down < mLastDown;
+	}
+	
+	/**
+	 * Take a reading as the new baseline without recording any rows. The interval 
+	 * since the previous reading is skipped rather than recorded as idle. Like
+	 * sample(), the reading has to be stored and applied.
+	 * @param up Cumulative bytes uploaded since boot.
+	 * @param down Cumulative bytes downloaded since boot.
+	 * @param list List whose database holds the previous reading.
+	 * @param context Current context.
+	 * @return Pending reading with no rows.
+	 */
+	protected synchronized Reading rebase(long up, long down, ListSQL<?> list, Context context) {
+		load(list, context);
+		Reading reading = new Reading();
+		reading.mChanged = true;
+		reading.mUp = up;
+		reading.mDown = down;
+		reading.mTime = System.currentTimeMillis();
+		reading.mElapsed = SystemClock.elapsedRealtime();
+		reading.mWrittenTime = reading.mTime;
+		reading.mWrittenLatitude = mWrittenLatitude;
+		reading.mWrittenLongitude = mWrittenLongitude;
+		return reading;
+	}
+	
+	/**
+	 * Store the baseline of a reading. Call inside the transaction that adds 
+	 * the reading's rows. Skipped readings are not stored.
+	 * @param reading Reading returned by sample() or rebase().
+	 * @param list List whose database holds the previous reading.
+	 */
+	protected void store(Reading reading, ListSQL<?> list) {
+		if (!reading.mChanged) return;
+		list.setCaptureState(mStream + UP_KEY, reading.mUp);
+		list.setCaptureState(mStream + DOWN_KEY, reading.mDown);
+		list.setCaptureState(mStream + TIME_KEY, reading.mTime);
+		list.setCaptureState(mStream + ELAPSED_KEY, reading.mElapsed);
+		list.setCaptureState(mStream + WRITTEN_KEY, reading.mWrittenTime);
+		list.setCaptureState(mStream + LAT_KEY, Double.doubleToLongBits(reading.mWrittenLatitude));
+		list.setCaptureState(mStream + LONG_KEY, Double.doubleToLongBits(reading.mWrittenLongitude));
+	}
+	
+	/**
+	 * Make a reading the previous reading. Call once its rows and baseline have
+	 * committed, so a failed insert is sampled again rather than lost.
+	 * @param reading Reading returned by sample() or rebase().
+	 */
+	protected synchronized void apply(Reading reading) {
+		mLastUp = reading.mUp;
+		mLastDown = reading.mDown;
+		mLastTime = reading.mTime;
+		mLastElapsed = reading.mElapsed;
+		mWrittenTime = reading.mWrittenTime;
+		mWrittenLatitude = reading.mWrittenLatitude;
+		mWrittenLongitude = reading.mWrittenLongitude;
+	}
+	
+	/**
+	 * Read the previous reading from the database the first time it is needed,
+	 * falling back to the preferences older versions kept it in.
+	 * @param list List whose database holds the previous reading.
+	 * @param context Current context.
+	 */
+	private void load(ListSQL<?> list, Context context) {
+		if (mLoaded) return;
+		mLastTime = list.getCaptureState(mStream + TIME_KEY, -1);
+		if (mLastTime >= 0) {
+			mLastUp = list.getCaptureState(mStream + UP_KEY, 0);
+			mLastDown = list.getCaptureState(mStream + DOWN_KEY, 0);
+			mLastElapsed = list.getCaptureState(mStream + ELAPSED_KEY, 0);
+			mWrittenTime = list.getCaptureState(mStream + WRITTEN_KEY, mLastTime);
+			mWrittenLatitude = Double.longBitsToDouble(list.getCaptureState(mStream + LAT_KEY, 0));
+			mWrittenLongitude = Double.longBitsToDouble(list.getCaptureState(mStream + LONG_KEY, 0));
+		} else {
+			SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+			mLastUp = prefs.getLong(mStream + UP_KEY, 0);
+			mLastDown = prefs.getLong(mStream + DOWN_KEY, 0);
+			mLastTime = prefs.getLong(mStream + TIME_KEY, -1);
+			mLastElapsed = prefs.getLong(mStream + ELAPSED_KEY, 0);
+			mWrittenTime = prefs.getLong(mStream + WRITTEN_KEY, mLastTime);
+			mWrittenLatitude = Double.longBitsToDouble(prefs.getLong(mStream + LAT_KEY, 0));
+			mWrittenLongitude = Double.longBitsToDouble(prefs.getLong(mStream + LONG_KEY, 0));
+		}
+		mLoaded = true;
+	}
+	
+	/**
+	 * Get the distance from the last recorded row to a new sample.
+	 * @param data New sample.
+	 * @return Distance in meters.
+	 */
+	private float getDistance(Data data) {
+		float[] results = new float[1];
+		Location.distanceBetween(mWrittenLatitude, mWrittenLongitude, 
+				data.getLatitude(), data.getLongitude(), results);
+		return results[0];
+	}
+}
@@ -10,8 +10,19 @@ package com.samgavis.usagetracker;
 
 import java.sql.Timestamp;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
 
@@ -19,24 +30,84 @@ public class UsageTracker {
 
 	private static final String TAG = "UsageTracker";
 	
-	private Context mContext;
-	private AmazonSimpleDBClient mClient;
-	private String mDomainPrefix;
+	/**
+	 * Maximum number of asynchronous queries that run at once. Additional
+	 * queries wait in a queue.
+	 */
+	private static final int MAX_CONCURRENT_QUERIES = 3;
+	
+	private static final ExecutorService sQueryExecutor = new ThreadPoolExecutor(
+			MAX_CONCURRENT_QUERIES, MAX_CONCURRENT_QUERIES, 30, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>());
+	
+	/**
+	 * Runs the push requested at construction, off the caller's thread. A single
+	 * thread, so trackers created together push one after another.
+	 */
+	private static final ExecutorService sPushExecutor = Executors.newSingleThreadExecutor();
+	
+	private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+	
+	private final Context mContext;
+	
+	/**
+	 * Long-lived SimpleDB repositories for each stream. These are shared by every
+	 * query and send their requests through one RequestExecutor, so updateClient()
+	 * only has to swap the backend behind it.
+	 */
+	private volatile RequestExecutor mRequestExecutor;
+	private final CallListSDB mCallListSDB;
+	private final MobileDataListSDB mMobileDataListSDB;
+	private final WifiDataListSDB mWifiDataListSDB;
 	
 	/**
 	 * Public constructor.
 	 * @param context Current context.
-	 * @param client AmazonSimpleDBClient to which to upload.
+	 * @param client AmazonSimpleDBClient to which to upload. Failed requests are
+	 * already retried, so create it with ClientConfiguration.setMaxErrorRetry(0).
 	 * @param domainPrefix Domain prefix for user.
 	 * @param pushData Should the cached data be pushed to the cloud when
-	 * UsageTracker is instantiated?
+	 * UsageTracker is instantiated? The push runs in the background.
 	 */
 	public UsageTracker(Context context, AmazonSimpleDBClient client, String domainPrefix, boolean pushData) {
-		mContext = context;
-		mClient = client;
-		mDomainPrefix = domainPrefix;
+		this(context, new SimpleDBBackend(client), domainPrefix, pushData);
+	}
+	
+	/**
+	 * Public constructor for a custom storage backend, such as an InMemoryBackend
+	 * to run without network access.
+	 * @param context Current context.
+	 * @param backend StorageBackend to which to upload.
+	 * @param domainPrefix Domain prefix for user.
+	 * @param pushData Should the cached data be pushed to the backend when
+	 * UsageTracker is instantiated? The push runs in the background.
+	 */
+	public UsageTracker(Context context, StorageBackend backend, String domainPrefix, boolean pushData) {
+		mContext = context.getApplicationContext();
+		mRequestExecutor = RequestExecutor.getInstance(backend);
+		mCallListSDB = new CallListSDB(mRequestExecutor, domainPrefix, mContext);
+		mMobileDataListSDB = new MobileDataListSDB(mRequestExecutor, domainPrefix, mContext);
+		mWifiDataListSDB = new WifiDataListSDB(mRequestExecutor, domainPrefix, mContext);
 		
-		if (pushData) PushData.pushData(mClient, mDomainPrefix, mContext);
+		if (pushData) {
+			sPushExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					PushData.pushData(mCallListSDB, mMobileDataListSDB, mWifiDataListSDB, mContext);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Set how many time shards a range query with both bounds may be split into.
+	 * Shards span at least a day and are fetched concurrently, which speeds up
+	 * multi-month queries. Applies to every UsageTracker in the process.
+	 * @param parallelism Maximum number of concurrent shards per query. Defaults to 4.
+	 * 1 disables sharding.
+	 */
+	public static void setScanParallelism(int parallelism) {
+		ListSDB.setScanParallelism(parallelism);
 	}
 	
 	/**
@@ -44,7 +115,51 @@ public class UsageTracker {
 	 * @param client Client to update to.
 	 */
 	public void updateClient(AmazonSimpleDBClient client) {
-		mClient = client;
+		updateBackend(new SimpleDBBackend(client));
+	}
+	
+	/**
+	 * Replace the storage backend used for uploads and queries.
+	 * @param backend Backend to update to.
+	 */
+	public void updateBackend(StorageBackend backend) {
+		mRequestExecutor = RequestExecutor.getInstance(backend);
+		mCallListSDB.updateBackend(mRequestExecutor);
+		mMobileDataListSDB.updateBackend(mRequestExecutor);
+		mWifiDataListSDB.updateBackend(mRequestExecutor);
+	}
+	
+	/**
+	 * Get the executor that rate limits and retries this UsageTracker's requests.
+	 * Use it to tune the rate limit and retry policies or to read its counters.
+	 * For a SimpleDB backend it is shared with every UsageTracker and PushService
+	 * in the process.
+	 * @return RequestExecutor in front of the storage backend.
+	 */
+	public RequestExecutor getRequestExecutor() {
+		return mRequestExecutor;
+	}
+	
+	/**
+	 * Set the consistency of reads made by this UsageTracker. The default is
+	 * ReadConsistency.AUTOMATIC, which only pays for consistent reads when the
+	 * requested range overlaps rows uploaded in the last minute.
+	 * @param readConsistency Consistency to use.
+	 */
+	public void setReadConsistency(ReadConsistency readConsistency) {
+		mCallListSDB.setReadConsistency(readConsistency);
+		mMobileDataListSDB.setReadConsistency(readConsistency);
+		mWifiDataListSDB.setReadConsistency(readConsistency);
+	}
+	
+	/**
+	 * Drop every cached query result, so the next queries read from SimpleDB.
+	 * Results are otherwise cached for up to 30 seconds, or 10 minutes for ranges
+	 * that ended more than 5 minutes ago, and uploads from this device invalidate
+	 * the results they affect.
+	 */
+	public void clearCache() {
+		QueryCache.getInstance().clear();
 	}
 	
 	/**
@@ -52,7 +167,7 @@ public class UsageTracker {
 	 * @return List of calls. Null means client must be updated.
 	 */
 	public List<Call> getCalls() {
-		return (new CallListSDB(mClient, mDomainPrefix)).getCalls();
+		return mCallListSDB.getCalls();
 	}
 	
 	/**
@@ -62,7 +177,19 @@ public class UsageTracker {
 	 * @return List of Calls in range. Null means client must be updated.
 	 */
 	public List<Call> getCalls(Timestamp earliest, Timestamp latest) {
-		return (new CallListSDB(mClient, mDomainPrefix)).getCalls(earliest, latest);
+		return mCallListSDB.getCalls(earliest, latest);
+	}
+	
+	/**
+	 * Iterate over calls within range of Timestamps (inclusive). Pages are fetched
+	 * on demand, so only about one page of calls is held in memory at a time.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @return Iterator over calls in range. If {@link SelectIterator#hasFailed()} is
+	 * true once iteration stops, client must be updated.
+	 */
+	public SelectIterator<Call> iterateCalls(Timestamp earliest, Timestamp latest) {
+		return mCallListSDB.iterateCalls(earliest, latest);
 	}
 	
 	/**
@@ -70,7 +197,7 @@ public class UsageTracker {
 	 * @return Most recent call. Null means client must be updated.
 	 */
 	public Call getMostRecentCall() {
-		return (new CallListSDB(mClient, mDomainPrefix)).getMostRecentCall();
+		return mCallListSDB.getMostRecentCall();
 	}
 	
 	/**
@@ -78,7 +205,7 @@ public class UsageTracker {
 	 * @return Oldest call. Null means client must be updated.
 	 */
 	public Call getOldestCall() {
-		return (new CallListSDB(mClient, mDomainPrefix)).getOldestCall();
+		return mCallListSDB.getOldestCall();
 	}
 	
 	/**
@@ -86,7 +213,7 @@ public class UsageTracker {
 	 * @return List of all mobile data. Null means client must be updated.
 	 */
 	public List<Data> getMobileData() {
-		return (new MobileDataListSDB(mClient, mDomainPrefix)).getData();
+		return mMobileDataListSDB.getData();
 	}
 	
 	/**
@@ -96,7 +223,19 @@ public class UsageTracker {
 	 * @return List of mobile data in range. Null means client must be updated.
 	 */
 	public List<Data> getMobileData(Timestamp earliest, Timestamp latest) {
-		return (new MobileDataListSDB(mClient, mDomainPrefix)).getData(earliest, latest);
+		return mMobileDataListSDB.getData(earliest, latest);
+	}
+	
+	/**
+	 * Iterate over mobile data within range of Timestamps (inclusive). Pages are fetched
+	 * on demand, so only about one page of data is held in memory at a time.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @return Iterator over mobile data in range. If {@link SelectIterator#hasFailed()} is
+	 * true once iteration stops, client must be updated.
+	 */
+	public SelectIterator<Data> iterateMobileData(Timestamp earliest, Timestamp latest) {
+		return mMobileDataListSDB.iterateData(earliest, latest);
 	}
 	
 	/**
@@ -104,7 +243,7 @@ public class UsageTracker {
 	 * @return Most recent mobile data. Null means client must be updated.
 	 */
 	public Data getMostRecentMobileData() {
-		return (new MobileDataListSDB(mClient, mDomainPrefix)).getMostRecentData();
+		return mMobileDataListSDB.getMostRecentData();
 	}
 	
 	/**
@@ -112,7 +251,7 @@ public class UsageTracker {
 	 * @return Oldest mobile data. Null means client must be updated.
 	 */
 	public Data getOldestMobileData() {
-		return (new MobileDataListSDB(mClient, mDomainPrefix)).getOldestData();
+		return mMobileDataListSDB.getOldestData();
 	}
 	
 	/**
@@ -120,7 +259,7 @@ public class UsageTracker {
 	 * @return List of all wifi data. Null means client must be updated.
 	 */
 	public List<Data> getWifiData() {
-		return (new WifiDataListSDB(mClient, mDomainPrefix)).getData();
+		return mWifiDataListSDB.getData();
 	}
 	
 	/**
@@ -130,7 +269,19 @@ public class UsageTracker {
 	 * @return List of wifi data in range. Null means client must be updated.
 	 */
 	public List<Data> getWifiData(Timestamp earliest, Timestamp latest) {
-		return (new WifiDataListSDB(mClient, mDomainPrefix)).getData(earliest, latest);
+		return mWifiDataListSDB.getData(earliest, latest);
+	}
+	
+	/**
+	 * Iterate over wifi data within range of Timestamps (inclusive). Pages are fetched
+	 * on demand, so only about one page of data is held in memory at a time.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @return Iterator over wifi data in range. If {@link SelectIterator#hasFailed()} is
+	 * true once iteration stops, client must be updated.
+	 */
+	public SelectIterator<Data> iterateWifiData(Timestamp earliest, Timestamp latest) {
+		return mWifiDataListSDB.iterateData(earliest, latest);
 	}
 	
 	/**
@@ -138,7 +289,7 @@ public class UsageTracker {
 	 * @return Most recent wifi data. Null means client must be updated.
 	 */
 	public Data getMostRecentWifiData() {
-		return (new WifiDataListSDB(mClient, mDomainPrefix)).getMostRecentData();
+		return mWifiDataListSDB.getMostRecentData();
 	}
 	
 	/**
@@ -146,6 +297,488 @@ public class UsageTracker {
 	 * @return Oldest wifi data. Null means client must be updated.
 	 */
 	public Data getOldestData() {
-		return (new WifiDataListSDB(mClient, mDomainPrefix)).getOldestData();
+		return mWifiDataListSDB.getOldestData();
+	}
+	
+	/**
+	 * Return only some fields of calls within range of Timestamps (inclusive). Charts
+	 * that ignore location can skip it, which shrinks responses and parse time.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param fields Fields to fetch, such as {@code EnumSet.of(Field.UP_DATA, Field.DOWN_DATA)}.
+	 * Timestamp is always fetched. Other fields keep their default values. Null fetches all fields.
+	 * @return List of calls in range. Null means client must be updated.
+	 */
+	public List<Call> getCalls(Timestamp earliest, Timestamp latest, Set<Field> fields) {
+		return mCallListSDB.getCalls(earliest, latest, fields);
+	}
+	
+	/**
+	 * Iterate over only some fields of calls within range of Timestamps (inclusive).
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param fields Fields to fetch. Timestamp is always fetched. Null fetches all fields.
+	 * @return Iterator over calls in range. If {@link SelectIterator#hasFailed()} is
+	 * true once iteration stops, client must be updated.
+	 */
+	public SelectIterator<Call> iterateCalls(Timestamp earliest, Timestamp latest, Set<Field> fields) {
+		return mCallListSDB.iterateCalls(earliest, latest, fields);
+	}
+	
+	/**
+	 * Return only some fields of mobile data within range of Timestamps (inclusive). Charts
+	 * that ignore location can skip it, which shrinks responses and parse time.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param fields Fields to fetch, such as {@code EnumSet.of(Field.UP_DATA, Field.DOWN_DATA)}.
+	 * Timestamp is always fetched. Other fields keep their default values. Null fetches all fields.
+	 * @return List of mobile data in range. Null means client must be updated.
+	 */
+	public List<Data> getMobileData(Timestamp earliest, Timestamp latest, Set<Field> fields) {
+		return mMobileDataListSDB.getData(earliest, latest, fields);
+	}
+	
+	/**
+	 * Iterate over only some fields of mobile data within range of Timestamps (inclusive).
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param fields Fields to fetch. Timestamp is always fetched. Null fetches all fields.
+	 * @return Iterator over mobile data in range. If {@link SelectIterator#hasFailed()} is
+	 * true once iteration stops, client must be updated.
+	 */
+	public SelectIterator<Data> iterateMobileData(Timestamp earliest, Timestamp latest, Set<Field> fields) {
+		return mMobileDataListSDB.iterateData(earliest, latest, fields);
+	}
+	
+	/**
+	 * Return only some fields of wifi data within range of Timestamps (inclusive). Charts
+	 * that ignore location can skip it, which shrinks responses and parse time.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param fields Fields to fetch, such as {@code EnumSet.of(Field.UP_DATA, Field.DOWN_DATA)}.
+	 * Timestamp is always fetched. Other fields keep their default values. Null fetches all fields.
+	 * @return List of wifi data in range. Null means client must be updated.
+	 */
+	public List<Data> getWifiData(Timestamp earliest, Timestamp latest, Set<Field> fields) {
+		return mWifiDataListSDB.getData(earliest, latest, fields);
+	}
+	
+	/**
+	 * Iterate over only some fields of wifi data within range of Timestamps (inclusive).
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param fields Fields to fetch. Timestamp is always fetched. Null fetches all fields.
+	 * @return Iterator over wifi data in range. If {@link SelectIterator#hasFailed()} is
+	 * true once iteration stops, client must be updated.
+	 */
+	public SelectIterator<Data> iterateWifiData(Timestamp earliest, Timestamp latest, Set<Field> fields) {
+		return mWifiDataListSDB.iterateData(earliest, latest, fields);
+	}
+	
+	/**
+	 * Get call rollups at one resolution whose buckets start within range of
+	 * Timestamps (inclusive). Buckets are aligned to UTC.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param resolution Size of the buckets.
+	 * @return List of rollups in range. Null means client must be updated.
+	 */
+	public List<Rollup> getCallRollups(Timestamp earliest, Timestamp latest, Resolution resolution) {
+		return mCallListSDB.getRollupList().getRollups(earliest, latest, resolution);
+	}
+	
+	/**
+	 * Get call totals within range of Timestamps (inclusive), accurate to the minute.
+	 * The coarsest rollups that fit the range are read instead of the raw rows.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then the current time is used.
+	 * @return Totals for the range. Null means client must be updated.
+	 */
+	public Rollup getCallTotal(Timestamp earliest, Timestamp latest) {
+		return mCallListSDB.getRollupList().getTotal(earliest, latest);
+	}
+	
+	/**
+	 * Get mobile data rollups at one resolution whose buckets start within range of
+	 * Timestamps (inclusive). Buckets are aligned to UTC.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param resolution Size of the buckets.
+	 * @return List of rollups in range. Null means client must be updated.
+	 */
+	public List<Rollup> getMobileDataRollups(Timestamp earliest, Timestamp latest, Resolution resolution) {
+		return mMobileDataListSDB.getRollupList().getRollups(earliest, latest, resolution);
+	}
+	
+	/**
+	 * Get mobile data totals within range of Timestamps (inclusive), accurate to the minute.
+	 * The coarsest rollups that fit the range are read instead of the raw rows.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then the current time is used.
+	 * @return Totals for the range. Null means client must be updated.
+	 */
+	public Rollup getMobileDataTotal(Timestamp earliest, Timestamp latest) {
+		return mMobileDataListSDB.getRollupList().getTotal(earliest, latest);
+	}
+	
+	/**
+	 * Get wifi data rollups at one resolution whose buckets start within range of
+	 * Timestamps (inclusive). Buckets are aligned to UTC.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param resolution Size of the buckets.
+	 * @return List of rollups in range. Null means client must be updated.
+	 */
+	public List<Rollup> getWifiDataRollups(Timestamp earliest, Timestamp latest, Resolution resolution) {
+		return mWifiDataListSDB.getRollupList().getRollups(earliest, latest, resolution);
+	}
+	
+	/**
+	 * Get wifi data totals within range of Timestamps (inclusive), accurate to the minute.
+	 * The coarsest rollups that fit the range are read instead of the raw rows.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then the current time is used.
+	 * @return Totals for the range. Null means client must be updated.
+	 */
+	public Rollup getWifiDataTotal(Timestamp earliest, Timestamp latest) {
+		return mWifiDataListSDB.getRollupList().getTotal(earliest, latest);
+	}
+	
+	/**
+	 * Count calls within range of Timestamps (inclusive) without fetching them.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @return Number of calls in range. Null means client must be updated.
+	 */
+	public Long getCallCount(Timestamp earliest, Timestamp latest) {
+		return mCallListSDB.getCount(earliest, latest);
+	}
+	
+	/**
+	 * Get number of calls cached locally that have not been uploaded yet.
+	 * @return Number of cached calls.
+	 */
+	public int getUnsyncedCallCount() {
+		return CallListSQL.getInstance(mContext).getCountToUpload();
+	}
+	
+	/**
+	 * Count mobile data within range of Timestamps (inclusive) without fetching them.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @return Number of mobile data in range. Null means client must be updated.
+	 */
+	public Long getMobileDataCount(Timestamp earliest, Timestamp latest) {
+		return mMobileDataListSDB.getCount(earliest, latest);
+	}
+	
+	/**
+	 * Get number of mobile data cached locally that have not been uploaded yet.
+	 * @return Number of cached mobile data.
+	 */
+	public int getUnsyncedMobileDataCount() {
+		return MobileDataListSQL.getInstance(mContext).getCountToUpload();
+	}
+	
+	/**
+	 * Count wifi data within range of Timestamps (inclusive) without fetching them.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @return Number of wifi data in range. Null means client must be updated.
+	 */
+	public Long getWifiDataCount(Timestamp earliest, Timestamp latest) {
+		return mWifiDataListSDB.getCount(earliest, latest);
+	}
+	
+	/**
+	 * Get number of wifi data cached locally that have not been uploaded yet.
+	 * @return Number of cached wifi data.
+	 */
+	public int getUnsyncedWifiDataCount() {
+		return WifiDataListSQL.getInstance(mContext).getCountToUpload();
+	}
+	
+	/**
+	 * Get all calls from DB asynchronously.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<List<Call>> getCallsAsync(QueryCallback<List<Call>> callback) {
+		return runAsync(new Callable<List<Call>>() {
+			@Override
+			public List<Call> call() {
+				return getCalls();
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Get all calls within range of Timestamps (inclusive) asynchronously.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<List<Call>> getCallsAsync(final Timestamp earliest, final Timestamp latest, QueryCallback<List<Call>> callback) {
+		return runAsync(new Callable<List<Call>>() {
+			@Override
+			public List<Call> call() {
+				return getCalls(earliest, latest);
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Get most recent call asynchronously.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<Call> getMostRecentCallAsync(QueryCallback<Call> callback) {
+		return runAsync(new Callable<Call>() {
+			@Override
+			public Call call() {
+				return getMostRecentCall();
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Get oldest call asynchronously.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<Call> getOldestCallAsync(QueryCallback<Call> callback) {
+		return runAsync(new Callable<Call>() {
+			@Override
+			public Call call() {
+				return getOldestCall();
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Get all mobile data from DB asynchronously.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<List<Data>> getMobileDataAsync(QueryCallback<List<Data>> callback) {
+		return runAsync(new Callable<List<Data>>() {
+			@Override
+			public List<Data> call() {
+				return getMobileData();
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Get all mobile data within range of Timestamps (inclusive) asynchronously.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<List<Data>> getMobileDataAsync(final Timestamp earliest, final Timestamp latest, QueryCallback<List<Data>> callback) {
+		return runAsync(new Callable<List<Data>>() {
+			@Override
+			public List<Data> call() {
+				return getMobileData(earliest, latest);
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Get most recent mobile data asynchronously.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<Data> getMostRecentMobileDataAsync(QueryCallback<Data> callback) {
+		return runAsync(new Callable<Data>() {
+			@Override
+			public Data call() {
+				return getMostRecentMobileData();
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Get oldest mobile data asynchronously.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<Data> getOldestMobileDataAsync(QueryCallback<Data> callback) {
+		return runAsync(new Callable<Data>() {
+			@Override
+			public Data call() {
+				return getOldestMobileData();
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Get all wifi data from DB asynchronously.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<List<Data>> getWifiDataAsync(QueryCallback<List<Data>> callback) {
+		return runAsync(new Callable<List<Data>>() {
+			@Override
+			public List<Data> call() {
+				return getWifiData();
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Get all wifi data within range of Timestamps (inclusive) asynchronously.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<List<Data>> getWifiDataAsync(final Timestamp earliest, final Timestamp latest, QueryCallback<List<Data>> callback) {
+		return runAsync(new Callable<List<Data>>() {
+			@Override
+			public List<Data> call() {
+				return getWifiData(earliest, latest);
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Get most recent wifi data asynchronously.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<Data> getMostRecentWifiDataAsync(QueryCallback<Data> callback) {
+		return runAsync(new Callable<Data>() {
+			@Override
+			public Data call() {
+				return getMostRecentWifiData();
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Get oldest wifi data asynchronously.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<Data> getOldestWifiDataAsync(QueryCallback<Data> callback) {
+		return runAsync(new Callable<Data>() {
+			@Override
+			public Data call() {
+				return getOldestData();
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Get only some fields of calls within range of Timestamps (inclusive) asynchronously.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param fields Fields to fetch. Timestamp is always fetched. Null fetches all fields.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<List<Call>> getCallsAsync(final Timestamp earliest, final Timestamp latest, 
+			final Set<Field> fields, QueryCallback<List<Call>> callback) {
+		return runAsync(new Callable<List<Call>>() {
+			@Override
+			public List<Call> call() {
+				return getCalls(earliest, latest, fields);
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Get only some fields of mobile data within range of Timestamps (inclusive) asynchronously.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param fields Fields to fetch. Timestamp is always fetched. Null fetches all fields.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<List<Data>> getMobileDataAsync(final Timestamp earliest, final Timestamp latest, 
+			final Set<Field> fields, QueryCallback<List<Data>> callback) {
+		return runAsync(new Callable<List<Data>>() {
+			@Override
+			public List<Data> call() {
+				return getMobileData(earliest, latest, fields);
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Get only some fields of wifi data within range of Timestamps (inclusive) asynchronously.
+	 * @param earliest Earliest time to include. If null then there is no lower bound.
+	 * @param latest Latest time to include. If null then there is no upper bound.
+	 * @param fields Fields to fetch. Timestamp is always fetched. Null fetches all fields.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public Future<List<Data>> getWifiDataAsync(final Timestamp earliest, final Timestamp latest, 
+			final Set<Field> fields, QueryCallback<List<Data>> callback) {
+		return runAsync(new Callable<List<Data>>() {
+			@Override
+			public List<Data> call() {
+				return getWifiData(earliest, latest, fields);
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Run any query on the query executor and deliver its result to callback
+	 * on the main thread. Use this for queries without an Async variant, e.g.
+	 * rollups, totals and counts:
+	 * 
+	 *   tracker.runAsync(new Callable<Rollup>() {
+	 *       public Rollup call() { return tracker.getCallTotal(earliest, latest); }
+	 *   }, callback);
+	 * @param query Query to run. Called on a background thread.
+	 * @param callback Called on the main thread with the result. May be null.
+	 * @return Future for the result. Cancelling it stops the query and the callback.
+	 */
+	public <T> Future<T> runAsync(Callable<T> query, QueryCallback<T> callback) {
+		QueryTask<T> task = new QueryTask<T>(query, callback);
+		sQueryExecutor.execute(task);
+		return task;
+	}
+	
+	/**
+	 * FutureTask that posts its result to a QueryCallback on the main thread.
+	 * Cancelling the task drops the callback even if the query already finished.
+	 */
+	private static class QueryTask<T> extends FutureTask<T> {
+		private final QueryCallback<T> mCallback;
+		private volatile boolean mDropped = false;
+		
+		private QueryTask(Callable<T> query, QueryCallback<T> callback) {
+			super(query);
+			mCallback = callback;
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			mDropped = true;
+			return super.cancel(mayInterruptIfRunning);
+		}
+		
+		@Override
+		protected void done() {
+			if (mCallback == null || mDropped) return;
+			T result;
+			try {
+				result = get();
+			} catch (Exception e) {
+				result = null;
+			}
+			final T finalResult = result;
+			sMainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (!mDropped) mCallback.onResult(finalResult);
+				}
+			});
+		}
 	}
 }
@@ -10,20 +10,54 @@ package com.samgavis.usagetracker;
 
 import java.sql.Timestamp;
 import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
 
-import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
 import com.amazonaws.services.simpledb.model.PutAttributesRequest;
 import com.amazonaws.services.simpledb.model.SelectResult;
 
 public class WifiDataListSDB extends ListSDB<Data> {
+	
+	private final RollupListSDB mRollupListSDB;
 
 	/**
 	 * Constructor.
-	 * @param client AmazonSimpleDBClient to access SimpleDB.
+	 * @param backend StorageBackend to access SimpleDB.
 	 * @param domainPrefix Domain prefix for user.
+	 * @param context Current context.
 	 */
-	protected WifiDataListSDB(AmazonSimpleDBClient client, String domainPrefix) {
-		super(client, domainPrefix);
+	protected WifiDataListSDB(StorageBackend backend, String domainPrefix, Context context) {
+		super(backend, domainPrefix, context);
+		mRollupListSDB = new RollupListSDB(backend, domainPrefix, WIFI_ROLLUP_DOMAIN_NAME_SUFFIX, context);
+	}
+	
+	/**
+	 * Updates StorageBackend here and on the rollup repository.
+	 * @param backend New backend.
+	 */
+	@Override
+	protected void updateBackend(StorageBackend backend) {
+		super.updateBackend(backend);
+		mRollupListSDB.updateBackend(backend);
+	}
+	
+	/**
+	 * Sets read consistency here and on the rollup repository.
+	 * @param readConsistency Consistency to use.
+	 */
+	@Override
+	protected void setReadConsistency(ReadConsistency readConsistency) {
+		super.setReadConsistency(readConsistency);
+		mRollupListSDB.setReadConsistency(readConsistency);
+	}
+	
+	/**
+	 * Get the repository for this stream's rollups.
+	 * @return RollupListSDB that shares this repository's backend.
+	 */
+	protected RollupListSDB getRollupList() {
+		return mRollupListSDB;
 	}
 	
 	/**
@@ -43,6 +77,16 @@ public class WifiDataListSDB extends ListSDB<Data> {
 		return super.addItem(data, WIFI_DOMAIN_NAME);
 	}
 	
+	/**
+	 * Add a batch of data to wifi data domain.
+	 * @param data Data to add. At most ListSDB.MAX_BATCH_SIZE items.
+	 * @return Data that were uploaded. Fewer than were passed in implies that
+	 * AmazonSimpleDBClient must be updated.
+	 */
+	protected List<Data> addData(List<Data> data) {
+		return super.addItems(data, WIFI_DOMAIN_NAME);
+	}
+	
 	/**
 	 * Get PutAttributesRequest for data.
 	 * @param data Data for which to get PutAttributesRequest.
@@ -50,7 +94,8 @@ public class WifiDataListSDB extends ListSDB<Data> {
 	 */
 	@Override
 	protected PutAttributesRequest getPutAttributesRequest(Data data) {
-		return ListSDBUtils.generateDataPutAttributesRequest(data, WIFI_DOMAIN_NAME);
+		return ListSDBUtils.generateDataPutAttributesRequest(data, WIFI_DOMAIN_NAME, 
+				ListSDBUtils.generateItemName(getDeviceId(), WIFI_DOMAIN_NAME_SUFFIX, data.getRowId(), data.getTimestamp()));
 	}
 	
 	/**
@@ -76,6 +121,42 @@ public class WifiDataListSDB extends ListSDB<Data> {
 		return super.getItems(earliest, latest, WIFI_DOMAIN_NAME);
 	}
 	
+	/**
+	 * Iterate over data between timestamps (inclusive), fetching pages on demand.
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @return Iterator over data in range ordered from oldest to newest.
+	 * @see ListSDB
+	 */
+	protected SelectIterator<Data> iterateData(Timestamp earliest, Timestamp latest) {
+		return super.iterateItems(earliest, latest, WIFI_DOMAIN_NAME);
+	}
+	
+	/**
+	 * Get only some fields of data between timestamps (inclusive).
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @param fields Fields to fetch. Timestamp is always fetched. Null fetches all fields.
+	 * @return List of data in range ordered from oldest to newest. Null if error
+	 * reading from AmazonSimpleDBClient.
+	 * @see ListSDB
+	 */
+	protected List<Data> getData(Timestamp earliest, Timestamp latest, Set<Field> fields) {
+		return super.getItems(earliest, latest, null, fields, WIFI_DOMAIN_NAME);
+	}
+	
+	/**
+	 * Iterate over only some fields of data between timestamps (inclusive).
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @param fields Fields to fetch. Timestamp is always fetched. Null fetches all fields.
+	 * @return Iterator over data in range ordered from oldest to newest.
+	 * @see ListSDB
+	 */
+	protected SelectIterator<Data> iterateData(Timestamp earliest, Timestamp latest, Set<Field> fields) {
+		return super.iterateItems(earliest, latest, fields, WIFI_DOMAIN_NAME);
+	}
+	
 	/**
 	 * Get most recent data.
 	 * @return Most recent data. Null if error reading from AmazonSimpleDBClient.
@@ -92,6 +173,32 @@ public class WifiDataListSDB extends ListSDB<Data> {
 		return super.getOldestItem(WIFI_DOMAIN_NAME);
 	}
 
+	/**
+	 * Count data between timestamps (inclusive) without fetching them.
+	 * @param earliest Timestamp of the earliest time in range. Null means no lower bound.
+	 * @param latest Timestamp of latest time in range. Null means no upper bound.
+	 * @return Number of data in range. Null if error reading from AmazonSimpleDBClient.
+	 */
+	protected Long getCount(Timestamp earliest, Timestamp latest) {
+		return super.getCount(earliest, latest, WIFI_DOMAIN_NAME);
+	}
+
+	/**
+	 * Get timestamp of data.
+	 */
+	@Override
+	protected Timestamp getTimestamp(Data data) {
+		return data.getTimestamp();
+	}
+	
+	/**
+	 * Copy data.
+	 */
+	@Override
+	protected Data copyItem(Data data) {
+		return new Data(data);
+	}
+
 	/**
 	 * Convert SelectResult to a list of data.
 	 * @param result Result from SelectRequest.
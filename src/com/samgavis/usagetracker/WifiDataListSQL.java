@@ -10,22 +10,40 @@
 package com.samgavis.usagetracker;
 
 import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.List;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 
 public class WifiDataListSQL extends ListSQL<Data> {
 	
 	private static final String TAG = "WifiDataListSQL";
 
+	private static WifiDataListSQL sInstance;
+	
+	private final RollupListSQL mRollupList;
+	
 	/**
 	 * Public constructor.
 	 * @param context Current context.
 	 */
 	public WifiDataListSQL(Context context) {
 		super(context);
+		mRollupList = RollupListSQL.getInstance(context, WIFI_ROLLUP_TABLE_NAME);
+	}
+	
+	/**
+	 * Get the shared instance for the wifi data table.
+	 * @param context Current context.
+	 * @return Process-wide WifiDataListSQL.
+	 */
+	protected static synchronized WifiDataListSQL getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new WifiDataListSQL(context);
+		}
+		return sInstance;
 	}
 	
 	/**
@@ -35,14 +53,45 @@ public class WifiDataListSQL extends ListSQL<Data> {
 	protected void addData(Data data) {
 		super.addItem(data, WIFI_TABLE_NAME);
 	}
+	
+	/**
+	 * Adds data objects to wifi data table in a single transaction.
+	 * @param data Data to add to table.
+	 */
+	protected void addData(Collection<Data> data) {
+		super.addItems(data, WIFI_TABLE_NAME);
+	}
 
 	/**
-	 * Generates a ConentValues object using data to be 
-	 * inserted into database.
+	 * Columns bound by bindValues().
+	 */
+	@Override
+	protected String[] getInsertColumns() {
+		return ListSQLUtils.DATA_INSERT_COLUMNS;
+	}
+	
+	/**
+	 * Binds data to a compiled insert statement.
 	 */
 	@Override
-	protected ContentValues generateValues(Data data) {
-		return ListSQLUtils.generateDataContentValues(data);
+	protected void bindValues(SQLiteStatement statement, Data data) {
+		ListSQLUtils.bindDataStatement(statement, data);
+	}
+	
+	/**
+	 * Adds new data to the rollups in the same transaction.
+	 */
+	@Override
+	protected void onItemsAdded(Collection<Data> data) {
+		mRollupList.addData(data);
+	}
+	
+	/**
+	 * Get the rollups kept for this table.
+	 * @return Shared RollupListSQL.
+	 */
+	protected RollupListSQL getRollupList() {
+		return mRollupList;
 	}
 	
 	/**
@@ -60,6 +109,14 @@ public class WifiDataListSQL extends ListSQL<Data> {
 	protected Data convertCursorToItem(Cursor cursor) {
 		return ListSQLUtils.convertCursorToData(cursor);
 	}
+	
+	/**
+	 * Get the row id data was read with.
+	 */
+	@Override
+	protected long getRowId(Data data) {
+		return data.getRowId();
+	}
 
 	/**
 	 * Get number of data objects in table.
@@ -69,6 +126,54 @@ public class WifiDataListSQL extends ListSQL<Data> {
 		return super.getCount(WIFI_TABLE_NAME);
 	}
 	
+	/**
+	 * Get number of data objects within range of timestamps (inclusive).
+	 * @param earliest Earliest time to include. Null means no lower bound.
+	 * @param latest Latest time to include. Null means no upper bound.
+	 * @return Number of data objects in range.
+	 */
+	protected int getCount(Timestamp earliest, Timestamp latest) {
+		return super.getCount(earliest, latest, WIFI_TABLE_NAME);
+	}
+	
+	/**
+	 * Get total bytes uploaded within range of timestamps (inclusive).
+	 * @param earliest Earliest time to include. Null means no lower bound.
+	 * @param latest Latest time to include. Null means no upper bound.
+	 * @return Sum of upData in range.
+	 */
+	protected long getUpDataTotal(Timestamp earliest, Timestamp latest) {
+		return super.getSum(UP_DATA_KEY, earliest, latest, WIFI_TABLE_NAME);
+	}
+	
+	/**
+	 * Get total bytes downloaded within range of timestamps (inclusive).
+	 * @param earliest Earliest time to include. Null means no lower bound.
+	 * @param latest Latest time to include. Null means no upper bound.
+	 * @return Sum of downData in range.
+	 */
+	protected long getDownDataTotal(Timestamp earliest, Timestamp latest) {
+		return super.getSum(DOWN_DATA_KEY, earliest, latest, WIFI_TABLE_NAME);
+	}
+	
+	/**
+	 * Get timestamp of the oldest data in table.
+	 * @return Oldest timestamp, or null if table is empty.
+	 */
+	protected Timestamp getOldestTimestamp() {
+		Long timestamp = super.getMin(TIMESTAMP_KEY, null, null, WIFI_TABLE_NAME);
+		return (timestamp == null) ? null : new Timestamp(timestamp);
+	}
+	
+	/**
+	 * Get timestamp of the newest data in table.
+	 * @return Newest timestamp, or null if table is empty.
+	 */
+	protected Timestamp getNewestTimestamp() {
+		Long timestamp = super.getMax(TIMESTAMP_KEY, null, null, WIFI_TABLE_NAME);
+		return (timestamp == null) ? null : new Timestamp(timestamp);
+	}
+	
 	/**
 	 * Delete data with given timestamp.
 	 * @param timestamp Timestamp of the data to delete from table.
@@ -77,6 +182,38 @@ public class WifiDataListSQL extends ListSQL<Data> {
 		super.deleteItem(timestamp, WIFI_TABLE_NAME);
 	}
 	
+	/**
+	 * Get data that have not been uploaded yet, in the order they were added.
+	 * @param limit Maximum number of data to return.
+	 * @return Up to limit data, with row ids set.
+	 */
+	protected List<Data> getDataToUpload(int limit) {
+		return super.getItemsToUpload(limit, WIFI_TABLE_NAME);
+	}
+	
+	/**
+	 * Get number of data that have not been uploaded yet.
+	 * @return Number of data above the upload state.
+	 */
+	protected int getCountToUpload() {
+		return super.getCountToUpload(WIFI_TABLE_NAME);
+	}
+	
+	/**
+	 * Record that every row up to and including rowId was uploaded.
+	 * @param rowId Row id of the last uploaded data.
+	 */
+	protected void markUploaded(long rowId) {
+		super.markUploaded(rowId, WIFI_TABLE_NAME);
+	}
+	
+	/**
+	 * Delete every uploaded row from table.
+	 */
+	protected void pruneUploaded() {
+		super.pruneUploaded(WIFI_TABLE_NAME);
+	}
+	
 	/**
 	 * Delete all data from table.
 	 */